@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Reads the AD structures of a raw advertisement, as passed to scan callbacks, in place.
+ * {@link #parse} only notes where the flags, service UUID lists, local name, TX power and
+ * manufacturer data are in the record; the accessors read them from there.  Parsing allocates
+ * nothing, so one parser can be reused for every advertisement.  Only {@link #getLocalName()}
+ * creates an object, so call it only when the name is needed.
+ *
+ * <p>Of each kind of structure only the first one is used.  Malformed and truncated records
+ * are read up to where they stop making sense.  Not thread safe.
+ */
+public class AdvertisementParser {
+    public static final int NO_FLAGS = -1;
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+    public static final int NO_MANUFACTURER = -1;
+
+    private static final int TYPE_FLAGS = 0x01;
+    private static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int TYPE_UUID16_COMPLETE = 0x03;
+    private static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int TYPE_UUID128_COMPLETE = 0x07;
+    private static final int TYPE_NAME_SHORT = 0x08;
+    private static final int TYPE_NAME_COMPLETE = 0x09;
+    private static final int TYPE_TX_POWER = 0x0a;
+    private static final int TYPE_MANUFACTURER = 0xff;
+
+    // The Bluetooth base UUID, 0000xxxx-0000-1000-8000-00805f9b34fb, without the 16 bits.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mRecord;
+    private int mFlags;
+    private int mTxPower;
+    // Offset and length of the data of each structure found, or a length of 0.
+    private int mUuid16Offset;
+    private int mUuid16Length;
+    private int mUuid128Offset;
+    private int mUuid128Length;
+    private int mNameOffset;
+    private int mNameLength;
+    private int mManufacturerOffset;
+    private int mManufacturerLength;
+
+    /**
+     * Parses {@code record}, which is kept, not copied, until the next call.
+     *
+     * @param record May be null, which reads as an empty advertisement.
+     */
+    public void parse(byte[] record) {
+        mRecord = record;
+        mFlags = NO_FLAGS;
+        mTxPower = NO_TX_POWER;
+        mUuid16Length = 0;
+        mUuid128Length = 0;
+        mNameLength = 0;
+        mManufacturerLength = 0;
+        if (record == null) return;
+
+        int offset = 0;
+        while (offset < record.length) {
+            final int length = record[offset] & 0xff;
+            // A length of 0 starts the zero padding after the last structure.
+            if (length == 0 || offset + 1 + length > record.length) break;
+            final int type = record[offset + 1] & 0xff;
+            final int data = offset + 2;
+            final int dataLength = length - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength > 0 && mFlags == NO_FLAGS) mFlags = record[data] & 0xff;
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    if (mUuid16Length == 0) {
+                        mUuid16Offset = data;
+                        mUuid16Length = dataLength & ~1;
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    if (mUuid128Length == 0) {
+                        mUuid128Offset = data;
+                        mUuid128Length = dataLength & ~15;
+                    }
+                    break;
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    // Prefer the complete name to a shortened one.
+                    if (mNameLength == 0 || type == TYPE_NAME_COMPLETE) {
+                        mNameOffset = data;
+                        mNameLength = dataLength;
+                    }
+                    break;
+                case TYPE_TX_POWER:
+                    if (dataLength > 0 && mTxPower == NO_TX_POWER) mTxPower = record[data];
+                    break;
+                case TYPE_MANUFACTURER:
+                    if (dataLength >= 2 && mManufacturerLength == 0) {
+                        mManufacturerOffset = data;
+                        mManufacturerLength = dataLength;
+                    }
+                    break;
+            }
+            offset += 1 + length;
+        }
+    }
+
+    /**
+     * Returns the flags byte, or {@link #NO_FLAGS}.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Returns the advertised transmit power in dBm, or {@link #NO_TX_POWER}.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    /**
+     * Returns true if the advertisement lists {@code uuid}, either as a 16-bit UUID, if it is
+     * based on the Bluetooth base UUID, or as a 128-bit one.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        if (lsb == BASE_UUID_LSB && (msb & 0xffff0000ffffffffL) == BASE_UUID_MSB) {
+            final int uuid16 = (int) (msb >>> 32);
+            for (int i = mUuid16Offset; i < mUuid16Offset + mUuid16Length; i += 2) {
+                if (((mRecord[i] & 0xff) | (mRecord[i + 1] & 0xff) << 8) == uuid16) return true;
+            }
+        }
+        for (int i = mUuid128Offset; i < mUuid128Offset + mUuid128Length; i += 16) {
+            // Little endian: the least significant half comes first.
+            if (readLongLe(i) == lsb && readLongLe(i + 8) == msb) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the Bluetooth SIG company identifier of the manufacturer data, or
+     * {@link #NO_MANUFACTURER}.
+     */
+    public int getManufacturerId() {
+        if (mManufacturerLength == 0) return NO_MANUFACTURER;
+        return (mRecord[mManufacturerOffset] & 0xff)
+                | (mRecord[mManufacturerOffset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * Returns the offset in the record of the manufacturer data after the company identifier.
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerOffset + 2;
+    }
+
+    /**
+     * Returns the length of the manufacturer data after the company identifier, or -1 if there
+     * is none.
+     */
+    public int getManufacturerDataLength() {
+        return mManufacturerLength == 0 ? -1 : mManufacturerLength - 2;
+    }
+
+    /**
+     * Returns true if the manufacturer data after the company identifier is the same as
+     * {@code data}, without copying it.
+     */
+    public boolean manufacturerDataEquals(byte[] data) {
+        if (data == null) return mManufacturerLength == 0;
+        if (getManufacturerDataLength() != data.length) return false;
+        final int offset = getManufacturerDataOffset();
+        for (int i = 0; i < data.length; i++) {
+            if (mRecord[offset + i] != data[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the record given to {@link #parse}, for reading the manufacturer data in place.
+     */
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    public boolean hasLocalName() {
+        return mNameLength > 0;
+    }
+
+    /**
+     * Returns the complete or else shortened local name, or null.  Allocates.
+     */
+    public String getLocalName() {
+        return mNameLength > 0 ? new String(mRecord, mNameOffset, mNameLength, UTF_8) : null;
+    }
+
+    private long readLongLe(int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (mRecord[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -18,22 +18,31 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.content.FileProvider;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -44,13 +53,34 @@ public class BluetoothLeService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    private GattConnectionPool mConnectionPool;
+    // Raw values as they come off the Binder threads, handed to the worker thread.
+    private final SampleChannel mIngressChannel =
+            new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+    // Only used on the worker thread.
+    private final SamplePipeline mSamplePipeline =
+            new SamplePipeline(new SampleChannel(SampleChannel.DEFAULT_CAPACITY));
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+    private SnapshotPublisher mSnapshotPublisher;
+    // Only used on the worker thread.
+    private StatusNotifier mStatusNotifier;
+    private SamplingScheduler mSamplingScheduler;
+    // Fed on the worker thread.  The stores may be queried from any thread.
+    private SampleStore mSampleStore;
+    private boolean mStoreFailed;
+    private SampleArchive mSampleArchive;
+    // Compacts sealed segments into the archive, off the worker thread and the store lock.
+    private ExecutorService mCompactor;
+    private RollupStore mRollupStore;
+    private RollupEngine mRollupEngine;
+    private volatile boolean mDataBroadcastsEnabled;
+
+    private static final long ROLLUP_FLUSH_INTERVAL_MS = 60 * 1000;
+    private static final int RAW_SEGMENTS = 8;
+    // Must match res/xml/export_paths.xml and the provider in the manifest.
+    private static final String EXPORT_DIRECTORY = "exports";
+    private static final String EXPORT_AUTHORITY = ".exports";
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -62,107 +92,182 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HM_10);
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Receives events from every connection in the pool and forwards them as broadcasts.
+    private final GattConnection.Listener mConnectionListener = new GattConnection.Listener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+        public void onConnectionStateChanged(final GattConnection connection, final int state) {
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mStatusNotifier.onConnectionStateChanged(connection.getAddress(), state);
+                }
+            });
+            if (state == GattConnection.STATE_CONNECTED) {
+                broadcastUpdate(ACTION_GATT_CONNECTED, connection.getAddress());
+            } else if (state == GattConnection.STATE_DISCONNECTED) {
+                final String address = connection.getAddress();
+                mWorkerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSamplePipeline.reset(address);
+                    }
+                });
+                broadcastUpdate(ACTION_GATT_DISCONNECTED, connection.getAddress());
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        public void onServicesDiscovered(GattConnection connection) {
+            // Codecs are picked here, once per characteristic, rather than for every value.
+            final String address = connection.getAddress();
+            final List<BluetoothGattService> services = connection.getServices();
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSamplePipeline.onServicesDiscovered(address, services);
+                }
+            });
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, connection.getAddress());
+            mSamplingScheduler.onDeviceReady(connection.getAddress());
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onDataAvailable(GattConnection connection,
+                                    BluetoothGattCharacteristic characteristic) {
+            // Only copy the value here and leave framing and decoding to the worker thread, so
+            // the Binder thread is free for the next callback.  Callbacks for different devices
+            // can arrive on different Binder threads, while the channel expects a single
+            // producer.
+            final byte[] value = characteristic.getValue();
+            if (value != null) {
+                synchronized (mIngressChannel) {
+                    final SensorSample sample = mIngressChannel.claim();
+                    sample.set(connection.getAddress(), characteristic.getUuid(),
+                            System.currentTimeMillis(), value, 0, value.length);
+                    mIngressChannel.publish();
+                }
+            }
+            if (mDataBroadcastsEnabled) {
+                broadcastUpdate(ACTION_DATA_AVAILABLE, connection.getAddress(), characteristic);
             }
-        }
-
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
         }
     };
 
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
+    private void broadcastUpdate(final String action, final String address,
                                  final BluetoothGattCharacteristic characteristic) {
         final Intent intent = new Intent(action);
-        /*
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+        intent.putExtra(EXTRA_ADDRESS, address);
+        // Decoding happens on the worker thread, see SamplePipeline; broadcasts carry the
+        // value as the sensors send it, as text.
+        final byte[] data = characteristic.getValue();
+        if (data != null && data.length > 0) {
+            intent.putExtra(EXTRA_DATA, new String(data));
+        }
+        sendBroadcast(intent);
+    }
+
+    // Runs on the worker thread.
+    private final SampleChannel.Listener mIngressListener = new SampleChannel.Listener() {
+        @Override
+        public void onSample(SensorSample sample) {
+            mSamplePipeline.onData(sample.getAddress(), sample.getCharacteristicUuid(),
+                    sample.getTimestamp(), sample.getPayload(), 0, sample.getPayloadLength());
+        }
+    };
+
+    // Runs on the worker thread and persists every decoded reading, whether or not any
+    // activity is showing.
+    private final SampleChannel.Listener mStoreListener = new SampleChannel.Listener() {
+        @Override
+        public void onSample(SensorSample sample) {
+            if (mStoreFailed) return;
+            try {
+                mSampleStore.append(sample);
+            } catch (IOException e) {
+                // Most likely out of space.  Keep streaming, but stop trying to store.
+                Log.e(TAG, "Unable to store samples", e);
+                mStoreFailed = true;
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+        }
+    };
+
+    // Runs on the compactor thread.  Also retries any segment an earlier run failed on, and
+    // only then lets the store delete what is archived.
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mSampleArchive.catchUp(mSampleStore);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to compact stored samples", e);
+            }
+            try {
+                mSampleStore.setDeletableThrough(mSampleArchive.getCompactedIndex());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the archive state", e);
             }
         }
-        */
+    };
 
-        // For all other profiles, writes the data formatted in HEX.
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data)
-                stringBuilder.append(String.format("%02x ", byteChar));
-            intent.putExtra(EXTRA_DATA, new String(data));
+    // Called on the worker thread, with the store locked, when a segment fills up.
+    private final SampleStore.SegmentListener mSegmentListener =
+            new SampleStore.SegmentListener() {
+        @Override
+        public void onSegmentSealed(File segment, long index) {
+            // Segments sealed while the service shuts down are compacted on the next start.
+            if (!mCompactor.isShutdown()) {
+                mCompactor.execute(mCompaction);
+            }
         }
+    };
 
+    // Closes the rollup windows of devices that stopped sending.
+    private final Runnable mRollupFlush = new Runnable() {
+        @Override
+        public void run() {
+            mRollupEngine.flushExpired(System.currentTimeMillis());
+            mWorkerHandler.postDelayed(this, ROLLUP_FLUSH_INTERVAL_MS);
+        }
+    };
 
-        sendBroadcast(intent);
-    }
+    // Reads the characteristic if it can be read, otherwise makes sure it notifies.
+    private final SamplingScheduler.Sampler mSampler = new SamplingScheduler.Sampler() {
+        @Override
+        public boolean sample(String address, UUID uuid) {
+            // Alarms can start the service before any activity has bound to it.
+            if (!initialize()) return false;
+
+            final GattConnection connection = getConnection(address);
+            if (connection == null
+                    || connection.getConnectionState() != GattConnection.STATE_CONNECTED) {
+                connect(address);
+                return false;
+            }
+            final BluetoothGattCharacteristic characteristic =
+                    findCharacteristic(connection, uuid);
+            if (characteristic == null) return false;
+
+            final int properties = characteristic.getProperties();
+            if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                connection.readCharacteristic(characteristic);
+            } else if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                connection.setCharacteristicNotification(characteristic, true);
+            }
+            return true;
+        }
+    };
 
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
@@ -170,6 +275,89 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // GATT bookkeeping (operation timeouts, reconnects) and all sample processing run on
+        // this thread, never on the main thread.
+        mWorkerThread = new HandlerThread("GattWorker", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        mSnapshotPublisher = new SnapshotPublisher(mWorkerHandler,
+                new Handler(Looper.getMainLooper()));
+        mIngressChannel.subscribe(mIngressListener, null, mWorkerHandler);
+        mSamplePipeline.getChannel().subscribe(mSnapshotPublisher, null, mWorkerHandler);
+        mStatusNotifier = new StatusNotifier(this, mWorkerHandler);
+        mSamplePipeline.getChannel().subscribe(mStatusNotifier, null, mWorkerHandler);
+        mSampleStore = new SampleStore(new File(getFilesDir(), "samples"));
+        mSampleArchive = new SampleArchive(new File(getFilesDir(), "archive"));
+        mCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "SampleCompactor");
+            }
+        });
+        mSampleStore.setSegmentListener(mSegmentListener);
+        // Sealed segments are compacted into the archive, so only recent ones stay raw.  None
+        // is deleted before the archive has it.
+        mSampleStore.setMaxSegments(RAW_SEGMENTS);
+        mSampleStore.setDeletableThrough(-1);
+        mCompactor.execute(mCompaction);
+        // The store and the rollups run inline on the worker, which publishes the samples, so
+        // they see every one.  A subscriber on a handler skips samples once it falls a ring
+        // behind, as it may during a burst.
+        mSamplePipeline.getChannel().subscribe(mStoreListener, null, null);
+        mRollupStore = new RollupStore(new File(getFilesDir(), "rollups"), mSampleStore);
+        mRollupEngine = new RollupEngine(mRollupStore);
+        mSamplePipeline.getChannel().subscribe(mRollupEngine, null, null);
+        mWorkerHandler.postDelayed(mRollupFlush, ROLLUP_FLUSH_INTERVAL_MS);
+        mSamplingScheduler = new SamplingScheduler(this, mWorkerHandler, mSampler);
+        mSamplingScheduler.restore();
+        if (mSamplingScheduler.getJobCount() > 0) {
+            startService(new Intent(this, BluetoothLeService.class));
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && SamplingScheduler.ACTION_SAMPLE.equals(intent.getAction())
+                && initialize()) {
+            mSamplingScheduler.onAlarm(intent);
+        }
+        return stopIfIdle() ? START_NOT_STICKY : START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        close();
+        // Queued behind any samples still waiting to be stored.
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWorkerHandler.removeCallbacks(mRollupFlush);
+                mRollupEngine.flushAll();
+                mRollupStore.close();
+                // Lets a compaction in progress finish before the store closes under it.
+                mCompactor.shutdown();
+                try {
+                    mCompactor.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mSampleStore.close();
+                mStatusNotifier.cancelAll();
+            }
+        });
+        mWorkerThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -177,13 +365,23 @@ public class BluetoothLeService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
+        // Links stay up when the UI goes away: the service is started while any is wanted, so
+        // sensors keep recording.  They are closed in onDestroy(), once nothing is connected,
+        // nothing is scheduled and no client is bound.
         return super.onUnbind(intent);
     }
 
+    // The service is started while a link is wanted or sampling is scheduled, so both outlast
+    // the activities.  Returns true if it was stopped; bound clients still keep it alive.
+    private boolean stopIfIdle() {
+        if (mSamplingScheduler.getJobCount() > 0
+                || (mConnectionPool != null && mConnectionPool.getActiveCount() > 0)) {
+            return false;
+        }
+        stopSelf();
+        return true;
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -208,11 +406,17 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mConnectionPool == null) {
+            mConnectionPool = new GattConnectionPool(this, mBluetoothAdapter, mWorkerHandler,
+                    mConnectionListener);
+        }
+
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device.  Each address gets its own
+     * connection, so connecting to a second device leaves the first one up.
      *
      * @param address The device address of the destination device.
      *
@@ -222,34 +426,14 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if (mConnectionPool == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        if (mConnectionPool.connect(address) == null) {
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        startService(new Intent(this, BluetoothLeService.class));
         return true;
     }
 
@@ -258,74 +442,387 @@ public class BluetoothLeService extends Service {
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
+     *
+     * @param address The device address of the connection to drop.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(final String address) {
+        if (mConnectionPool == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnectionPool.disconnect(address);
+        stopIfIdle();
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * Closes every open connection.  Called when the service is destroyed; links otherwise
+     * stay up while no activity is bound.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mConnectionPool == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mConnectionPool.closeAll();
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
-     *
-     * @param characteristic The characteristic to read from.
+     * Sets how many devices may be connected at once.  When the limit is reached the least
+     * recently used idle connection is closed to make room for a new one.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void setMaxConnections(int maxConnections) {
+        if (mConnectionPool == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        mConnectionPool.setMaxConnections(maxConnections);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
-     *
-     * @param characteristic Characteristic to act on.
-     * @param enabled If true, enable notification.  False otherwise.
+     * Subscribes to events from a single device.  Unlike the broadcasts, which carry every
+     * device's events, the listener only hears about {@code address}.  Callbacks arrive on a
+     * Binder thread.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void registerDeviceListener(String address, GattConnection.Listener listener) {
+        if (mConnectionPool == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        mConnectionPool.registerListener(address, listener);
+    }
+
+    public void unregisterDeviceListener(String address, GattConnection.Listener listener) {
+        if (mConnectionPool == null) {
+            return;
+        }
+        mConnectionPool.unregisterListener(address, listener);
+    }
+
+    /**
+     * Returns the channel every received sample is published on, from the worker thread.
+     * Subscribing to it is much cheaper than listening for {@link #ACTION_DATA_AVAILABLE}, but
+     * every sample is delivered; UI code should use
+     * {@link #registerSnapshotListener(SnapshotPublisher.Listener, String)} instead.
+     */
+    public SampleChannel getSampleChannel() {
+        return mSamplePipeline.getChannel();
+    }
+
+    /**
+     * Returns a handler on the worker thread, for consumers that want to subscribe to the
+     * {@link #getSampleChannel() sample channel} off the main thread.
+     */
+    public Handler getWorkerHandler() {
+        return mWorkerHandler;
+    }
+
+    /**
+     * Registers {@code listener} for throttled snapshots of {@code address}, or of every device
+     * if null.  Snapshots are delivered on the main thread, a few times per second at most.
+     */
+    public void registerSnapshotListener(SnapshotPublisher.Listener listener, String address) {
+        mSnapshotPublisher.register(listener, address);
+    }
+
+    public void unregisterSnapshotListener(SnapshotPublisher.Listener listener) {
+        mSnapshotPublisher.unregister(listener);
+    }
+
+    /**
+     * Changes how data from the HM-10 UART characteristic is split into readings.  By default
+     * each reading ends with CR LF.
+     */
+    public void setFrameFormat(final FrameReassembler.Format format) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSamplePipeline.setFrameFormat(format);
+            }
+        });
+    }
+
+    /**
+     * Enables or disables the {@link #ACTION_DATA_AVAILABLE} broadcast for every sample.  Off by
+     * default; only needed by receivers outside this process.  Connection and service discovery
+     * broadcasts are always sent.
+     */
+    public void setDataBroadcastsEnabled(boolean enabled) {
+        mDataBroadcastsEnabled = enabled;
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic}. The read is queued behind any
+     * outstanding GATT operation on that device and its result is reported asynchronously
+     * through the
+     * {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
+     * callback.
+     *
+     * @param address The device the characteristic belongs to.
+     * @param characteristic The characteristic to read from.
+     *
+     * @return The queued operation, or null if there is no connection.
+     */
+    public GattOperation readCharacteristic(String address,
+                                            BluetoothGattCharacteristic characteristic) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
+            return null;
+        }
+        return connection.readCharacteristic(characteristic);
+    }
 
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    /**
+     * Enables or disables notification on a give characteristic.  The Client Characteristic
+     * Configuration descriptor write is queued like any other GATT operation.
+     *
+     * @param address The device the characteristic belongs to.
+     * @param characteristic Characteristic to act on.
+     * @param enabled If true, enable notification.  False otherwise.
+     *
+     * @return The queued operation, or null if there is no connection.
+     */
+    public GattOperation setCharacteristicNotification(String address,
+                                                       BluetoothGattCharacteristic characteristic,
+                                                       boolean enabled) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
+            return null;
         }
+        return connection.setCharacteristicNotification(characteristic, enabled);
     }
 
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
+     * @param address The device to query.
+     *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) return null;
+
+        return connection.getServices();
+    }
+
+    /**
+     * Enables or disables throughput mode on the connection to {@code address}: a larger MTU and
+     * high connection priority while data is streaming.  See
+     * {@link GattConnection#setThroughputMode(boolean)}.
+     */
+    public void setThroughputMode(String address, boolean enabled) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
+            return;
+        }
+        connection.setThroughputMode(enabled);
+    }
+
+    /**
+     * Returns the bytes per second received from {@code address} over the last second, or 0 if
+     * there is no connection.
+     */
+    public long getBytesPerSecond(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) return 0;
+
+        return connection.getThroughputMeter().getBytesPerSecond(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Turns automatic reconnection of {@code address} on or off.  On by default: a link that
+     * drops without {@link #disconnect(String)} being called is brought back with exponential
+     * backoff, and its notifications are enabled again.
+     */
+    public void setAutoReconnect(String address, boolean enabled) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
+            return;
+        }
+        connection.setAutoReconnect(enabled);
+    }
+
+    /**
+     * Returns how long {@code address} was down before it last came back on its own, in
+     * milliseconds, or -1 if it never had to.
+     */
+    public long getLastTimeToReconnectMs(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) return -1;
+
+        return connection.getLastTimeToReconnectMs();
+    }
+
+    /**
+     * Returns how long the last connection to {@code address} took to deliver its first value,
+     * in milliseconds, or -1 if it has not delivered one yet.
+     */
+    public long getConnectToFirstSampleMs(String address) {
+        GattConnection connection = getConnection(address);
+        if (connection == null) return -1;
 
-        return mBluetoothGatt.getServices();
+        return connection.getConnectToFirstSampleMs();
+    }
+
+    /**
+     * Returns the services {@code address} had when it was last discovered, or null if it never
+     * was.  Available before the connection is up, so the service list can be shown at once.
+     */
+    public List<GattServiceCache.CachedService> getCachedServices(String address) {
+        if (mConnectionPool == null || address == null) return null;
+
+        GattServiceCache.Entry entry = mConnectionPool.getServiceCache().get(address);
+        return entry != null ? entry.getServices() : null;
+    }
+
+    /**
+     * Samples {@code characteristic} of {@code address} every {@code intervalMs}, replacing any
+     * earlier schedule for it.  The schedule lives in the service, so it outlasts the activity
+     * that set it up, and is saved across restarts of the service.
+     */
+    public void scheduleSampling(String address, UUID characteristic, long intervalMs) {
+        if (mSamplingScheduler.schedule(address, characteristic, intervalMs)) {
+            startService(new Intent(this, BluetoothLeService.class));
+        }
+    }
+
+    public void cancelSampling(String address, UUID characteristic) {
+        mSamplingScheduler.cancel(address, characteristic);
+        stopIfIdle();
+    }
+
+    /**
+     * Returns the characteristics of {@code address} that are sampled, each with its interval
+     * in milliseconds.
+     */
+    public Map<UUID, Long> getSamplingJobs(String address) {
+        return mSamplingScheduler.getJobs(address);
+    }
+
+    /**
+     * Returns the interval {@code characteristic} of {@code address} is sampled at, or 0.
+     */
+    public long getSamplingIntervalMs(String address, UUID characteristic) {
+        return mSamplingScheduler.getIntervalMs(address, characteristic);
+    }
+
+    /**
+     * Returns a cursor over the stored readings of {@code address} with timestamps in
+     * [{@code from}, {@code to}), oldest first, averaged per {@code bucketMs} milliseconds if
+     * that is positive.  Readings are fetched as the cursor advances, so a long range can be
+     * paged through without loading it.  Reads from storage, so use it off the main thread.
+     */
+    public SampleCursor queryHistory(String address, long from, long to, long bucketMs)
+            throws IOException {
+        return new SampleCursor(mSampleStore, mSampleArchive, address, from, to, bucketMs);
+    }
+
+    /**
+     * Sets how often, at most, the status notification of each device is updated.
+     */
+    public void setNotificationIntervalMs(final long intervalMs) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStatusNotifier.setMinIntervalMs(intervalMs);
+            }
+        });
+    }
+
+    /**
+     * Sets the ranges outside of which an alert is posted straight away: heart rate in beats
+     * per minute and temperature in hundredths of a degree Celsius.
+     */
+    public void setAlertLimits(final int heartRateLow, final int heartRateHigh,
+                               final int temperatureLow, final int temperatureHigh) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStatusNotifier.setHeartRateLimits(heartRateLow, heartRateHigh);
+                mStatusNotifier.setTemperatureLimits(temperatureLow, temperatureHigh);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of calls made to the notification manager in the last full minute.
+     */
+    public int getNotifyCallsLastMinute() {
+        return mStatusNotifier.getNotifyCallsLastMinute();
+    }
+
+    /**
+     * Returns a new exporter over the stored readings.  Run it off the main thread.
+     */
+    public SampleExporter createExporter() {
+        return new SampleExporter(mSampleStore, mSampleArchive);
+    }
+
+    /**
+     * Returns the addresses of every device readings were stored for.
+     */
+    public String[] getStoredDevices() throws IOException {
+        mSampleStore.open();
+        return mSampleStore.getDeviceAddresses();
+    }
+
+    /**
+     * Returns a new file to export to, in the directory {@link #getShareIntent} can share
+     * from.
+     */
+    public File createExportFile(int format, boolean gzip) throws IOException {
+        final File directory = new File(getCacheDir(), EXPORT_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return new File(directory, "readings-" + System.currentTimeMillis()
+                + SampleExporter.getFileExtension(format, gzip));
+    }
+
+    /**
+     * Returns an intent that offers an exported file to other apps, such as mail.
+     */
+    public Intent getShareIntent(File file, int format, boolean gzip) {
+        final Uri uri = FileProvider.getUriForFile(this, getPackageName() + EXPORT_AUTHORITY,
+                file);
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(SampleExporter.getMimeType(format, gzip));
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return intent;
+    }
+
+    /**
+     * Returns the aggregated readings of {@code address} at {@code resolution} (one of the
+     * {@code Rollup.RESOLUTION_*} values) for windows starting in [{@code from}, {@code to}),
+     * oldest first, including the window that is still open.  Reads from storage, so call it
+     * off the main thread.
+     */
+    public List<Rollup> getRollups(String address, int resolution, long from, long to)
+            throws IOException {
+        return mRollupEngine.getRollups(address, resolution, from, to);
+    }
+
+    private static BluetoothGattCharacteristic findCharacteristic(GattConnection connection,
+                                                                  UUID uuid) {
+        final List<BluetoothGattService> services = connection.getServices();
+        if (services == null) return null;
+
+        for (BluetoothGattService service : services) {
+            final BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+            if (characteristic != null) return characteristic;
+        }
+        return null;
+    }
+
+    private GattConnection getConnection(String address) {
+        if (mConnectionPool == null || address == null) {
+            return null;
+        }
+        return mConnectionPool.get(address);
     }
 }
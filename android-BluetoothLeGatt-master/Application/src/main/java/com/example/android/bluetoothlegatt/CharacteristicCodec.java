@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Decodes the values of one characteristic of one device into {@link SensorSample}s.  Codecs
+ * are created through {@link CodecRegistry} once per device and characteristic, when the
+ * services of the device are discovered or its first value arrives, and then handed every
+ * value of that characteristic.  They write the decoded reading into the primitive fields of
+ * samples claimed from the channel, without allocating per value.
+ *
+ * <p>Called on one thread only; codecs may keep state between values, like a partial frame.
+ */
+public interface CharacteristicCodec {
+
+    /**
+     * Creates the codec for one device and characteristic.
+     */
+    interface Factory {
+        CharacteristicCodec create();
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code value} starting at {@code offset} and publishes
+     * the resulting samples, if any, on {@code channel}.
+     *
+     * @param timestamp Wall-clock arrival time in milliseconds.
+     */
+    void decode(String address, UUID uuid, long timestamp, byte[] value, int offset, int length,
+                SampleChannel channel);
+
+    /**
+     * Drops any state carried from one value to the next, for example after a disconnect.
+     */
+    void reset();
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Knows which {@link CharacteristicCodec} decodes which characteristic.  Looking up a codec is
+ * done once per device and characteristic, not per value; see {@link SamplePipeline}.
+ *
+ * <p>{@link #registerStandardCodecs()} adds the codecs of the Bluetooth SIG characteristics the
+ * application understands.  Characteristics without a codec get {@link #RAW}.  Thread safe.
+ */
+public class CodecRegistry {
+    public static final UUID HEART_RATE_MEASUREMENT =
+            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    public static final UUID TEMPERATURE_MEASUREMENT =
+            UUID.fromString("00002a1c-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Publishes every value as it is, one sample per value, without a decoded reading.
+     */
+    public static final CharacteristicCodec RAW = new CharacteristicCodec() {
+        @Override
+        public void decode(String address, UUID uuid, long timestamp, byte[] value, int offset,
+                           int length, SampleChannel channel) {
+            final SensorSample sample = channel.claim();
+            sample.set(address, uuid, timestamp, value, offset, length);
+            channel.publish();
+        }
+
+        @Override
+        public void reset() {
+        }
+    };
+
+    private final HashMap<UUID, CharacteristicCodec.Factory> mFactories =
+            new HashMap<UUID, CharacteristicCodec.Factory>();
+
+    /**
+     * Registers {@code factory} for {@code uuid}, replacing any previous one.  Devices already
+     * seen keep the codecs they have until the pipeline forgets them.
+     */
+    public synchronized void register(UUID uuid, CharacteristicCodec.Factory factory) {
+        mFactories.put(uuid, factory);
+    }
+
+    public synchronized void unregister(UUID uuid) {
+        mFactories.remove(uuid);
+    }
+
+    /**
+     * Registers the Heart Rate Measurement and Temperature Measurement codecs.
+     */
+    public void registerStandardCodecs() {
+        register(HEART_RATE_MEASUREMENT, new CharacteristicCodec.Factory() {
+            @Override
+            public CharacteristicCodec create() {
+                return new HeartRateMeasurementCodec();
+            }
+        });
+        register(TEMPERATURE_MEASUREMENT, new CharacteristicCodec.Factory() {
+            @Override
+            public CharacteristicCodec create() {
+                return new TemperatureMeasurementCodec();
+            }
+        });
+    }
+
+    /**
+     * Returns a new codec for {@code uuid}, or {@link #RAW} if none is registered.
+     */
+    public CharacteristicCodec create(UUID uuid) {
+        final CharacteristicCodec.Factory factory;
+        synchronized (this) {
+            factory = mFactories.get(uuid);
+        }
+        return factory != null ? factory.create() : RAW;
+    }
+}
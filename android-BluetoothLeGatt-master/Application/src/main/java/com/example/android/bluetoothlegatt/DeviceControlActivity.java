@@ -17,25 +17,17 @@
 package com.example.android.bluetoothlegatt;
 
 import android.app.Activity;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
-import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -43,12 +35,13 @@ import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.ExpandableListView;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -68,15 +61,25 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    private GattTreeAdapter mGattTreeAdapter;
+    private SnapshotCoalescer mSnapshotCoalescer;
+    // Text currently in mDataField, or null.
+    private String mDisplayedData;
     private boolean mConnected = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
     private BluetoothGattCharacteristic mCharacteristicToRead;
+    // The characteristic whose sampling job the check boxes show, or null if there is none.
+    private UUID mSampledUuid;
     private String data;
-
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
+    private boolean mResumed;
+    // The export in progress, if any.
+    private SampleExporter mExporter;
+
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long SHIFT_MS = 12 * 60 * MINUTE_MS;
+    private static final int[] SAMPLING_CHECK_BOXES = {
+            R.id.checkBox, R.id.checkBox2, R.id.checkBox3, R.id.checkBox4, R.id.checkBox5
+    };
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -88,8 +91,14 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            if (mResumed) {
+                mBluetoothLeService.registerSnapshotListener(mSnapshotCoalescer, mDeviceAddress);
+            }
+            showSamplingInterval();
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            // Already connected devices do not announce their services again.
+            displayGattServices();
         }
 
         @Override
@@ -102,12 +111,14 @@ public class DeviceControlActivity extends Activity {
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            // The service broadcasts events for every connected device; only show ours.
+            if (!mDeviceAddress.equals(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                return;
+            }
             data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
@@ -120,13 +131,25 @@ public class DeviceControlActivity extends Activity {
                 clearUI();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(data);
-                showNotification();
-
+                displayGattServices();
+            }
+        }
+    };
 
+    // Receives data from the device, either as a result of read or notification operations.
+    // The service decodes samples on its worker thread and delivers the latest reading to the
+    // main thread a few times per second, and mSnapshotCoalescer hands on at most one per
+    // frame while the activity is in the foreground.
+    private final SnapshotPublisher.Listener mSnapshotListener = new SnapshotPublisher.Listener() {
+        @Override
+        public void onSnapshot(DeviceSnapshot snapshot) {
+            if (snapshot.hasReading()) {
+                data = formatReading(DeviceControlActivity.this, snapshot.getHeartRate(),
+                        snapshot.getTemperature());
+            } else {
+                data = snapshot.getText();
             }
+            displayData(data);
         }
     };
 
@@ -139,9 +162,9 @@ public class DeviceControlActivity extends Activity {
                 @Override
                 public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
                                             int childPosition, long id) {
-                    if (mGattCharacteristics != null) {
-                        final BluetoothGattCharacteristic characteristic =
-                                mGattCharacteristics.get(groupPosition).get(childPosition);
+                    if (mBluetoothLeService != null) {
+                        final BluetoothGattCharacteristic characteristic = mGattTreeAdapter
+                                .getChild(groupPosition, childPosition).getCharacteristic();
                         Intent intent = getIntent();
                         data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
                         final int charaProp = characteristic.getProperties();
@@ -150,25 +173,28 @@ public class DeviceControlActivity extends Activity {
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
                                 mBluetoothLeService.setCharacteristicNotification(
-                                        mNotifyCharacteristic, false);
+                                        mDeviceAddress, mNotifyCharacteristic, false);
                                 mNotifyCharacteristic = null;
                             }
-                            mBluetoothLeService.readCharacteristic(characteristic);
+                            mBluetoothLeService.readCharacteristic(mDeviceAddress, characteristic);
                         }
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
-                                    characteristic, true);
+                                    mDeviceAddress, characteristic, true);
                         }
                         mCharacteristicToRead = characteristic;
+                        showSamplingInterval();
                         return true;
                     }
                     return false;
                 }
             };
 
+    // The services list is left as it is, so that a reconnect to the same device does not
+    // lose its scroll position and expanded groups.
     private void clearUI() {
-        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mDisplayedData = null;
         mDataField.setText(R.string.no_data);
     }
 
@@ -185,6 +211,9 @@ public class DeviceControlActivity extends Activity {
         // ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
         mGattServicesList = (ExpandableListView) findViewById(R.id.gatt_services_list);
         mGattServicesList.setOnChildClickListener(servicesListClickListner);
+        mGattTreeAdapter = new GattTreeAdapter(getLayoutInflater(), mGattServicesList);
+        mGattServicesList.setAdapter(mGattTreeAdapter);
+        mSnapshotCoalescer = new SnapshotCoalescer(mSnapshotListener);
         //mGattServicesList.setTextAlignment(View.TEXT_ALIGNMENT_CENTER);
 
         mConnectionState = (TextView) findViewById(R.id.connection_state);
@@ -199,8 +228,11 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
+        mSnapshotCoalescer.start();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
+            mBluetoothLeService.registerSnapshotListener(mSnapshotCoalescer, mDeviceAddress);
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
@@ -261,12 +293,20 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
+        mSnapshotCoalescer.stop();
         unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterSnapshotListener(mSnapshotCoalescer);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mExporter != null) {
+            mExporter.cancel();
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
         mCharacteristicToRead = null;
@@ -292,7 +332,15 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_export:
+                exportShift();
+                return true;
+            case R.id.menu_history:
+                final Intent intent = new Intent(this, HistoryActivity.class);
+                intent.putExtra(HistoryActivity.EXTRAS_DEVICE_ADDRESS, mDeviceAddress);
+                startActivity(intent);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -301,6 +349,59 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    // Exports the last shift of readings from every sensor to CSV on a background thread, then
+    // offers the file to other apps.
+    private void exportShift() {
+        if (mBluetoothLeService == null || mExporter != null) return;
+
+        final BluetoothLeService service = mBluetoothLeService;
+        final SampleExporter exporter = service.createExporter();
+        mExporter = exporter;
+        final SampleExporter.ProgressListener progress = new SampleExporter.ProgressListener() {
+            @Override
+            public void onProgress(long count, final float fraction) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        getActionBar().setSubtitle(getString(R.string.export_progress,
+                                Math.round(fraction * 100)));
+                    }
+                });
+            }
+        };
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                File file = null;
+                boolean done = false;
+                try {
+                    file = service.createExportFile(SampleExporter.FORMAT_CSV, false);
+                    done = exporter.exportToFile(null, now - SHIFT_MS, now, 0,
+                            SampleExporter.FORMAT_CSV, false, file, progress);
+                } catch (IOException e) {
+                    Log.e(TAG, "Export failed", e);
+                }
+                final File exported = done ? file : null;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mExporter = null;
+                        getActionBar().setSubtitle(null);
+                        if (exported != null) {
+                            startActivity(Intent.createChooser(service.getShareIntent(exported,
+                                    SampleExporter.FORMAT_CSV, false),
+                                    getString(R.string.menu_export)));
+                        } else if (!exporter.isCancelled()) {
+                            Toast.makeText(DeviceControlActivity.this, R.string.export_failed,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        }, "Export").start();
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -320,71 +421,35 @@ public class DeviceControlActivity extends Activity {
     }
 
     public void displayData(String data) {
-        if (data != null) {
+        // Unchanged text would only cost another layout pass.
+        if (data != null && !data.equals(mDisplayedData)) {
+            mDisplayedData = data;
             mDataField.setText(data);
             mDataField.setTextColor(Color.BLUE);
         }
     }
 
-    // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            String serviceName = SampleGattAttributes.lookup(uuid, unknownServiceString);
-            if (serviceName.equals(unknownServiceString)) {
-                continue;
-            }
-            currentServiceData.put(
-                    LIST_NAME, serviceName);
-            // currentServiceData.put(LIST_UUID, uuid);
-            gattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
-
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                // currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
-            }
-            mGattCharacteristics.add(charas);
-            gattCharacteristicData.add(gattCharacteristicGroupData);
-        }
+    // Builds the tree of supported GATT services and characteristics on the service's worker
+    // thread and hands it to the list adapter, which only redraws what changed.
+    private void displayGattServices() {
+        if (mBluetoothLeService == null) return;
 
-        SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
-                this,
-                gattServiceData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[]{LIST_NAME, LIST_UUID},
-                new int[]{android.R.id.text1, android.R.id.text2},
-                gattCharacteristicData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[]{LIST_NAME, LIST_UUID},
-                new int[]{android.R.id.text1, android.R.id.text2}
-        );
-        mGattServicesList.setAdapter(gattServiceAdapter);
+        final BluetoothLeService service = mBluetoothLeService;
+        final String unknownCharacteristic = getString(R.string.unknown_characteristic);
+        final GattUuidRegistry registry = GattUuidRegistry.getInstance(this);
+        service.getWorkerHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final GattTree tree = GattTree.build(service.getSupportedGattServices(
+                        mDeviceAddress), registry, unknownCharacteristic);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mGattTreeAdapter.setTree(tree);
+                    }
+                });
+            }
+        });
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
@@ -392,258 +457,74 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
-    public void onCheckboxClicked(View view)
-    {
-        boolean checked = ((CheckBox)view).isChecked();
-
-        switch(view.getId())
-        {
-            case R.id.checkBox:
-                if(checked) {
-                    final int time = 60000;
-                    final Handler mHandler = new Handler();
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-
-
-                            if (mGattCharacteristics != null) {
-                                final BluetoothGattCharacteristic characteristic =
-                                        mGattCharacteristics.get(0).get(0);
-                                Intent intent = getIntent();
-                                data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                                mCharacteristicToRead = characteristic;
-                            }
-                            mHandler.postDelayed(this,time);
-
-
-                        }
-
-                    },time);
-
+    public void onCheckboxClicked(View view) {
+        if (mBluetoothLeService == null) return;
+
+        if (((CheckBox) view).isChecked()) {
+            mSampledUuid = getSelectedCharacteristic();
+            mBluetoothLeService.scheduleSampling(
+                    mDeviceAddress, mSampledUuid, getSamplingInterval(view.getId()));
+        } else if (mSampledUuid != null) {
+            // The job that was shown, even if another characteristic was picked since.
+            mBluetoothLeService.cancelSampling(mDeviceAddress, mSampledUuid);
+            mSampledUuid = null;
+        }
+        showSamplingInterval();
+    }
 
-                }
+    // The characteristic last picked from the list, or the sensor data characteristic.
+    private UUID getSelectedCharacteristic() {
+        return mCharacteristicToRead != null
+                ? mCharacteristicToRead.getUuid() : UUID.fromString(SampleGattAttributes.HM_10);
+    }
 
-                else
-                    //
-                    break;
+    private static long getSamplingInterval(int checkBoxId) {
+        switch (checkBoxId) {
             case R.id.checkBox2:
-                if(checked){
-                    final int time = 300000;
-                   final Handler mHandler = new Handler();
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-
-
-                            if (mGattCharacteristics != null) {
-                                final BluetoothGattCharacteristic characteristic =
-                                        mGattCharacteristics.get(0).get(0);
-                                Intent intent = getIntent();
-                                data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                                mCharacteristicToRead = characteristic;
-                            }
-
-                                mHandler.postDelayed(this,time);
-
-
-
-                        }
-
-                    },time);
-
-
-                }
-
-                else
-
-                    break;
+                return 5 * MINUTE_MS;
             case R.id.checkBox3:
-                if(checked){
-                    final int time = 1800000;
-                    final Handler mHandler = new Handler();
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-
-                            if (mGattCharacteristics != null) {
-                                final BluetoothGattCharacteristic characteristic =
-                                        mGattCharacteristics.get(0).get(0);
-                                Intent intent = getIntent();
-                                data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                                mCharacteristicToRead = characteristic;
-                            }
-
-                                mHandler.postDelayed(this,time);
-
-                        }
-
-                    },time);
-
-
-                }
-
-                else
-                    break;
-
-            case R.id.checkBox4 :
-                if(checked){
-                    final int time = 3600000;
-                    final Handler mHandler = new Handler();
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-
-                            if (mGattCharacteristics != null) {
-                                final BluetoothGattCharacteristic characteristic =
-                                        mGattCharacteristics.get(0).get(0);
-                                Intent intent = getIntent();
-                                data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                                mCharacteristicToRead = characteristic;
-                            }
-
-                            mHandler.postDelayed(this,time);
-
-                        }
-
-                    },time);
-
-
-                }
-
-                else
-                    break;
-
+                return 30 * MINUTE_MS;
+            case R.id.checkBox4:
+                return 60 * MINUTE_MS;
             case R.id.checkBox5:
-                if(checked){
-                    final int time = 7200000;
-                    final Handler mHandler = new Handler();
-                    mHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-
-                            if (mGattCharacteristics != null) {
-                                final BluetoothGattCharacteristic characteristic =
-                                        mGattCharacteristics.get(0).get(0);
-                                Intent intent = getIntent();
-                                data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                                final int charaProp = characteristic.getProperties();
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
-                                    // If there is an active notification on a characteristic, clear
-                                    // it first so it doesn't update the data field on the user interface.
-                                    if (mNotifyCharacteristic != null) {
-                                        mBluetoothLeService.setCharacteristicNotification(
-                                                mNotifyCharacteristic, false);
-                                        mNotifyCharacteristic = null;
-                                    }
-                                    mBluetoothLeService.readCharacteristic(characteristic);
-                                }
-                                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                                    mNotifyCharacteristic = characteristic;
-                                    mBluetoothLeService.setCharacteristicNotification(
-                                            characteristic, true);
-                                }
-                                mCharacteristicToRead = characteristic;
-                            }
-
-                            mHandler.postDelayed(this,time);
-
-                        }
-
-                    },time);
-
-
-                }
-
-                else
-                    break;
-
+                return 120 * MINUTE_MS;
+            default:
+                return MINUTE_MS;
         }
     }
 
-    public void showNotification() {
-        PendingIntent pi = PendingIntent.getActivity(this, 0, new Intent(this, DeviceControlActivity.class), 0);
-        Resources r = getResources();
-        Notification notif = new NotificationCompat.Builder(this)
-                .setTicker(r.getString(R.string.notification_title))
-                .setSmallIcon(getApplicationContext().getApplicationInfo().icon)
-                .setContentTitle(r.getString(R.string.notification_title))
-                .setContentText(data)
-                .setContentIntent(pi)
-                .setAutoCancel(true)
-                .build();
-
-        NotificationManager notifManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        notifManager.notify(0, notif);
+    // Checks the box that matches a job the service already runs for the device: that of the
+    // picked characteristic if it has one, else the one shown before, else any.
+    private void showSamplingInterval() {
+        if (mBluetoothLeService == null) return;
+
+        final Map<UUID, Long> jobs = mBluetoothLeService.getSamplingJobs(mDeviceAddress);
+        final UUID selected = getSelectedCharacteristic();
+        if (jobs.containsKey(selected)) {
+            mSampledUuid = selected;
+        } else if (mSampledUuid == null || !jobs.containsKey(mSampledUuid)) {
+            mSampledUuid = jobs.isEmpty() ? null : jobs.keySet().iterator().next();
+        }
+        final long interval = mSampledUuid != null ? jobs.get(mSampledUuid) : 0;
+        for (int id : SAMPLING_CHECK_BOXES) {
+            ((CheckBox) findViewById(id)).setChecked(
+                    interval != 0 && getSamplingInterval(id) == interval);
+        }
     }
 
+    // Formats whichever of the two readings is present, like the status notification does.
+    static String formatReading(Context context, int heartRate, int temperature) {
+        final StringBuilder text = new StringBuilder();
+        if (heartRate != SensorSample.NO_VALUE) {
+            text.append(context.getString(R.string.sample_heart_rate, heartRate));
+        }
+        if (temperature != SensorSample.NO_VALUE) {
+            if (text.length() > 0) text.append("   ");
+            text.append(context.getString(R.string.sample_temperature, temperature / 100f));
+        }
+        return text.length() > 0 ? text.toString() : context.getString(R.string.no_data);
+    }
 }
-
@@ -23,6 +23,7 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
@@ -37,6 +38,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -44,12 +50,44 @@ import java.util.ArrayList;
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
+    private LeScanner mScanner;
     private boolean mScanning;
     private Handler mHandler;
+    // Addresses of the devices opened from this list before; a scan on resume only looks for
+    // these if there are any.
+    private final HashSet<String> mFleet = new HashSet<String>();
+    // Filled from the scan callback; the list catches up with it every LIST_UPDATE_PERIOD.
+    private final ScanRegistry mScanRegistry = new ScanRegistry();
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // Updates the list at most 4 times a second, however many devices are advertising.
+    private static final long LIST_UPDATE_PERIOD = 250;
+    private static final String PREFERENCES = "fleet";
+    private static final String KEY_ADDRESSES = "addresses";
+
+    // Closest first, by path loss of the smoothed signal.  Collections.sort is stable, so
+    // devices as close as each other keep the order they are shown in.
+    private static final Comparator<ScanRegistry.Result> BY_PROXIMITY =
+            new Comparator<ScanRegistry.Result>() {
+        @Override
+        public int compare(ScanRegistry.Result lhs, ScanRegistry.Result rhs) {
+            final int lhsLoss = lhs.getPathLoss();
+            final int rhsLoss = rhs.getPathLoss();
+            return lhsLoss < rhsLoss ? -1 : (lhsLoss == rhsLoss ? 0 : 1);
+        }
+    };
+
+    private final Runnable mListUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mLeDeviceListAdapter.update();
+            if (mScanning) {
+                mHandler.postDelayed(this, LIST_UPDATE_PERIOD);
+            }
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -76,6 +114,12 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+        mScanner = new LeScanner(mBluetoothAdapter, mHandler, mScanListener);
+        final Set<String> fleet = getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+                .getStringSet(KEY_ADDRESSES, null);
+        if (fleet != null) {
+            mFleet.addAll(fleet);
+        }
     }
 
     @Override
@@ -98,11 +142,11 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
-                scanLeDevice(true);
+                clearDevices();
+                startLeScan(LeScanner.MODE_DISCOVERY);
                 break;
             case R.id.menu_stop:
-                scanLeDevice(false);
+                stopLeScan();
                 break;
         }
         return true;
@@ -124,7 +168,7 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        startLeScan(mFleet.isEmpty() ? LeScanner.MODE_DISCOVERY : LeScanner.MODE_FLEET);
     }
 
     @Override
@@ -140,8 +184,14 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        scanLeDevice(false);
+        stopLeScan();
+        clearDevices();
+    }
+
+    private void clearDevices() {
+        mScanRegistry.clear();
         mLeDeviceListAdapter.clear();
+        mLeDeviceListAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -152,56 +202,119 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            stopLeScan();
+        }
+        if (mFleet.add(device.getAddress())) {
+            getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+                    .putStringSet(KEY_ADDRESSES, new HashSet<String>(mFleet))
+                    .apply();
         }
         startActivity(intent);
     }
 
-    private void scanLeDevice(final boolean enable) {
-        if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
+    private void startLeScan(int mode) {
+        // Stops scanning after a pre-defined scan period, or once the whole fleet was found.
+        mHandler.removeCallbacks(mStopScan);
+        mHandler.postDelayed(mStopScan, SCAN_PERIOD);
 
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
-        } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        mScanning = mScanner.start(mode, mFleet);
+        mHandler.removeCallbacks(mListUpdater);
+        if (mScanning) {
+            mHandler.postDelayed(mListUpdater, LIST_UPDATE_PERIOD);
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    private void stopLeScan() {
+        mScanning = false;
+        mScanner.stop();
+        mHandler.removeCallbacks(mStopScan);
+        mHandler.removeCallbacks(mListUpdater);
+        mLeDeviceListAdapter.update();
+        invalidateOptionsMenu();
+    }
+
+    private final Runnable mStopScan = new Runnable() {
+        @Override
+        public void run() {
+            stopLeScan();
+        }
+    };
+
+    // Adapter for holding devices found through scanning.  Follows mScanRegistry in batches:
+    // each update() takes the devices that changed since the previous one, sorts by
+    // proximity, and only lays out the list again if devices were added or moved.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private final ArrayList<ScanRegistry.Result> mLeDevices =
+                new ArrayList<ScanRegistry.Result>();
+        private final HashMap<String, ScanRegistry.Result> mLatest =
+                new HashMap<String, ScanRegistry.Result>();
+        private final ArrayList<ScanRegistry.Result> mChanges =
+                new ArrayList<ScanRegistry.Result>();
+        // The rows as shown before the current update.
+        private final ArrayList<ScanRegistry.Result> mShown =
+                new ArrayList<ScanRegistry.Result>();
+        private long mVersion;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        // Applies what mScanRegistry learned since the last call.
+        public void update() {
+            final long version = mScanRegistry.collectChanges(mVersion, mChanges);
+            if (version == mVersion) return;
+            mVersion = version;
+
+            mShown.addAll(mLeDevices);
+            for (int i = 0; i < mChanges.size(); i++) {
+                final ScanRegistry.Result result = mChanges.get(i);
+                if (mLatest.put(result.getAddress(), result) == null) {
+                    mLeDevices.add(result);
+                }
+            }
+            mChanges.clear();
+            for (int i = 0; i < mLeDevices.size(); i++) {
+                mLeDevices.set(i, mLatest.get(mLeDevices.get(i).getAddress()));
+            }
+            Collections.sort(mLeDevices, BY_PROXIMITY);
+
+            boolean moved = mLeDevices.size() != mShown.size();
+            for (int i = 0; !moved && i < mShown.size(); i++) {
+                moved = !mLeDevices.get(i).getAddress().equals(mShown.get(i).getAddress());
+            }
+            if (moved) {
+                notifyDataSetChanged();
+            } else {
+                rebindChangedRows();
+            }
+            mShown.clear();
+        }
+
+        // Binds the visible rows whose device changed, when no device moved.
+        private void rebindChangedRows() {
+            final ListView listView = getListView();
+            final int first = listView.getFirstVisiblePosition() - listView.getHeaderViewsCount();
+            for (int i = 0; i < listView.getChildCount(); i++) {
+                final int position = first + i;
+                if (position < 0 || position >= mLeDevices.size()) continue;
+                final ScanRegistry.Result result = mLeDevices.get(position);
+                if (result != mShown.get(position)) {
+                    bind((ViewHolder) listView.getChildAt(i).getTag(), result);
+                }
             }
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).getDevice();
         }
 
         public void clear() {
             mLeDevices.clear();
+            mLatest.clear();
+            mVersion = 0;
         }
 
         @Override
@@ -228,41 +341,56 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
+            bind(viewHolder, mLeDevices.get(i));
+            return view;
+        }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+        private void bind(ViewHolder viewHolder, ScanRegistry.Result result) {
+            final String deviceName = result.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
-
-            return view;
+            viewHolder.deviceAddress.setText(result.getAddress());
+            viewHolder.deviceRssi.setText(getString(R.string.rssi, result.getRssi()));
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    // Device scan callback.  Runs for every advertisement, so it only records the device;
+    // mListUpdater shows it.
+    private final LeScanner.Listener mScanListener = new LeScanner.Listener() {
+        @Override
+        public void onDevice(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mScanRegistry.update(device, rssi, scanRecord);
+        }
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onFleetFound() {
+            stopLeScan();
+        }
+
+        @Override
+        public void onFleetTimeout(Set<String> missing) {
+            // The rest are out of range or switched off; a manual scan can still look longer.
+            stopLeScan();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            stopLeScan();
+            Toast.makeText(DeviceScanActivity.this, R.string.scan_failed, Toast.LENGTH_SHORT)
+                    .show();
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
\ No newline at end of file
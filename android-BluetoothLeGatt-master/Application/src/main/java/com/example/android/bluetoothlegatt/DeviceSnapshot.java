@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * What the UI shows for one device: its latest reading and how many samples arrived in total.
+ * Immutable, so it can be handed from the worker thread to the main thread as is.
+ */
+public final class DeviceSnapshot {
+    private final String mAddress;
+    private final long mTimestamp;
+    private final int mHeartRate;
+    private final int mTemperature;
+    private final long mSequence;
+    private final String mText;
+    private final long mSampleCount;
+
+    DeviceSnapshot(String address, long timestamp, int heartRate, int temperature,
+                   long sequence, String text, long sampleCount) {
+        mAddress = address;
+        mTimestamp = timestamp;
+        mHeartRate = heartRate;
+        mTemperature = temperature;
+        mSequence = sequence;
+        mText = text;
+        mSampleCount = sampleCount;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Returns the wall-clock time of the latest sample, in milliseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the heart rate in beats per minute, or {@link SensorSample#NO_VALUE}.
+     */
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    /**
+     * Returns the temperature in hundredths of a degree Celsius, or
+     * {@link SensorSample#NO_VALUE}.
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Returns true if the latest sample decoded to a heart rate, a temperature or both.
+     */
+    public boolean hasReading() {
+        return mHeartRate != SensorSample.NO_VALUE || mTemperature != SensorSample.NO_VALUE;
+    }
+
+    /**
+     * Returns the latest payload as text, for values that could not be decoded.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * Returns the number of samples received from the device since the service started.
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+}
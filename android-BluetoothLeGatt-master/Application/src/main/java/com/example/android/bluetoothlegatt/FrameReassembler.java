@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Rebuilds sensor messages from the byte stream of a transparent UART bridge such as the HM-10.
+ * A message may be split across several notifications, and one notification may carry several
+ * messages, so bytes are accumulated in a ring buffer and complete frames are handed to a
+ * {@link Listener} as soon as their last byte arrives.
+ *
+ * <p>Frames are either terminated by one of a set of delimiter bytes or preceded by a 1 or 2 byte
+ * little-endian length.  Optionally the last bytes of every frame hold a CRC-8 or CRC-16 of the
+ * rest of the frame; frames that fail the check are counted and dropped.
+ *
+ * <p>Frames are passed as a window onto the ring buffer itself.  Only a frame that wraps around
+ * the end of the ring is copied, into a scratch buffer owned by the reassembler.  Instances are
+ * not thread safe.
+ */
+public class FrameReassembler {
+    public static final int CRC_NONE = 0;
+    public static final int CRC_8 = 1;
+    public static final int CRC_16 = 2;
+
+    /**
+     * Receives complete frames.  {@code buffer} is only valid until the callback returns.
+     */
+    public interface Listener {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * How frames are delimited on the wire.  Immutable.
+     */
+    public static final class Format {
+        public static final int DEFAULT_MAX_FRAME_LENGTH = 256;
+
+        final boolean[] mDelimiters;
+        final int mLengthFieldSize;
+        final int mCrc;
+        final int mMaxFrameLength;
+
+        private Format(boolean[] delimiters, int lengthFieldSize, int crc, int maxFrameLength) {
+            mDelimiters = delimiters;
+            mLengthFieldSize = lengthFieldSize;
+            mCrc = crc;
+            mMaxFrameLength = maxFrameLength;
+        }
+
+        /**
+         * Frames end at any of {@code delimiters}.  Empty frames, such as the gap in a CR LF
+         * pair, are skipped.
+         */
+        public static Format delimited(byte... delimiters) {
+            boolean[] table = new boolean[256];
+            for (byte delimiter : delimiters) {
+                table[delimiter & 0xff] = true;
+            }
+            return new Format(table, 0, CRC_NONE, DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        /**
+         * Each frame starts with its length, not counting the length field itself, as a
+         * little-endian integer of {@code fieldSize} bytes (1 or 2).
+         */
+        public static Format lengthPrefixed(int fieldSize) {
+            if (fieldSize != 1 && fieldSize != 2) {
+                throw new IllegalArgumentException("Length field must be 1 or 2 bytes");
+            }
+            return new Format(null, fieldSize, CRC_NONE, DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        /**
+         * Returns a copy that expects a {@link #CRC_8} or {@link #CRC_16} trailer, sent most
+         * significant byte first.
+         */
+        public Format withCrc(int crc) {
+            return new Format(mDelimiters, mLengthFieldSize, crc, mMaxFrameLength);
+        }
+
+        /**
+         * Returns a copy that discards frames longer than {@code maxFrameLength} bytes.
+         */
+        public Format withMaxFrameLength(int maxFrameLength) {
+            return new Format(mDelimiters, mLengthFieldSize, mCrc, maxFrameLength);
+        }
+
+        int crcLength() {
+            return mCrc == CRC_16 ? 2 : mCrc == CRC_8 ? 1 : 0;
+        }
+    }
+
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        // CRC-16/CCITT-FALSE, polynomial 0x1021.
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private final Format mFormat;
+    private final Listener mListener;
+    private final byte[] mRing;
+    private final int mMask;
+    private final byte[] mScratch;
+    // Absolute stream positions; indices into mRing are taken modulo its length.
+    private long mHead;
+    private long mTail;
+    private long mScan;
+    private boolean mDiscarding;
+
+    private long mFrameCount;
+    private long mCrcErrorCount;
+    private long mDroppedByteCount;
+
+    public FrameReassembler(Format format, Listener listener) {
+        mFormat = format;
+        mListener = listener;
+        int capacity = Integer.highestOneBit(
+                (format.mMaxFrameLength + format.mLengthFieldSize) * 2 + SensorSample.MAX_PAYLOAD);
+        mRing = new byte[capacity << 1];
+        mMask = mRing.length - 1;
+        mScratch = new byte[format.mMaxFrameLength + format.mLengthFieldSize];
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code data} to the stream and emits every frame they
+     * complete.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int free = mRing.length - (int) (mTail - mHead);
+            if (free == 0) {
+                // No frame fits in what is buffered, so it can never complete.  Start over.
+                mDroppedByteCount += mTail - mHead;
+                mHead = mTail;
+                mScan = mTail;
+                mDiscarding = mFormat.mDelimiters != null;
+                free = mRing.length;
+            }
+            int chunk = Math.min(free, length);
+            int index = (int) (mTail & mMask);
+            int first = Math.min(chunk, mRing.length - index);
+            System.arraycopy(data, offset, mRing, index, first);
+            System.arraycopy(data, offset + first, mRing, 0, chunk - first);
+            mTail += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (mFormat.mDelimiters != null) {
+                extractDelimited();
+            } else {
+                extractLengthPrefixed();
+            }
+        }
+    }
+
+    /**
+     * Discards any partial frame, for example after the link dropped.
+     */
+    public void reset() {
+        mHead = mTail;
+        mScan = mTail;
+        mDiscarding = false;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getCrcErrorCount() {
+        return mCrcErrorCount;
+    }
+
+    /**
+     * Returns the number of bytes thrown away because they did not form a valid frame.
+     */
+    public long getDroppedByteCount() {
+        return mDroppedByteCount;
+    }
+
+    private void extractDelimited() {
+        final boolean[] delimiters = mFormat.mDelimiters;
+        for (; mScan < mTail; mScan++) {
+            if (delimiters[mRing[(int) (mScan & mMask)] & 0xff]) {
+                int length = (int) (mScan - mHead);
+                if (mDiscarding) {
+                    mDroppedByteCount += length;
+                    mDiscarding = false;
+                } else if (length > 0) {
+                    emit(mHead, length);
+                }
+                mHead = mScan + 1;
+            } else if (mScan - mHead >= mFormat.mMaxFrameLength) {
+                // Too long to be a frame: drop it up to the next delimiter.
+                mDroppedByteCount += mScan - mHead;
+                mHead = mScan;
+                mDiscarding = true;
+            }
+        }
+    }
+
+    private void extractLengthPrefixed() {
+        final int fieldSize = mFormat.mLengthFieldSize;
+        while (mTail - mHead >= fieldSize) {
+            int length = mRing[(int) (mHead & mMask)] & 0xff;
+            if (fieldSize == 2) {
+                length |= (mRing[(int) ((mHead + 1) & mMask)] & 0xff) << 8;
+            }
+            if (length > mFormat.mMaxFrameLength || length < mFormat.crcLength()) {
+                // Not a plausible header; slide forward one byte to resynchronize.
+                mDroppedByteCount++;
+                mHead++;
+                continue;
+            }
+            if (mTail - mHead < fieldSize + length) {
+                return;
+            }
+            if (length > 0) {
+                emit(mHead + fieldSize, length);
+            }
+            mHead += fieldSize + length;
+        }
+    }
+
+    private void emit(long start, int length) {
+        final int crcLength = mFormat.crcLength();
+        final int payloadLength = length - crcLength;
+        if (crcLength > 0) {
+            if (payloadLength < 0 || !checkCrc(start, payloadLength, crcLength)) {
+                mCrcErrorCount++;
+                return;
+            }
+        }
+        mFrameCount++;
+        int index = (int) (start & mMask);
+        if (index + payloadLength <= mRing.length) {
+            mListener.onFrame(mRing, index, payloadLength);
+        } else {
+            int first = mRing.length - index;
+            System.arraycopy(mRing, index, mScratch, 0, first);
+            System.arraycopy(mRing, 0, mScratch, first, payloadLength - first);
+            mListener.onFrame(mScratch, 0, payloadLength);
+        }
+    }
+
+    private boolean checkCrc(long start, int payloadLength, int crcLength) {
+        int expected = 0;
+        for (int i = 0; i < crcLength; i++) {
+            expected = (expected << 8) | (mRing[(int) ((start + payloadLength + i) & mMask)] & 0xff);
+        }
+        int crc;
+        if (mFormat.mCrc == CRC_8) {
+            // CRC-8, polynomial 0x07.
+            crc = 0;
+            for (int i = 0; i < payloadLength; i++) {
+                crc ^= mRing[(int) ((start + i) & mMask)] & 0xff;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+                }
+            }
+        } else {
+            crc = 0xffff;
+            for (int i = 0; i < payloadLength; i++) {
+                int b = mRing[(int) ((start + i) & mMask)] & 0xff;
+                crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ b) & 0xff]) & 0xffff;
+            }
+        }
+        return crc == expected;
+    }
+}
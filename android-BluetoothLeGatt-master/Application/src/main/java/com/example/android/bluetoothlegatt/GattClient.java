@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+/**
+ * The part of {@code BluetoothGatt} that {@link GattConnection} and {@link GattOperationQueue}
+ * use.  {@link BluetoothGattClient} implements it on top of the Bluetooth stack; tests
+ * implement it on top of a simulated peripheral, so the code that drives a link can run in a
+ * plain JVM.
+ *
+ * <p>Methods mean what the {@code BluetoothGatt} methods of the same name mean.
+ */
+public interface GattClient {
+    /**
+     * The events of {@code BluetoothGattCallback}, reported with the client they happened on.
+     */
+    abstract class Callback {
+        public void onConnectionStateChange(GattClient client, int status, int newState) {
+        }
+
+        public void onServicesDiscovered(GattClient client, int status) {
+        }
+
+        public void onCharacteristicRead(GattClient client,
+                                         BluetoothGattCharacteristic characteristic, int status) {
+        }
+
+        public void onCharacteristicWrite(GattClient client,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+        }
+
+        public void onDescriptorRead(GattClient client, BluetoothGattDescriptor descriptor,
+                                     int status) {
+        }
+
+        public void onDescriptorWrite(GattClient client, BluetoothGattDescriptor descriptor,
+                                      int status) {
+        }
+
+        public void onCharacteristicChanged(GattClient client,
+                                            BluetoothGattCharacteristic characteristic) {
+        }
+
+        public void onMtuChanged(GattClient client, int mtu, int status) {
+        }
+    }
+
+    /**
+     * Opens clients, as {@code BluetoothDevice.connectGatt} does.
+     */
+    interface Factory {
+        /**
+         * Starts connecting to {@code address}.
+         *
+         * @return the client, or null if the device is unknown or the stack refused.
+         */
+        GattClient open(String address, boolean autoConnect, Callback callback);
+    }
+
+    boolean connect();
+
+    void disconnect();
+
+    void close();
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                          boolean enabled);
+
+    boolean requestMtu(int mtu);
+
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Clears the attribute cache the stack keeps for bonded devices, so the next discovery
+     * really goes over the air.
+     *
+     * @return false if the cache could not be cleared.
+     */
+    boolean refresh();
+}
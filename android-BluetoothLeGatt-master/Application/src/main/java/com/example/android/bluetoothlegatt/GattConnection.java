@@ -0,0 +1,714 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One GATT link to a single remote device.  Owns the {@link GattClient}, its connection
+ * state and the {@link GattOperationQueue} that serializes requests on it, and reports
+ * everything that happens on the link to a single {@link Listener}.
+ *
+ * <p>A link that drops without {@link #disconnect()} or {@link #close()} being called is brought
+ * back automatically as described by its {@link ReconnectPolicy}, and notifications that were
+ * enabled on it are enabled again once its services are ready.
+ */
+public class GattConnection {
+    private final static String TAG = GattConnection.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    // ATT MTU every link starts with, good for 20 byte notifications.
+    public static final int DEFAULT_MTU = 23;
+    // Requested in throughput mode.  247 lets a notification fill one LE Data Length Extension
+    // packet (251 bytes) without fragmentation.
+    public static final int THROUGHPUT_MTU = 247;
+    // After this long without data a streaming link drops back to its idle priority.
+    private static final long STREAM_IDLE_MS = 5000;
+
+    // The catch-all status Android reports for failed connects; the BluetoothGatt is unusable
+    // afterwards.
+    private static final int GATT_ERROR = 133;
+
+    private static final UUID UUID_SERVICE_CHANGED =
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Receives events for a connection.  Methods are called on the Binder thread that delivers
+     * {@code BluetoothGattCallback} events, except that the disconnect of a link taken down by
+     * {@link #close()} is reported on the thread that called it.
+     */
+    public interface Listener {
+        void onConnectionStateChanged(GattConnection connection, int state);
+
+        void onServicesDiscovered(GattConnection connection);
+
+        /**
+         * Called for both read responses and notifications.
+         */
+        void onDataAvailable(GattConnection connection,
+                             BluetoothGattCharacteristic characteristic);
+    }
+
+    private final String mAddress;
+    private final GattClient.Factory mClientFactory;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final GattOperationQueue mOperationQueue;
+    private final ThroughputMeter mThroughputMeter = new ThroughputMeter();
+    private final GattServiceCache mServiceCache;
+    private final AtomicInteger mConnectionState = new AtomicInteger(STATE_DISCONNECTED);
+    // UUIDs of the characteristics the app enabled notifications for.  Guarded by itself.
+    private final Set<UUID> mSubscriptions = new LinkedHashSet<UUID>();
+    private GattClient mGatt;
+    private volatile long mLastActivityTime;
+    private volatile long mLastDataTime;
+    private volatile boolean mThroughputMode;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile int mIdlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    // Latency bookkeeping, in elapsedRealtime() milliseconds.  -1 means not measured yet.
+    private volatile long mConnectStartTime = -1;
+    private volatile long mConnectToReadyMs = -1;
+    private volatile long mConnectToFirstSampleMs = -1;
+    private volatile boolean mAwaitingFirstSample;
+
+    private volatile ReconnectPolicy mReconnectPolicy = ReconnectPolicy.DEFAULT;
+    private volatile boolean mAutoReconnect = true;
+    // Set by disconnect() and close(): the app wants the link down, so it is not brought back.
+    private volatile boolean mStayDisconnected;
+    // Guarded by this.
+    private int mReconnectAttempt;
+    private long mDropTime = -1;
+    private long mTotalTimeToReconnectMs;
+    private volatile int mReconnectCount;
+    private volatile long mLastTimeToReconnectMs = -1;
+    private volatile int mGattErrorCount;
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onConnectTimeout();
+        }
+    };
+
+    // Drops a streaming link back to its idle priority once data stops arriving.
+    private final Runnable mStreamIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long quiet = SystemClock.elapsedRealtime() - mLastDataTime;
+            if (quiet >= STREAM_IDLE_MS) {
+                requestPriority(mIdlePriority);
+            } else {
+                mHandler.postDelayed(this, STREAM_IDLE_MS - quiet);
+            }
+        }
+    };
+
+    private final GattClient.Callback mGattCallback = new GattClient.Callback() {
+        @Override
+        public void onConnectionStateChange(GattClient gatt, int status, int newState) {
+            touch();
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mHandler.removeCallbacks(mConnectTimeout);
+                mConnectionState.set(STATE_CONNECTED);
+                onLinkUp();
+                mListener.onConnectionStateChanged(GattConnection.this, STATE_CONNECTED);
+                Log.i(TAG, "Connected to GATT server " + getAddress());
+                // A reused GattClient still holds the services found last time.  If they are
+                // what the cache says the device has, the handles are still valid and discovery
+                // can be skipped.
+                if (mServiceCache.matches(getAddress(), gatt.getServices())) {
+                    Log.i(TAG, "Attribute table unchanged, skipping service discovery.");
+                    // The device forgets the subscription on disconnect unless it is bonded.
+                    subscribeServiceChanged(gatt);
+                    onServicesReady(gatt);
+                } else {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery.");
+                    mOperationQueue.enqueue(GattOperation.discoverServices());
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mHandler.removeCallbacks(mConnectTimeout);
+                final int previous = mConnectionState.getAndSet(STATE_DISCONNECTED);
+                mOperationQueue.clear();
+                resetLinkParameters();
+                Log.i(TAG, "Disconnected from GATT server " + getAddress() + ", status "
+                        + status);
+                mListener.onConnectionStateChanged(GattConnection.this, STATE_DISCONNECTED);
+                onLinkDown(gatt, status, previous == STATE_CONNECTED);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(GattClient gatt, int status) {
+            touch();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mServiceCache.put(getAddress(), gatt.getServices());
+                subscribeServiceChanged(gatt);
+                onServicesReady(gatt);
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+            // Completed only now, so nothing queued behind the discovery runs before the
+            // services are known.
+            mOperationQueue.onOperationCompleted(GattOperation.SERVICE_DISCOVERY, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(GattClient gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            touch();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                onDataReceived(characteristic.getValue());
+                mListener.onDataAvailable(GattConnection.this, characteristic);
+            }
+            mOperationQueue.onOperationCompleted(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattClient gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            touch();
+            mOperationQueue.onOperationCompleted(characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorRead(GattClient gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            touch();
+            mOperationQueue.onOperationCompleted(descriptor, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(GattClient gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            touch();
+            mOperationQueue.onOperationCompleted(descriptor, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattClient gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            touch();
+            if (UUID_SERVICE_CHANGED.equals(characteristic.getUuid())) {
+                Log.i(TAG, "Service Changed on " + getAddress() + ", rediscovering.");
+                mServiceCache.invalidate(getAddress());
+                gatt.refresh();
+                mOperationQueue.enqueue(GattOperation.discoverServices());
+                return;
+            }
+            onDataReceived(characteristic.getValue());
+            mListener.onDataAvailable(GattConnection.this, characteristic);
+        }
+
+        @Override
+        public void onMtuChanged(GattClient gatt, int mtu, int status) {
+            touch();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+                Log.i(TAG, "MTU for " + getAddress() + " is now " + mtu);
+            }
+            mOperationQueue.onOperationCompleted(GattOperation.MTU_EXCHANGE, status);
+        }
+    };
+
+    GattConnection(String address, GattClient.Factory clientFactory, Handler handler,
+                   GattServiceCache serviceCache, Listener listener) {
+        mAddress = address;
+        mClientFactory = clientFactory;
+        mListener = listener;
+        mHandler = handler;
+        mServiceCache = serviceCache;
+        mOperationQueue = new GattOperationQueue(handler);
+        touch();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState.get();
+    }
+
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    public ThroughputMeter getThroughputMeter() {
+        return mThroughputMeter;
+    }
+
+    /**
+     * Returns the negotiated ATT MTU.  Notifications carry at most {@code getMtu() - 3} bytes.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Returns the {@code BluetoothGatt.CONNECTION_PRIORITY_*} value last requested.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Turns throughput mode on or off.  In throughput mode the link asks for a
+     * {@link #THROUGHPUT_MTU} byte MTU once services are discovered, switches to high connection
+     * priority while data is streaming and returns to the idle priority a few seconds after it
+     * stops.  Needs API 21; ignored on older releases.
+     */
+    public void setThroughputMode(boolean enabled) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Log.w(TAG, "Throughput mode requires API 21.");
+            return;
+        }
+        mThroughputMode = enabled;
+        if (mConnectionState.get() != STATE_CONNECTED) return;
+
+        if (enabled) {
+            if (mMtu == DEFAULT_MTU) {
+                requestMtu();
+            }
+        } else {
+            mHandler.removeCallbacks(mStreamIdleCheck);
+            requestPriority(mIdlePriority);
+        }
+    }
+
+    public boolean isThroughputMode() {
+        return mThroughputMode;
+    }
+
+    /**
+     * Sets the priority a link in throughput mode returns to when data stops, either
+     * {@code BluetoothGatt.CONNECTION_PRIORITY_BALANCED} (the default) or
+     * {@code BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER}.
+     */
+    public void setIdlePriority(int priority) {
+        mIdlePriority = priority;
+    }
+
+    /**
+     * Returns how long the last connect took to get from {@link #connect()} to services being
+     * usable, in milliseconds, or -1 if it has not got there yet.
+     */
+    public long getConnectToReadyMs() {
+        return mConnectToReadyMs;
+    }
+
+    /**
+     * Returns how long the last connect took to get from {@link #connect()} to the first value
+     * received from the device, in milliseconds, or -1 if nothing has arrived yet.
+     */
+    public long getConnectToFirstSampleMs() {
+        return mConnectToFirstSampleMs;
+    }
+
+    /**
+     * Turns automatic reconnection on (the default) or off.
+     */
+    public void setAutoReconnect(boolean enabled) {
+        mAutoReconnect = enabled;
+        if (!enabled) {
+            mHandler.removeCallbacks(mReconnect);
+        }
+    }
+
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Returns how many times the link came back on its own after dropping.
+     */
+    public int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Returns how long the link was down before its last automatic reconnect, in milliseconds,
+     * or -1 if it never reconnected.
+     */
+    public long getLastTimeToReconnectMs() {
+        return mLastTimeToReconnectMs;
+    }
+
+    public synchronized long getAverageTimeToReconnectMs() {
+        return mReconnectCount > 0 ? mTotalTimeToReconnectMs / mReconnectCount : -1;
+    }
+
+    /**
+     * Returns how many times the link failed with status 133.
+     */
+    public int getGattErrorCount() {
+        return mGattErrorCount;
+    }
+
+    /**
+     * Returns the time, in {@link SystemClock#elapsedRealtime()} milliseconds, of the last
+     * request or callback on this link.
+     */
+    public long getLastActivityTime() {
+        return mLastActivityTime;
+    }
+
+    /**
+     * Returns true if the link has no queued work and has been quiet for at least
+     * {@code idleTimeoutMs}, which makes it a candidate for eviction.
+     */
+    public boolean isIdle(long now, long idleTimeoutMs) {
+        return mConnectionState.get() != STATE_CONNECTING
+                && mOperationQueue.size() == 0
+                && now - mLastActivityTime >= idleTimeoutMs;
+    }
+
+    /**
+     * Returns true from {@link #connect()} until {@link #disconnect()} or {@link #close()}: while
+     * the link is up, coming up or being brought back.
+     */
+    public boolean isActive() {
+        return !mStayDisconnected;
+    }
+
+    /**
+     * Connects, or reconnects if the {@link GattClient} for this device is still open.
+     *
+     * @return true if the connection attempt was started.
+     */
+    public synchronized boolean connect() {
+        mStayDisconnected = false;
+        mHandler.removeCallbacks(mReconnect);
+        mReconnectAttempt = 0;
+        mDropTime = -1;
+        if (mConnectionState.get() != STATE_DISCONNECTED) {
+            // Already up, or an attempt is in flight.
+            touch();
+            return true;
+        }
+        startLatencyClock();
+        if (mGatt != null) {
+            Log.d(TAG, "Trying to use an existing GattClient for connection.");
+            return reuseGatt();
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        return openGatt(false);
+    }
+
+    /**
+     * Drops the link.  It stays down until {@link #connect()} is called again.
+     */
+    public synchronized void disconnect() {
+        mStayDisconnected = true;
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mConnectTimeout);
+        if (mGatt == null) {
+            return;
+        }
+        mGatt.disconnect();
+    }
+
+    /**
+     * Cancels queued work and releases the {@link GattClient}.  The connection can be reused
+     * afterwards by calling {@link #connect()} again.  No callback follows the release, so if
+     * the link was up the listener is told it is down from here.
+     */
+    public void close() {
+        final int previous;
+        synchronized (this) {
+            mStayDisconnected = true;
+            mHandler.removeCallbacks(mReconnect);
+            mHandler.removeCallbacks(mConnectTimeout);
+            previous = closeGatt();
+        }
+        if (previous == STATE_CONNECTED) {
+            resetLinkParameters();
+            Log.i(TAG, "Closed the link to " + getAddress());
+            mListener.onConnectionStateChanged(this, STATE_DISCONNECTED);
+        }
+    }
+
+    public GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        touch();
+        return mOperationQueue.enqueue(GattOperation.readCharacteristic(characteristic));
+    }
+
+    public GattOperation setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                       boolean enabled) {
+        touch();
+        synchronized (mSubscriptions) {
+            if (enabled) {
+                mSubscriptions.add(characteristic.getUuid());
+            } else {
+                mSubscriptions.remove(characteristic.getUuid());
+            }
+        }
+        return mOperationQueue.enqueue(GattOperation.setNotification(characteristic, enabled));
+    }
+
+    public synchronized List<BluetoothGattService> getServices() {
+        if (mGatt == null) return null;
+
+        return mGatt.getServices();
+    }
+
+    private void touch() {
+        mLastActivityTime = SystemClock.elapsedRealtime();
+    }
+
+    private void onServicesReady(GattClient gatt) {
+        mConnectToReadyMs = SystemClock.elapsedRealtime() - mConnectStartTime;
+        Log.i(TAG, "Services of " + getAddress() + " ready after " + mConnectToReadyMs + " ms");
+        // Queued ahead of anything the listener asks for, so notifications start at the
+        // larger MTU.
+        if (mThroughputMode) {
+            requestMtu();
+        }
+        restoreSubscriptions(gatt);
+        mListener.onServicesDiscovered(this);
+    }
+
+    /**
+     * Enables again the notifications the app had enabled before the link dropped.  The device
+     * forgets them on disconnect unless it is bonded.
+     */
+    private void restoreSubscriptions(GattClient gatt) {
+        final List<UUID> uuids;
+        synchronized (mSubscriptions) {
+            if (mSubscriptions.isEmpty()) return;
+            uuids = new ArrayList<UUID>(mSubscriptions);
+        }
+        for (BluetoothGattService service : gatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (uuids.contains(characteristic.getUuid())) {
+                    mOperationQueue.enqueue(GattOperation.setNotification(characteristic, true));
+                }
+            }
+        }
+    }
+
+    private void startLatencyClock() {
+        touch();
+        mConnectStartTime = mLastActivityTime;
+        mConnectToReadyMs = -1;
+        mConnectToFirstSampleMs = -1;
+        mAwaitingFirstSample = true;
+    }
+
+    private boolean openGatt(boolean autoConnect) {
+        mGatt = mClientFactory.open(mAddress, autoConnect, mGattCallback);
+        if (mGatt == null) {
+            return false;
+        }
+        Log.d(TAG, "Trying to create a new connection, autoConnect " + autoConnect);
+        mOperationQueue.setGattClient(mGatt);
+        mConnectionState.set(STATE_CONNECTING);
+        if (!autoConnect) {
+            mHandler.postDelayed(mConnectTimeout, mReconnectPolicy.getConnectTimeoutMs());
+        }
+        return true;
+    }
+
+    /**
+     * Reconnects through the existing {@link GattClient}.  The stack treats this as a
+     * background connection, and the services found on the earlier connection stay valid.
+     */
+    private boolean reuseGatt() {
+        if (!mConnectionState.compareAndSet(STATE_DISCONNECTED, STATE_CONNECTING)) {
+            return true;
+        }
+        if (mGatt.connect()) {
+            return true;
+        }
+        mConnectionState.set(STATE_DISCONNECTED);
+        return false;
+    }
+
+    // Returns the state the link was in.
+    private int closeGatt() {
+        if (mGatt == null) {
+            return mConnectionState.get();
+        }
+        mOperationQueue.setGattClient(null);
+        mGatt.close();
+        mGatt = null;
+        return mConnectionState.getAndSet(STATE_DISCONNECTED);
+    }
+
+    private synchronized void onLinkUp() {
+        if (mDropTime >= 0) {
+            final long downTime = SystemClock.elapsedRealtime() - mDropTime;
+            mLastTimeToReconnectMs = downTime;
+            mTotalTimeToReconnectMs += downTime;
+            mReconnectCount++;
+            Log.i(TAG, getAddress() + " reconnected after " + downTime + " ms, attempt "
+                    + mReconnectAttempt);
+        }
+        mDropTime = -1;
+        mReconnectAttempt = 0;
+    }
+
+    private synchronized void onLinkDown(GattClient gatt, int status, boolean wasConnected) {
+        if (gatt != mGatt) {
+            // A late callback for a GattClient that has been replaced.
+            return;
+        }
+        if (status == GATT_ERROR) {
+            mGattErrorCount++;
+            Log.w(TAG, "GATT error 133 on " + getAddress() + ", recreating the connection.");
+            closeGatt();
+        }
+        if (mStayDisconnected || !mAutoReconnect) return;
+
+        if (wasConnected) {
+            mDropTime = SystemClock.elapsedRealtime();
+        }
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        mReconnectAttempt++;
+        final long delay = mReconnectPolicy.getDelayMs(mReconnectAttempt);
+        Log.d(TAG, "Reconnecting to " + getAddress() + " in " + delay + " ms, attempt "
+                + mReconnectAttempt);
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.postDelayed(mReconnect, delay);
+    }
+
+    private synchronized void reconnect() {
+        if (mStayDisconnected || mConnectionState.get() != STATE_DISCONNECTED) return;
+
+        startLatencyClock();
+        if (mReconnectPolicy.useAutoConnect(mReconnectAttempt)) {
+            // Out of direct attempts: leave a background connection pending, which costs
+            // next to nothing and completes as soon as the device advertises again.
+            if (mGatt != null) {
+                if (reuseGatt()) return;
+                closeGatt();
+            }
+            if (!openGatt(true)) {
+                scheduleReconnect();
+            }
+        } else if (mGatt != null && mReconnectAttempt <= 1) {
+            // The first attempt goes through the existing GattClient, whose services stay
+            // valid, so the service cache spares a discovery.  It is a background connection,
+            // so it gets the connect timeout too; a timeout or 133 closes the client.
+            if (reuseGatt()) {
+                mHandler.postDelayed(mConnectTimeout, mReconnectPolicy.getConnectTimeoutMs());
+            } else {
+                closeGatt();
+                scheduleReconnect();
+            }
+        } else {
+            // Later ones connect directly, which needs a GattClient of its own; connect() on
+            // an existing one is always a background connection.
+            closeGatt();
+            if (!openGatt(false)) {
+                scheduleReconnect();
+            }
+        }
+    }
+
+    private synchronized void onConnectTimeout() {
+        if (!mConnectionState.compareAndSet(STATE_CONNECTING, STATE_DISCONNECTED)) return;
+
+        Log.w(TAG, "Connection to " + getAddress() + " timed out.");
+        // No callback follows close(), so this is the end of the attempt.
+        closeGatt();
+        if (!mStayDisconnected && mAutoReconnect) {
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Asks for Service Changed indications, so a firmware update on the device invalidates
+     * the cached attribute table.
+     */
+    private void subscribeServiceChanged(GattClient gatt) {
+        for (BluetoothGattService service : gatt.getServices()) {
+            BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristic(UUID_SERVICE_CHANGED);
+            if (characteristic != null) {
+                mOperationQueue.enqueue(GattOperation.setNotification(characteristic, true));
+                return;
+            }
+        }
+    }
+
+    private void onDataReceived(byte[] value) {
+        final long now = SystemClock.elapsedRealtime();
+        mLastDataTime = now;
+        if (mAwaitingFirstSample) {
+            mAwaitingFirstSample = false;
+            mConnectToFirstSampleMs = now - mConnectStartTime;
+            Log.i(TAG, "First sample from " + getAddress() + " after "
+                    + mConnectToFirstSampleMs + " ms");
+        }
+        mThroughputMeter.add(value != null ? value.length : 0, now);
+        if (mThroughputMode
+                && mConnectionPriority != BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            requestPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            mHandler.postDelayed(mStreamIdleCheck, STREAM_IDLE_MS);
+        }
+    }
+
+    private void requestMtu() {
+        mOperationQueue.enqueue(GattOperation.requestMtu(THROUGHPUT_MTU));
+    }
+
+    private void requestPriority(int priority) {
+        if (mConnectionPriority == priority) return;
+        mConnectionPriority = priority;
+        mOperationQueue.enqueue(GattOperation.requestConnectionPriority(priority));
+    }
+
+    private void resetLinkParameters() {
+        mHandler.removeCallbacks(mStreamIdleCheck);
+        mMtu = DEFAULT_MTU;
+        mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        mThroughputMeter.reset();
+    }
+}
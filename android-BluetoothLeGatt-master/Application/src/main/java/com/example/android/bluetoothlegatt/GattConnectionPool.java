@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps one {@link GattConnection} per device address so several sensors can be served at
+ * once.  The number of concurrent links is capped; when a new device needs a slot the least
+ * recently used idle link is closed to make room, which listeners see as that link
+ * disconnecting.
+ *
+ * <p>Events from every connection go to the pool-wide listener given at construction time, and
+ * additionally to any listener subscribed to that particular address with
+ * {@link #registerListener(String, GattConnection.Listener)}.
+ */
+public class GattConnectionPool implements GattConnection.Listener {
+    private final static String TAG = GattConnectionPool.class.getSimpleName();
+
+    // Most controllers handle 7-8 simultaneous LE links; some go as high as 15.
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    // A link with no traffic for this long may be evicted to make room for a new device.
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+    private final GattClient.Factory mClientFactory;
+    private final Handler mHandler;
+    private final GattConnection.Listener mListener;
+    private final GattServiceCache mServiceCache;
+    // Access-ordered, so iteration starts at the least recently used connection.
+    private final LinkedHashMap<String, GattConnection> mConnections =
+            new LinkedHashMap<String, GattConnection>(16, 0.75f, true);
+    private final Map<String, CopyOnWriteArrayList<GattConnection.Listener>> mDeviceListeners =
+            new HashMap<String, CopyOnWriteArrayList<GattConnection.Listener>>();
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    public GattConnectionPool(Context context, BluetoothAdapter adapter, Handler handler,
+                              GattConnection.Listener listener) {
+        this(new BluetoothGattClient.Factory(context, adapter),
+                new GattServiceCache(new File(context.getFilesDir(), "gatt_cache")), handler,
+                listener);
+    }
+
+    GattConnectionPool(GattClient.Factory clientFactory, GattServiceCache serviceCache,
+                       Handler handler, GattConnection.Listener listener) {
+        mClientFactory = clientFactory;
+        mServiceCache = serviceCache;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the attribute tables remembered from earlier connections.
+     */
+    public GattServiceCache getServiceCache() {
+        return mServiceCache;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public synchronized void setIdleTimeoutMs(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Returns the connection for {@code address} without creating one, or null.
+     */
+    public synchronized GattConnection get(String address) {
+        return mConnections.get(address);
+    }
+
+    public synchronized List<GattConnection> getConnections() {
+        return new ArrayList<GattConnection>(mConnections.values());
+    }
+
+    /**
+     * Returns the number of links that are up or wanted up, see {@link GattConnection#isActive()}.
+     */
+    public synchronized int getActiveCount() {
+        int count = 0;
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.isActive()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Connects to {@code address}, reusing the existing link for that device if there is one.
+     *
+     * @return the connection, or null if the device is unknown or no slot could be freed.
+     */
+    public GattConnection connect(String address) {
+        GattConnection connection;
+        GattConnection evicted = null;
+        synchronized (this) {
+            connection = mConnections.get(address);
+            if (connection == null) {
+                if (mConnections.size() >= mMaxConnections) {
+                    evicted = evictIdleLocked();
+                    if (evicted == null) {
+                        Log.w(TAG, "Connection limit of " + mMaxConnections + " reached.");
+                        return null;
+                    }
+                }
+                connection = new GattConnection(address, mClientFactory, mHandler,
+                        mServiceCache, this);
+                mConnections.put(address, connection);
+            }
+        }
+        if (evicted != null) {
+            Log.i(TAG, "Evicting idle connection " + evicted.getAddress());
+            evicted.close();
+        }
+        return connection.connect() ? connection : null;
+    }
+
+    public void disconnect(String address) {
+        GattConnection connection = get(address);
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Closes the link to {@code address} and forgets it.
+     */
+    public void close(String address) {
+        GattConnection connection;
+        synchronized (this) {
+            connection = mConnections.remove(address);
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes every link.  Per-device listeners stay registered.
+     */
+    public void closeAll() {
+        List<GattConnection> connections;
+        synchronized (this) {
+            connections = new ArrayList<GattConnection>(mConnections.values());
+            mConnections.clear();
+        }
+        for (GattConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Subscribes {@code listener} to events from {@code address} only.  The subscription can be
+     * made before the device is connected.
+     */
+    public synchronized void registerListener(String address, GattConnection.Listener listener) {
+        CopyOnWriteArrayList<GattConnection.Listener> listeners = mDeviceListeners.get(address);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList<GattConnection.Listener>();
+            mDeviceListeners.put(address, listeners);
+        }
+        listeners.addIfAbsent(listener);
+    }
+
+    public synchronized void unregisterListener(String address, GattConnection.Listener listener) {
+        CopyOnWriteArrayList<GattConnection.Listener> listeners = mDeviceListeners.get(address);
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                mDeviceListeners.remove(address);
+            }
+        }
+    }
+
+    @Override
+    public void onConnectionStateChanged(GattConnection connection, int state) {
+        mListener.onConnectionStateChanged(connection, state);
+        List<GattConnection.Listener> listeners = listenersFor(connection);
+        if (listeners == null) return;
+        for (GattConnection.Listener listener : listeners) {
+            listener.onConnectionStateChanged(connection, state);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(GattConnection connection) {
+        mListener.onServicesDiscovered(connection);
+        List<GattConnection.Listener> listeners = listenersFor(connection);
+        if (listeners == null) return;
+        for (GattConnection.Listener listener : listeners) {
+            listener.onServicesDiscovered(connection);
+        }
+    }
+
+    @Override
+    public void onDataAvailable(GattConnection connection,
+                                BluetoothGattCharacteristic characteristic) {
+        mListener.onDataAvailable(connection, characteristic);
+        List<GattConnection.Listener> listeners = listenersFor(connection);
+        if (listeners == null) return;
+        for (GattConnection.Listener listener : listeners) {
+            listener.onDataAvailable(connection, characteristic);
+        }
+    }
+
+    private synchronized List<GattConnection.Listener> listenersFor(GattConnection connection) {
+        return mDeviceListeners.get(connection.getAddress());
+    }
+
+    private GattConnection evictIdleLocked() {
+        final long now = SystemClock.elapsedRealtime();
+        Iterator<GattConnection> it = mConnections.values().iterator();
+        while (it.hasNext()) {
+            GattConnection connection = it.next();
+            if (connection.isIdle(now, mIdleTimeoutMs)) {
+                it.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+}
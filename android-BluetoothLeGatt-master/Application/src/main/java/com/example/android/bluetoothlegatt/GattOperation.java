@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single GATT request that is executed by a {@link GattOperationQueue}.  Android only allows
+ * one outstanding request per {@code BluetoothGatt}, so every read and write is wrapped in one of
+ * these and started only when the previous one has been acknowledged by the matching
+ * {@code BluetoothGattCallback} method.
+ *
+ * <p>An operation doubles as a completion future: callers may register a {@link Callback} or
+ * block on {@link #await(long)} until the queue reports a final status.
+ */
+public abstract class GattOperation {
+    public static final int TYPE_READ_CHARACTERISTIC = 0;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    public static final int TYPE_READ_DESCRIPTOR = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+    public static final int TYPE_CONNECTION_PRIORITY = 5;
+    public static final int TYPE_DISCOVER_SERVICES = 6;
+
+    // Statuses reported in addition to the BluetoothGatt.GATT_* values.
+    public static final int STATUS_PENDING = -1;
+    public static final int STATUS_TIMEOUT = -2;
+    public static final int STATUS_CANCELLED = -3;
+    public static final int STATUS_START_FAILED = -4;
+
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    // Discovery reads the whole attribute table, which takes seconds on a slow link.
+    public static final long DISCOVERY_TIMEOUT_MS = 10000;
+
+    // Passed to GattOperationQueue#onOperationCompleted from onMtuChanged, which has no
+    // characteristic or descriptor to match on.
+    static final Object MTU_EXCHANGE = new Object();
+    // Passed from onServicesDiscovered, likewise.
+    static final Object SERVICE_DISCOVERY = new Object();
+
+    /**
+     * Notified once, on the thread that completed the operation, when a final status is known.
+     */
+    public interface Callback {
+        void onOperationComplete(GattOperation operation, int status);
+    }
+
+    private final int mType;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<Callback> mCallbacks = new ArrayList<Callback>(1);
+    private volatile int mStatus = STATUS_PENDING;
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    // Bookkeeping owned by GattOperationQueue and guarded by its lock.
+    int mAttempts;
+    int mResult = STATUS_PENDING;
+
+    protected GattOperation(int type) {
+        mType = type;
+    }
+
+    /**
+     * Issues the request on {@code client}.
+     *
+     * @return true if the stack accepted the request and a callback is now pending.
+     */
+    abstract boolean execute(GattClient client);
+
+    /**
+     * Returns true if {@code attribute} is the characteristic or descriptor this operation is
+     * waiting on.  Used to match callbacks to the in-flight operation.
+     */
+    abstract boolean matches(Object attribute);
+
+    /**
+     * Returns true if this operation is considered complete as soon as {@link #execute} succeeds,
+     * for example a write without response that never produces an acknowledgement.
+     */
+    boolean completesOnStart() {
+        return false;
+    }
+
+    /**
+     * Returns true if {@code other} would produce exactly the same result as this operation, in
+     * which case the queue folds it into this one instead of sending it twice.
+     */
+    boolean isDuplicateOf(GattOperation other) {
+        return false;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public boolean isDone() {
+        return mStatus != STATUS_PENDING;
+    }
+
+    public boolean isSuccessful() {
+        return mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    public GattOperation setTimeoutMs(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    public GattOperation setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Registers a completion callback.  If the operation has already finished the callback is
+     * invoked immediately on the calling thread.
+     */
+    public GattOperation addCallback(Callback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        callback.onOperationComplete(this, mStatus);
+        return this;
+    }
+
+    /**
+     * Blocks until the operation completes.  Must not be called on the thread that delivers
+     * {@code BluetoothGattCallback} events.
+     *
+     * @return the final status, or {@link #STATUS_PENDING} if {@code timeoutMs} elapsed first.
+     */
+    public int await(long timeoutMs) throws InterruptedException {
+        mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+        return mStatus;
+    }
+
+    void complete(int status) {
+        synchronized (this) {
+            if (isDone()) return;
+            mStatus = status;
+        }
+        mDone.countDown();
+        for (int i = 0; i < mCallbacks.size(); i++) {
+            mCallbacks.get(i).onOperationComplete(this, status);
+        }
+    }
+
+    public static GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return new ReadCharacteristic(characteristic);
+    }
+
+    public static GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic,
+                                                    byte[] value) {
+        return new WriteCharacteristic(characteristic, value);
+    }
+
+    public static GattOperation readDescriptor(BluetoothGattDescriptor descriptor) {
+        return new ReadDescriptor(descriptor);
+    }
+
+    public static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor,
+                                                byte[] value) {
+        return new WriteDescriptor(descriptor, value);
+    }
+
+    /**
+     * Enables or disables notifications locally and, if the characteristic has a Client
+     * Characteristic Configuration descriptor, writes it so the peripheral starts sending.
+     */
+    public static GattOperation setNotification(BluetoothGattCharacteristic characteristic,
+                                                boolean enabled) {
+        return new SetNotification(characteristic, enabled);
+    }
+
+    /**
+     * Discovers the services of the peripheral.  Completes from {@code onServicesDiscovered},
+     * once the services are available from {@link GattClient#getServices()}.
+     */
+    public static GattOperation discoverServices() {
+        return new DiscoverServices();
+    }
+
+    /**
+     * Asks the peripheral for a larger ATT MTU.  Requires API 21.
+     */
+    public static GattOperation requestMtu(int mtu) {
+        return new RequestMtu(mtu);
+    }
+
+    /**
+     * Requests one of the {@code BluetoothGatt.CONNECTION_PRIORITY_*} connection parameter
+     * sets.  Requires API 21.
+     */
+    public static GattOperation requestConnectionPriority(int priority) {
+        return new RequestConnectionPriority(priority);
+    }
+
+    private static class ReadCharacteristic extends GattOperation {
+        final BluetoothGattCharacteristic mCharacteristic;
+
+        ReadCharacteristic(BluetoothGattCharacteristic characteristic) {
+            super(TYPE_READ_CHARACTERISTIC);
+            mCharacteristic = characteristic;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            return client.readCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == mCharacteristic;
+        }
+
+        @Override
+        boolean isDuplicateOf(GattOperation other) {
+            return other instanceof ReadCharacteristic
+                    && ((ReadCharacteristic) other).mCharacteristic == mCharacteristic;
+        }
+    }
+
+    private static class WriteCharacteristic extends GattOperation {
+        final BluetoothGattCharacteristic mCharacteristic;
+        final byte[] mValue;
+
+        WriteCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+            super(TYPE_WRITE_CHARACTERISTIC);
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            mCharacteristic.setValue(mValue);
+            return client.writeCharacteristic(mCharacteristic);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == mCharacteristic;
+        }
+
+        @Override
+        boolean completesOnStart() {
+            // Writes without response are buffered by the stack and never acknowledged, so
+            // the next operation can be issued straight away.
+            return mCharacteristic.getWriteType()
+                    == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+    }
+
+    private static class ReadDescriptor extends GattOperation {
+        final BluetoothGattDescriptor mDescriptor;
+
+        ReadDescriptor(BluetoothGattDescriptor descriptor) {
+            super(TYPE_READ_DESCRIPTOR);
+            mDescriptor = descriptor;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            return client.readDescriptor(mDescriptor);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == mDescriptor;
+        }
+
+        @Override
+        boolean isDuplicateOf(GattOperation other) {
+            return other instanceof ReadDescriptor
+                    && ((ReadDescriptor) other).mDescriptor == mDescriptor;
+        }
+    }
+
+    private static class WriteDescriptor extends GattOperation {
+        final BluetoothGattDescriptor mDescriptor;
+        final byte[] mValue;
+
+        WriteDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+            super(TYPE_WRITE_DESCRIPTOR);
+            mDescriptor = descriptor;
+            mValue = value;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            mDescriptor.setValue(mValue);
+            return client.writeDescriptor(mDescriptor);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == mDescriptor;
+        }
+    }
+
+    private static class SetNotification extends GattOperation {
+        private static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+                UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+        final BluetoothGattCharacteristic mCharacteristic;
+        final BluetoothGattDescriptor mDescriptor;
+        final boolean mEnabled;
+
+        SetNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
+            super(TYPE_WRITE_DESCRIPTOR);
+            mCharacteristic = characteristic;
+            mDescriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+            mEnabled = enabled;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            if (!client.setCharacteristicNotification(mCharacteristic, mEnabled)) {
+                return false;
+            }
+            if (mDescriptor == null) {
+                return true;
+            }
+            if (!mEnabled) {
+                mDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            } else if ((mCharacteristic.getProperties()
+                    & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            } else {
+                mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            }
+            return client.writeDescriptor(mDescriptor);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == mDescriptor;
+        }
+
+        @Override
+        boolean completesOnStart() {
+            // Without a CCCD there is nothing to write; the local registration is enough.
+            return mDescriptor == null;
+        }
+    }
+
+    private static class DiscoverServices extends GattOperation {
+        DiscoverServices() {
+            super(TYPE_DISCOVER_SERVICES);
+            setTimeoutMs(DISCOVERY_TIMEOUT_MS);
+            setMaxRetries(1);
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            return client.discoverServices();
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == SERVICE_DISCOVERY;
+        }
+
+        @Override
+        boolean isDuplicateOf(GattOperation other) {
+            return other instanceof DiscoverServices;
+        }
+    }
+
+    private static class RequestMtu extends GattOperation {
+        final int mMtu;
+
+        RequestMtu(int mtu) {
+            super(TYPE_REQUEST_MTU);
+            mMtu = mtu;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            return client.requestMtu(mMtu);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return attribute == MTU_EXCHANGE;
+        }
+    }
+
+    private static class RequestConnectionPriority extends GattOperation {
+        final int mPriority;
+
+        RequestConnectionPriority(int priority) {
+            super(TYPE_CONNECTION_PRIORITY);
+            mPriority = priority;
+        }
+
+        @Override
+        boolean execute(GattClient client) {
+            return client.requestConnectionPriority(mPriority);
+        }
+
+        @Override
+        boolean matches(Object attribute) {
+            return false;
+        }
+
+        @Override
+        boolean completesOnStart() {
+            // The connection update is not reported back through BluetoothGattCallback.
+            return true;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Serializes {@link GattOperation}s for one {@link GattClient} connection.
+ *
+ * <p>Only one operation is in flight at a time.  The next one is issued directly from the
+ * {@code BluetoothGattCallback} that acknowledges the current one, before any completion
+ * callbacks run, so the link is never left idle while the app processes a result.  Operations
+ * that time out, fail to start or come back with {@link #GATT_ERROR} are retried up to their
+ * {@link GattOperation#getMaxRetries()} limit.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    // Generic stack error (0x85) that Android reports when the controller is busy or the link
+    // is flaky; the same request usually succeeds a moment later.
+    public static final int GATT_ERROR = 133;
+
+    // Delay before re-issuing an operation the stack refused to start.
+    private static final long RETRY_DELAY_MS = 50;
+
+    private final Handler mHandler;
+    private final ArrayDeque<GattOperation> mPending = new ArrayDeque<GattOperation>();
+    private GattClient mClient;
+    private GattOperation mCurrent;
+    private long mCompletedCount;
+    private long mFailedCount;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<GattOperation> finished = new ArrayList<GattOperation>();
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) return;
+                Log.w(TAG, "GATT operation timed out, type=" + mCurrent.getType());
+                finishCurrentLocked(GattOperation.STATUS_TIMEOUT, finished);
+                startNextLocked(finished);
+            }
+            deliver(finished);
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<GattOperation> finished = new ArrayList<GattOperation>();
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) {
+                    startNextLocked(finished);
+                }
+            }
+            deliver(finished);
+        }
+    };
+
+    /**
+     * @param handler Handler used for timeouts and delayed retries.  Without one, as in the
+     *                benchmarks, nothing times out and a refused start is retried at once.
+     */
+    public GattOperationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Binds the queue to a connection.  Passing {@code null} cancels everything that is queued.
+     */
+    public void setGattClient(GattClient client) {
+        synchronized (this) {
+            mClient = client;
+        }
+        if (client == null) {
+            clear();
+        }
+    }
+
+    /**
+     * Queues {@code operation} and starts it immediately if the link is idle.
+     *
+     * @return the operation that will carry the result.  If an equivalent operation is already
+     *         waiting, that one is returned and {@code operation} is dropped.
+     */
+    public GattOperation enqueue(GattOperation operation) {
+        List<GattOperation> finished = new ArrayList<GattOperation>();
+        GattOperation result = operation;
+        synchronized (this) {
+            if (mClient == null) {
+                Log.w(TAG, "GattClient not set, dropping operation.");
+                operation.mResult = GattOperation.STATUS_CANCELLED;
+                finished.add(operation);
+            } else {
+                GattOperation duplicate = findDuplicateLocked(operation);
+                if (duplicate != null) {
+                    result = duplicate;
+                } else {
+                    mPending.add(operation);
+                    if (mCurrent == null) {
+                        startNextLocked(finished);
+                    }
+                }
+            }
+        }
+        deliver(finished);
+        return result;
+    }
+
+    /**
+     * Reports a completion callback for {@code attribute}, the characteristic or descriptor
+     * passed to the {@code BluetoothGattCallback} method.
+     */
+    public void onOperationCompleted(Object attribute, int status) {
+        List<GattOperation> finished = new ArrayList<GattOperation>();
+        synchronized (this) {
+            if (mCurrent == null || !mCurrent.matches(attribute)) {
+                Log.d(TAG, "Ignoring completion that does not match the pending operation.");
+                return;
+            }
+            removeCallbacks(mTimeoutRunnable);
+            finishCurrentLocked(status, finished);
+            startNextLocked(finished);
+        }
+        deliver(finished);
+    }
+
+    /**
+     * Cancels the in-flight operation and everything that is queued behind it.
+     */
+    public void clear() {
+        List<GattOperation> cancelled = new ArrayList<GattOperation>();
+        synchronized (this) {
+            removeCallbacks(mTimeoutRunnable);
+            removeCallbacks(mRetryRunnable);
+            if (mCurrent != null) {
+                cancelled.add(mCurrent);
+                mCurrent = null;
+            }
+            cancelled.addAll(mPending);
+            mPending.clear();
+        }
+        for (GattOperation operation : cancelled) {
+            operation.complete(GattOperation.STATUS_CANCELLED);
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of operations that completed successfully since the queue was created.
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * Returns the number of operations that failed after exhausting their retries.
+     */
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    private GattOperation findDuplicateLocked(GattOperation operation) {
+        Iterator<GattOperation> it = mPending.iterator();
+        while (it.hasNext()) {
+            GattOperation queued = it.next();
+            if (operation.isDuplicateOf(queued)) {
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    private void finishCurrentLocked(int status, List<GattOperation> finished) {
+        GattOperation operation = mCurrent;
+        mCurrent = null;
+        boolean retryable = status == GattOperation.STATUS_TIMEOUT || status == GATT_ERROR;
+        if (retryable && operation.mAttempts <= operation.getMaxRetries()) {
+            Log.d(TAG, "Retrying GATT operation, status=" + status);
+            mPending.addFirst(operation);
+            return;
+        }
+        setResultLocked(operation, status);
+        finished.add(operation);
+    }
+
+    private void setResultLocked(GattOperation operation, int status) {
+        operation.mResult = status;
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mCompletedCount++;
+        } else {
+            mFailedCount++;
+        }
+    }
+
+    // Issues queued operations until one is waiting on a callback.  Operations that complete
+    // as soon as they start are collected in |finished| and the loop carries on with the next.
+    private void startNextLocked(List<GattOperation> finished) {
+        while (mCurrent == null && mClient != null) {
+            GattOperation operation = mPending.poll();
+            if (operation == null) return;
+            operation.mAttempts++;
+            if (operation.execute(mClient)) {
+                if (operation.completesOnStart()) {
+                    setResultLocked(operation, BluetoothGatt.GATT_SUCCESS);
+                    finished.add(operation);
+                    continue;
+                }
+                mCurrent = operation;
+                if (mHandler != null) {
+                    mHandler.postDelayed(mTimeoutRunnable, operation.getTimeoutMs());
+                }
+                return;
+            }
+            if (operation.mAttempts <= operation.getMaxRetries()) {
+                mPending.addFirst(operation);
+                if (mHandler == null) continue;
+                mHandler.postDelayed(mRetryRunnable, RETRY_DELAY_MS);
+                return;
+            }
+            Log.w(TAG, "Unable to start GATT operation, type=" + operation.getType());
+            setResultLocked(operation, GattOperation.STATUS_START_FAILED);
+            finished.add(operation);
+        }
+    }
+
+    private void removeCallbacks(Runnable runnable) {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
+
+    // Completion callbacks run outside the lock so they are free to enqueue follow-up work.
+    private static void deliver(List<GattOperation> finished) {
+        for (int i = 0; i < finished.size(); i++) {
+            GattOperation operation = finished.get(i);
+            operation.complete(operation.mResult);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Remembers the attribute table of every device the app has discovered, in memory and in a
+ * small binary file per device address, so reconnects do not have to pay for a full service
+ * discovery when nothing changed.
+ *
+ * <p>An entry holds each service and characteristic with its UUID, handle (instance id) and
+ * properties, plus a fingerprint of the whole table that a live {@code BluetoothGatt} can be
+ * checked against cheaply.  Entries are dropped when the device indicates Service Changed.
+ */
+public class GattServiceCache {
+    private final static String TAG = GattServiceCache.class.getSimpleName();
+
+    private static final int FILE_VERSION = 1;
+
+    public static class CachedCharacteristic {
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final int mProperties;
+
+        CachedCharacteristic(UUID uuid, int instanceId, int properties) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mProperties = properties;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public int getInstanceId() {
+            return mInstanceId;
+        }
+
+        public int getProperties() {
+            return mProperties;
+        }
+    }
+
+    public static class CachedService {
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final List<CachedCharacteristic> mCharacteristics;
+
+        CachedService(UUID uuid, int instanceId, List<CachedCharacteristic> characteristics) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mCharacteristics = Collections.unmodifiableList(characteristics);
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public int getInstanceId() {
+            return mInstanceId;
+        }
+
+        public List<CachedCharacteristic> getCharacteristics() {
+            return mCharacteristics;
+        }
+    }
+
+    public static class Entry {
+        private final long mFingerprint;
+        private final List<CachedService> mServices;
+
+        Entry(long fingerprint, List<CachedService> services) {
+            mFingerprint = fingerprint;
+            mServices = Collections.unmodifiableList(services);
+        }
+
+        public long getFingerprint() {
+            return mFingerprint;
+        }
+
+        public List<CachedService> getServices() {
+            return mServices;
+        }
+    }
+
+    private final File mDirectory;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * @param directory Where cache files are kept.  Created on first write.
+     */
+    public GattServiceCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the cached table for {@code address}, reading it from disk the first time, or null
+     * if the device has not been discovered yet.
+     */
+    public synchronized Entry get(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = read(fileFor(address));
+            if (entry != null) {
+                mEntries.put(address, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if {@code services} are exactly what was cached for {@code address}.
+     */
+    public boolean matches(String address, List<BluetoothGattService> services) {
+        Entry entry = get(address);
+        return entry != null && services != null && !services.isEmpty()
+                && entry.getFingerprint() == fingerprint(services);
+    }
+
+    /**
+     * Caches the freshly discovered {@code services} of {@code address}.
+     */
+    public synchronized void put(String address, List<BluetoothGattService> services) {
+        List<CachedService> cached = new ArrayList<CachedService>(services.size());
+        for (BluetoothGattService service : services) {
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            List<CachedCharacteristic> cachedCharacteristics =
+                    new ArrayList<CachedCharacteristic>(characteristics.size());
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                cachedCharacteristics.add(new CachedCharacteristic(characteristic.getUuid(),
+                        characteristic.getInstanceId(), characteristic.getProperties()));
+            }
+            cached.add(new CachedService(service.getUuid(), service.getInstanceId(),
+                    cachedCharacteristics));
+        }
+        Entry entry = new Entry(fingerprint(services), cached);
+        Entry previous = mEntries.put(address, entry);
+        if (previous == null || previous.getFingerprint() != entry.getFingerprint()) {
+            write(fileFor(address), entry);
+        }
+    }
+
+    /**
+     * Forgets everything known about {@code address}.
+     */
+    public synchronized void invalidate(String address) {
+        mEntries.remove(address);
+        File file = fileFor(address);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Hashes the UUID, handle and properties of every service and characteristic.
+     */
+    public static long fingerprint(List<BluetoothGattService> services) {
+        long hash = 1125899906842597L;
+        for (BluetoothGattService service : services) {
+            hash = mix(hash, service.getUuid().getMostSignificantBits());
+            hash = mix(hash, service.getUuid().getLeastSignificantBits());
+            hash = mix(hash, service.getInstanceId());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = mix(hash, characteristic.getUuid().getMostSignificantBits());
+                hash = mix(hash, characteristic.getUuid().getLeastSignificantBits());
+                hash = mix(hash, characteristic.getInstanceId());
+                hash = mix(hash, characteristic.getProperties());
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return 31 * hash + (value ^ (value >>> 32));
+    }
+
+    private File fileFor(String address) {
+        return new File(mDirectory, address.replace(':', '_') + ".gatt");
+    }
+
+    private static Entry read(File file) {
+        if (!file.exists()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) return null;
+
+            long fingerprint = in.readLong();
+            int serviceCount = in.readUnsignedShort();
+            List<CachedService> services = new ArrayList<CachedService>(serviceCount);
+            for (int i = 0; i < serviceCount; i++) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                int instanceId = in.readUnsignedShort();
+                int characteristicCount = in.readUnsignedShort();
+                List<CachedCharacteristic> characteristics =
+                        new ArrayList<CachedCharacteristic>(characteristicCount);
+                for (int j = 0; j < characteristicCount; j++) {
+                    characteristics.add(new CachedCharacteristic(
+                            new UUID(in.readLong(), in.readLong()),
+                            in.readUnsignedShort(), in.readUnsignedByte()));
+                }
+                services.add(new CachedService(uuid, instanceId, characteristics));
+            }
+            return new Entry(fingerprint, services);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable cache file " + file, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void write(File file, Entry entry) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        // Written to a temporary file first so a crash never leaves a truncated entry behind.
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(entry.getFingerprint());
+            out.writeShort(entry.getServices().size());
+            for (CachedService service : entry.getServices()) {
+                out.writeLong(service.getUuid().getMostSignificantBits());
+                out.writeLong(service.getUuid().getLeastSignificantBits());
+                out.writeShort(service.getInstanceId());
+                out.writeShort(service.getCharacteristics().size());
+                for (CachedCharacteristic characteristic : service.getCharacteristics()) {
+                    out.writeLong(characteristic.getUuid().getMostSignificantBits());
+                    out.writeLong(characteristic.getUuid().getLeastSignificantBits());
+                    out.writeShort(characteristic.getInstanceId());
+                    out.writeByte(characteristic.getProperties());
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Unable to write " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable snapshot of the services and characteristics of a device, with their display names
+ * already looked up, as shown by {@link GattTreeAdapter}.  Building one touches no views, so it
+ * can be done off the main thread.
+ *
+ * <p>Nodes are identified by UUID and instance id.  {@link Node#sameContent} tells whether a
+ * node would be shown the same way as another, so a new tree can be compared with the one on
+ * screen.
+ */
+public class GattTree {
+    public static final GattTree EMPTY = new GattTree(Collections.<Service>emptyList());
+
+    public static abstract class Node {
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final String mName;
+        // Stable across rebuilds of the same tree, for adapter ids.
+        private final long mId;
+
+        Node(UUID uuid, int instanceId, String name) {
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mName = name;
+            mId = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits()
+                    ^ ((long) instanceId << 48);
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public int getInstanceId() {
+            return mInstanceId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public boolean sameIdentity(Node other) {
+            return mInstanceId == other.mInstanceId && mUuid.equals(other.mUuid);
+        }
+
+        public boolean sameContent(Node other) {
+            return sameIdentity(other) && mName.equals(other.mName);
+        }
+    }
+
+    public static class Characteristic extends Node {
+        private final int mProperties;
+        private final BluetoothGattCharacteristic mCharacteristic;
+
+        Characteristic(BluetoothGattCharacteristic characteristic, String name) {
+            super(characteristic.getUuid(), characteristic.getInstanceId(), name);
+            mProperties = characteristic.getProperties();
+            mCharacteristic = characteristic;
+        }
+
+        public int getProperties() {
+            return mProperties;
+        }
+
+        /**
+         * Returns the characteristic of the connection the tree was built from.
+         */
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        @Override
+        public boolean sameContent(Node other) {
+            return super.sameContent(other)
+                    && mProperties == ((Characteristic) other).mProperties;
+        }
+    }
+
+    public static class Service extends Node {
+        private final List<Characteristic> mCharacteristics;
+
+        Service(BluetoothGattService service, String name,
+                List<Characteristic> characteristics) {
+            super(service.getUuid(), service.getInstanceId(), name);
+            mCharacteristics = Collections.unmodifiableList(characteristics);
+        }
+
+        public List<Characteristic> getCharacteristics() {
+            return mCharacteristics;
+        }
+    }
+
+    private final List<Service> mServices;
+
+    private GattTree(List<Service> services) {
+        mServices = services;
+    }
+
+    /**
+     * Builds a tree of the services of this application, from {@link SampleGattAttributes},
+     * and all of their characteristics.  May read the assigned numbers of {@code registry}, so
+     * call it off the main thread.
+     *
+     * @param unknownCharacteristic Name shown for characteristics without a known one.
+     */
+    public static GattTree build(List<BluetoothGattService> services, GattUuidRegistry registry,
+                                 String unknownCharacteristic) {
+        if (services == null || services.isEmpty()) return EMPTY;
+
+        final ArrayList<Service> nodes = new ArrayList<Service>(services.size());
+        for (BluetoothGattService service : services) {
+            final String serviceName = SampleGattAttributes.lookup(service.getUuid(), null);
+            if (serviceName == null) continue;
+
+            final List<BluetoothGattCharacteristic> characteristics =
+                    service.getCharacteristics();
+            final ArrayList<Characteristic> children =
+                    new ArrayList<Characteristic>(characteristics.size());
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                children.add(new Characteristic(characteristic,
+                        registry.lookup(characteristic.getUuid(), unknownCharacteristic)));
+            }
+            nodes.add(new Service(service, serviceName, children));
+        }
+        return new GattTree(Collections.unmodifiableList(nodes));
+    }
+
+    public List<Service> getServices() {
+        return mServices;
+    }
+
+    /**
+     * Returns true if both trees have the same services and characteristics in the same
+     * order, whatever their names and properties.
+     */
+    public boolean sameStructure(GattTree other) {
+        if (mServices.size() != other.mServices.size()) return false;
+        for (int i = 0; i < mServices.size(); i++) {
+            final Service service = mServices.get(i);
+            final Service otherService = other.mServices.get(i);
+            if (!service.sameIdentity(otherService)) return false;
+            final List<Characteristic> children = service.getCharacteristics();
+            final List<Characteristic> otherChildren = otherService.getCharacteristics();
+            if (children.size() != otherChildren.size()) return false;
+            for (int j = 0; j < children.size(); j++) {
+                if (!children.get(j).sameIdentity(otherChildren.get(j))) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.ExpandableListView;
+import android.widget.TextView;
+
+import java.util.List;
+
+/**
+ * Shows a {@link GattTree} in an {@link ExpandableListView}.  Ids are derived from UUIDs and
+ * instance ids, so the list keeps its expanded groups across updates.  {@link #setTree}
+ * compares the new tree with the current one: when only names or properties changed, just the
+ * visible rows that changed are bound again, and when nothing changed the list is not touched.
+ * Only a change of structure makes the whole list lay itself out again.
+ */
+public class GattTreeAdapter extends BaseExpandableListAdapter {
+    private final LayoutInflater mInflater;
+    private final ExpandableListView mListView;
+    private GattTree mTree = GattTree.EMPTY;
+
+    public GattTreeAdapter(LayoutInflater inflater, ExpandableListView listView) {
+        mInflater = inflater;
+        mListView = listView;
+    }
+
+    public GattTree getTree() {
+        return mTree;
+    }
+
+    /**
+     * Shows {@code tree}.  Call on the main thread.
+     */
+    public void setTree(GattTree tree) {
+        final GattTree old = mTree;
+        // Always adopt the new tree: its characteristics belong to the current connection.
+        mTree = tree;
+        if (!old.sameStructure(tree)) {
+            notifyDataSetChanged();
+            return;
+        }
+        rebindChangedRows(old);
+    }
+
+    @Override
+    public int getGroupCount() {
+        return mTree.getServices().size();
+    }
+
+    @Override
+    public int getChildrenCount(int groupPosition) {
+        return mTree.getServices().get(groupPosition).getCharacteristics().size();
+    }
+
+    @Override
+    public GattTree.Service getGroup(int groupPosition) {
+        return mTree.getServices().get(groupPosition);
+    }
+
+    @Override
+    public GattTree.Characteristic getChild(int groupPosition, int childPosition) {
+        return getGroup(groupPosition).getCharacteristics().get(childPosition);
+    }
+
+    @Override
+    public long getGroupId(int groupPosition) {
+        return getGroup(groupPosition).getId();
+    }
+
+    @Override
+    public long getChildId(int groupPosition, int childPosition) {
+        return getChild(groupPosition, childPosition).getId();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getGroupView(int groupPosition, boolean isExpanded, View convertView,
+                             ViewGroup parent) {
+        final View view = convertView != null ? convertView
+                : mInflater.inflate(android.R.layout.simple_expandable_list_item_2, parent, false);
+        bind(view, getGroup(groupPosition));
+        return view;
+    }
+
+    @Override
+    public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
+                             View convertView, ViewGroup parent) {
+        final View view = convertView != null ? convertView
+                : mInflater.inflate(android.R.layout.simple_expandable_list_item_2, parent, false);
+        bind(view, getChild(groupPosition, childPosition));
+        return view;
+    }
+
+    @Override
+    public boolean isChildSelectable(int groupPosition, int childPosition) {
+        return true;
+    }
+
+    private static void bind(View view, GattTree.Node node) {
+        TextView name = (TextView) view.getTag();
+        if (name == null) {
+            name = (TextView) view.findViewById(android.R.id.text1);
+            view.setTag(name);
+        }
+        name.setText(node.getName());
+    }
+
+    // Binds the visible rows whose node differs between old and the current tree, which have
+    // the same structure.
+    private void rebindChangedRows(GattTree old) {
+        final List<GattTree.Service> oldServices = old.getServices();
+        final int first = mListView.getFirstVisiblePosition();
+        for (int i = 0; i < mListView.getChildCount(); i++) {
+            final long position = mListView.getExpandableListPosition(first + i);
+            final int type = ExpandableListView.getPackedPositionType(position);
+            final int group = ExpandableListView.getPackedPositionGroup(position);
+            final GattTree.Node oldNode;
+            final GattTree.Node node;
+            if (type == ExpandableListView.PACKED_POSITION_TYPE_GROUP) {
+                oldNode = oldServices.get(group);
+                node = getGroup(group);
+            } else if (type == ExpandableListView.PACKED_POSITION_TYPE_CHILD) {
+                final int child = ExpandableListView.getPackedPositionChild(position);
+                oldNode = oldServices.get(group).getCharacteristics().get(child);
+                node = getChild(group, child);
+            } else {
+                // A header or footer.
+                continue;
+            }
+            if (!node.sameContent(oldNode)) {
+                bind(mListView.getChildAt(i), node);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Names GATT services, characteristics and descriptors: first from
+ * {@link SampleGattAttributes}, then from the Bluetooth SIG assigned numbers in
+ * {@code res/raw/gatt_assigned_numbers.txt}.
+ *
+ * <p>The assigned numbers are only read on the first lookup that needs them, so they add
+ * nothing to start up; do that first lookup off the main thread.  Lookups after that allocate
+ * nothing.  Thread safe.
+ */
+public class GattUuidRegistry {
+    private final static String TAG = GattUuidRegistry.class.getSimpleName();
+
+    // A little more than the number of lines of the resource.
+    private static final int EXPECTED_SIZE = 320;
+
+    private static GattUuidRegistry sInstance;
+
+    private final Resources mResources;
+    private volatile UuidNameTable mAssignedNumbers;
+
+    private GattUuidRegistry(Resources resources) {
+        mResources = resources;
+    }
+
+    public static synchronized GattUuidRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GattUuidRegistry(context.getApplicationContext().getResources());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the name of the attribute with {@code uuid}, or {@code defaultName} if it has no
+     * known name.
+     */
+    public String lookup(UUID uuid, String defaultName) {
+        final String name = SampleGattAttributes.lookup(uuid, null);
+        if (name != null) return name;
+
+        final long key = UuidNameTable.shortForm(uuid);
+        if (key < 0) return defaultName;
+        final String assigned = getAssignedNumbers().get((int) key);
+        return assigned == null ? defaultName : assigned;
+    }
+
+    private UuidNameTable getAssignedNumbers() {
+        UuidNameTable table = mAssignedNumbers;
+        if (table == null) {
+            synchronized (this) {
+                table = mAssignedNumbers;
+                if (table == null) {
+                    table = load();
+                    mAssignedNumbers = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    private UuidNameTable load() {
+        final UuidNameTable table = new UuidNameTable(EXPECTED_SIZE);
+        final byte[] text;
+        try {
+            text = readFully(mResources.openRawResource(R.raw.gatt_assigned_numbers));
+        } catch (IOException e) {
+            // Names are a nicety; go on with the application's own.
+            Log.w(TAG, "Unable to read assigned numbers", e);
+            return table;
+        }
+        int line = 0;
+        while (line < text.length) {
+            int end = line;
+            while (end < text.length && text[end] != '\n') {
+                end++;
+            }
+            parseLine(text, line, end, table);
+            line = end + 1;
+        }
+        Log.d(TAG, "Loaded " + table.size() + " assigned numbers");
+        return table;
+    }
+
+    // Adds a "<hex short form> <name>" line; skips comments, blank and malformed lines.
+    private static void parseLine(byte[] text, int start, int end, UuidNameTable table) {
+        if (end > start && text[end - 1] == '\r') end--;
+        if (start == end || text[start] == '#') return;
+
+        int key = 0;
+        int i = start;
+        for (; i < end && text[i] != ' '; i++) {
+            final int digit = Character.digit(text[i], 16);
+            if (digit < 0) {
+                Log.w(TAG, "Malformed assigned number: " + new String(text, start, end - start));
+                return;
+            }
+            key = key << 4 | digit;
+        }
+        if (i == start || i + 1 >= end) return;
+        table.put(key, new String(text, i + 1, end - i - 1));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
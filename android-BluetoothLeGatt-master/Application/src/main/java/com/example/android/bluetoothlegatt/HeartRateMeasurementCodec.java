@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Decodes the Heart Rate Measurement characteristic (0x2A37) of the Bluetooth SIG Heart Rate
+ * profile: a flags byte, the heart rate as UINT8 or UINT16, then optionally the energy expended
+ * as UINT16 and any number of UINT16 RR intervals, all little endian.  The sensor contact bits
+ * are ignored.
+ *
+ * <p>Each value becomes one sample.  A truncated value is published without a reading.
+ * Sequence numbers are assigned consecutively, as the profile has none.
+ */
+public class HeartRateMeasurementCodec implements CharacteristicCodec {
+    private static final int FLAG_UINT16 = 0x01;
+    private static final int FLAG_ENERGY_EXPENDED = 0x08;
+    private static final int FLAG_RR_INTERVALS = 0x10;
+
+    private long mNextSequence;
+
+    @Override
+    public void decode(String address, UUID uuid, long timestamp, byte[] value, int offset,
+                       int length, SampleChannel channel) {
+        final SensorSample sample = channel.claim();
+        sample.set(address, uuid, timestamp, value, offset, length);
+        decode(value, offset, length, sample);
+        channel.publish();
+    }
+
+    /**
+     * Decodes into {@code sample}, leaving its address, characteristic and timestamp untouched.
+     *
+     * @return false if the value is truncated.
+     */
+    public boolean decode(byte[] value, int offset, int length, SensorSample sample) {
+        if (length < 2) return false;
+        final int end = offset + length;
+        final int flags = value[offset] & 0xff;
+        int i = offset + 1;
+
+        final int heartRate;
+        if ((flags & FLAG_UINT16) != 0) {
+            if (i + 2 > end) return false;
+            heartRate = uint16(value, i);
+            i += 2;
+        } else {
+            heartRate = value[i++] & 0xff;
+        }
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (i + 2 > end) return false;
+            sample.setEnergyExpended(uint16(value, i));
+            i += 2;
+        }
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            for (; i + 2 <= end; i += 2) {
+                sample.addRrInterval(uint16(value, i));
+            }
+        }
+        sample.setReading(heartRate, SensorSample.NO_VALUE, mNextSequence++);
+        return true;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.app.ListActivity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Lists the last day of stored readings of one device, oldest first, averaged into one row
+ * per minute. Rows are read from a {@link SampleCursor} a page at a time
+ * on a background thread as the list is scrolled, so a long history never has to be loaded
+ * up front.
+ */
+public class HistoryActivity extends ListActivity {
+    private final static String TAG = HistoryActivity.class.getSimpleName();
+
+    public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+
+    private static final long HISTORY_MS = 24 * 60 * 60 * 1000L;
+    private static final long BUCKET_MS = 60 * 1000L;
+    // Rows read per page, and how close to the end of the list the next page is asked for.
+    private static final int PAGE_ROWS = 200;
+    private static final int PREFETCH_ROWS = 50;
+
+    private String mDeviceAddress;
+    private HistoryAdapter mAdapter;
+    private HandlerThread mLoaderThread;
+    private Handler mLoader;
+    // Only touched on the loader thread.
+    private SampleCursor mCursor;
+    private boolean mLoading;
+    private boolean mExhausted;
+
+    // Opens the cursor once the service is bound and reads the first page.
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder binder) {
+            final BluetoothLeService service =
+                    ((BluetoothLeService.LocalBinder) binder).getService();
+            final long now = System.currentTimeMillis();
+            mLoader.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCursor = service.queryHistory(mDeviceAddress, now - HISTORY_MS, now,
+                                BUCKET_MS);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to read history of " + mDeviceAddress, e);
+                    }
+                }
+            });
+            loadPage();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mDeviceAddress = getIntent().getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        getActionBar().setSubtitle(mDeviceAddress);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+
+        mAdapter = new HistoryAdapter();
+        setListAdapter(mAdapter);
+
+        mLoaderThread = new HandlerThread("History");
+        mLoaderThread.start();
+        mLoader = new Handler(mLoaderThread.getLooper());
+
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unbindService(mServiceConnection);
+        mLoaderThread.quit();
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // Reads the next page on the loader thread and appends it to the list. At most one page is
+    // in flight, and nothing is read once the cursor runs out.
+    private void loadPage() {
+        if (mLoading || mExhausted) return;
+        mLoading = true;
+        mLoader.post(new Runnable() {
+            @Override
+            public void run() {
+                final SampleBlockCodec.Columns page = new SampleBlockCodec.Columns();
+                boolean more = false;
+                if (mCursor != null) {
+                    try {
+                        while (page.count < PAGE_ROWS && (more = mCursor.moveToNext())) {
+                            page.add(mCursor.getTimestamp(), mCursor.getHeartRate(),
+                                    mCursor.getTemperature());
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to read history of " + mDeviceAddress, e);
+                        more = false;
+                    }
+                }
+                final boolean exhausted = !more;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoading = false;
+                        mExhausted = exhausted;
+                        mAdapter.append(page);
+                        if (exhausted && mAdapter.getCount() == 0) {
+                            getActionBar().setSubtitle(R.string.history_empty);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Adapter for the rows read so far. Asks for the next page when the list nears its end.
+    private class HistoryAdapter extends BaseAdapter {
+        private final SampleBlockCodec.Columns mRows = new SampleBlockCodec.Columns();
+        private final DateFormat mTimeFormat =
+                DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        private final Date mDate = new Date();
+        private LayoutInflater mInflator;
+
+        public HistoryAdapter() {
+            super();
+            mInflator = HistoryActivity.this.getLayoutInflater();
+        }
+
+        public void append(SampleBlockCodec.Columns page) {
+            if (page.count == 0) return;
+            mRows.ensureCapacity(mRows.count + page.count);
+            for (int i = 0; i < page.count; i++) {
+                mRows.add(page.timestamps[i], page.heartRates[i], page.temperatures[i]);
+            }
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.count;
+        }
+
+        @Override
+        public Object getItem(int i) {
+            return mRows.timestamps[i];
+        }
+
+        @Override
+        public long getItemId(int i) {
+            return i;
+        }
+
+        @Override
+        public View getView(int i, View view, ViewGroup viewGroup) {
+            ViewHolder viewHolder;
+            // General ListView optimization code.
+            if (view == null) {
+                view = mInflator.inflate(android.R.layout.simple_list_item_2, null);
+                viewHolder = new ViewHolder();
+                viewHolder.time = (TextView) view.findViewById(android.R.id.text1);
+                viewHolder.reading = (TextView) view.findViewById(android.R.id.text2);
+                view.setTag(viewHolder);
+            } else {
+                viewHolder = (ViewHolder) view.getTag();
+            }
+            mDate.setTime(mRows.timestamps[i]);
+            viewHolder.time.setText(mTimeFormat.format(mDate));
+            viewHolder.reading.setText(DeviceControlActivity.formatReading(HistoryActivity.this,
+                    mRows.heartRates[i], mRows.temperatures[i]));
+            if (i >= mRows.count - PREFETCH_ROWS) {
+                loadPage();
+            }
+            return view;
+        }
+    }
+
+    static class ViewHolder {
+        TextView time;
+        TextView reading;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes the ASCII readings the "Heart Rate & Temp" sensors send through the HM-10 UART
+ * bridge straight from the characteristic bytes into the primitive fields of a
+ * {@link SensorSample}.  No {@code String}, boxing or other allocation happens per packet.
+ *
+ * <p>A reading is a sequence of numbers separated by anything that is not part of a number, so
+ * {@code "72,36.5"}, {@code "72 36.50\r\n"} and {@code "HR:72 T:36.5 #118"} all decode the same
+ * way.  In order the numbers are the heart rate in beats per minute, the temperature in degrees
+ * Celsius and an optional sequence number.  When the sensor does not send a sequence number the
+ * decoder assigns consecutive ones itself.
+ */
+public class Hm10PayloadDecoder {
+    private long mNextSequence;
+
+    /**
+     * Decodes the payload already stored in {@code sample}.
+     *
+     * @return true if at least a heart rate was found.
+     */
+    public boolean decode(SensorSample sample) {
+        return decode(sample.getPayload(), 0, sample.getPayloadLength(), sample);
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code data} starting at {@code offset} into
+     * {@code sample}, leaving its address, characteristic and timestamp untouched.
+     *
+     * @return true if at least a heart rate was found.
+     */
+    public boolean decode(byte[] data, int offset, int length, SensorSample sample) {
+        int heartRate = SensorSample.NO_VALUE;
+        int temperature = SensorSample.NO_VALUE;
+        long sequence = -1;
+        int field = 0;
+        final int end = offset + length;
+        int i = offset;
+        while (i < end && field < 3) {
+            // Skips to the start of the next number.
+            byte b = data[i];
+            boolean negative = false;
+            if (b == '-' && i + 1 < end && isDigit(data[i + 1])) {
+                negative = true;
+                b = data[++i];
+            }
+            if (!isDigit(b)) {
+                i++;
+                continue;
+            }
+
+            // Integer part.
+            long whole = 0;
+            while (i < end && isDigit(data[i])) {
+                whole = whole * 10 + (data[i] - '0');
+                i++;
+            }
+            // Up to two fractional digits, kept as hundredths; further digits are ignored.
+            int hundredths = 0;
+            if (i + 1 < end && data[i] == '.' && isDigit(data[i + 1])) {
+                i++;
+                int scale = 10;
+                while (i < end && isDigit(data[i])) {
+                    if (scale > 0) {
+                        hundredths += (data[i] - '0') * scale;
+                        scale /= 10;
+                    }
+                    i++;
+                }
+            }
+
+            switch (field) {
+                case 0:
+                    heartRate = (int) (negative ? -whole : whole);
+                    break;
+                case 1:
+                    int centi = (int) (whole * 100 + hundredths);
+                    temperature = negative ? -centi : centi;
+                    break;
+                case 2:
+                    sequence = whole;
+                    break;
+            }
+            field++;
+        }
+
+        if (field == 0) {
+            sample.setReading(SensorSample.NO_VALUE, SensorSample.NO_VALUE, -1);
+            return false;
+        }
+        if (sequence < 0) {
+            sequence = mNextSequence;
+        }
+        mNextSequence = sequence + 1;
+        sample.setReading(heartRate, temperature, sequence);
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
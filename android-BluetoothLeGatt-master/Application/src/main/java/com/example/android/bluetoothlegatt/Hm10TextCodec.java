@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Decodes the text protocol the "Heart Rate & Temp" sensors speak over the HM-10 UART
+ * characteristic.  The byte stream is cut into readings by a {@link FrameReassembler} and every
+ * complete reading is decoded by a {@link Hm10PayloadDecoder} into its own sample, so a value
+ * can yield no sample, one or several.
+ */
+public class Hm10TextCodec implements CharacteristicCodec, FrameReassembler.Listener {
+    private final FrameReassembler mReassembler;
+    private final Hm10PayloadDecoder mDecoder = new Hm10PayloadDecoder();
+
+    // Context of the value being fed to the reassembler; see onFrame().
+    private String mAddress;
+    private UUID mUuid;
+    private long mTimestamp;
+    private SampleChannel mChannel;
+
+    public Hm10TextCodec(FrameReassembler.Format format) {
+        mReassembler = new FrameReassembler(format, this);
+    }
+
+    public FrameReassembler getReassembler() {
+        return mReassembler;
+    }
+
+    @Override
+    public void decode(String address, UUID uuid, long timestamp, byte[] value, int offset,
+                       int length, SampleChannel channel) {
+        mAddress = address;
+        mUuid = uuid;
+        mTimestamp = timestamp;
+        mChannel = channel;
+        mReassembler.feed(value, offset, length);
+    }
+
+    @Override
+    public void reset() {
+        mReassembler.reset();
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        final SensorSample sample = mChannel.claim();
+        sample.set(mAddress, mUuid, mTimestamp, buffer, offset, length);
+        mDecoder.decode(sample);
+        mChannel.publish();
+    }
+}
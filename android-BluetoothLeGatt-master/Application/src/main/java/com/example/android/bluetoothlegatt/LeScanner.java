@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scans for the sensors.  From API 21 on it uses {@link BluetoothLeScanner} with a filter on
+ * the HM-10 service, so the controller drops other advertisers without waking the application
+ * processor, and where the controller supports it, results are batched.  On API 18 to 20 it
+ * falls back to {@link BluetoothAdapter#startLeScan}, unfiltered.
+ *
+ * <p>How it scans depends on the use case:
+ * <ul>
+ * <li>{@link #MODE_DISCOVERY}: someone is watching the list for new devices.  Scans at low
+ * latency and reports every advertisement at once.</li>
+ * <li>{@link #MODE_FLEET}: only the known devices are looked for.  Scans in balanced mode with
+ * batched results, and tells the listener as soon as every known device was seen, so the scan
+ * can stop early, or after {@link #FLEET_SCAN_TIMEOUT_MS} which devices were not, so a device
+ * that is switched off does not keep the radio scanning.</li>
+ * </ul>
+ *
+ * <p>If the controller fails a scan after it started, the scanner stops and tells the listener.
+ *
+ * <p>Start and stop on the thread of the handler given to the constructor.
+ */
+public class LeScanner {
+    private final static String TAG = LeScanner.class.getSimpleName();
+
+    public static final int MODE_DISCOVERY = 0;
+    public static final int MODE_FLEET = 1;
+
+    // How long the controller may hold results of a fleet scan before reporting them.
+    private static final long FLEET_REPORT_DELAY_MS = 1000;
+    // Several advertising intervals of a sensor plus the report delay; a known device that was
+    // not seen by then is not in range.
+    public static final long FLEET_SCAN_TIMEOUT_MS = 5000;
+
+    public interface Listener {
+        /**
+         * Called for every advertisement received, on a binder thread.
+         */
+        void onDevice(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        /**
+         * Called on the handler's thread when every device of a fleet scan was seen.
+         */
+        void onFleetFound();
+
+        /**
+         * Called on the handler's thread when a fleet scan ran for
+         * {@link #FLEET_SCAN_TIMEOUT_MS} without seeing {@code missing}.  The scan goes on
+         * until stopped.
+         */
+        void onFleetTimeout(Set<String> missing);
+
+        /**
+         * Called on the handler's thread when the controller failed the scan, with one of the
+         * {@code ScanCallback.SCAN_FAILED_*} codes.  The scanner is stopped by then.
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final Handler mHandler;
+    private final Listener mListener;
+    // Devices of the running fleet scan not seen yet.
+    private final HashSet<String> mMissing = new HashSet<String>();
+    private LollipopScan mLollipopScan;
+    private boolean mScanning;
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            onDevice(device, rssi, scanRecord);
+        }
+    };
+
+    private final Runnable mFleetFound = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanning) {
+                mHandler.removeCallbacks(mFleetTimeout);
+                mListener.onFleetFound();
+            }
+        }
+    };
+
+    private final Runnable mFleetTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning) return;
+            final HashSet<String> missing;
+            synchronized (mMissing) {
+                if (mMissing.isEmpty()) return;
+                missing = new HashSet<String>(mMissing);
+            }
+            mListener.onFleetTimeout(missing);
+        }
+    };
+
+    public LeScanner(BluetoothAdapter adapter, Handler handler, Listener listener) {
+        mAdapter = adapter;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Starts scanning, after stopping the scan in progress if any.
+     *
+     * @param fleet Addresses of the known devices; only used with {@link #MODE_FLEET}.
+     * @return false if the scan could not be started.
+     */
+    public boolean start(int mode, Collection<String> fleet) {
+        stop();
+        synchronized (mMissing) {
+            if (mode == MODE_FLEET) {
+                mMissing.addAll(fleet);
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                // Bluetooth is off.
+                return false;
+            }
+            mLollipopScan = new LollipopScan(scanner);
+            mScanning = mLollipopScan.start(mode, mAdapter.isOffloadedScanBatchingSupported());
+        } else {
+            mScanning = mAdapter.startLeScan(mLeScanCallback);
+        }
+        if (mScanning && mode == MODE_FLEET) {
+            mHandler.postDelayed(mFleetTimeout, FLEET_SCAN_TIMEOUT_MS);
+        }
+        return mScanning;
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mFleetFound);
+        mHandler.removeCallbacks(mFleetTimeout);
+        synchronized (mMissing) {
+            mMissing.clear();
+        }
+        if (!mScanning) return;
+        mScanning = false;
+        if (mLollipopScan != null) {
+            mLollipopScan.stop();
+            mLollipopScan = null;
+        } else {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    // A failed scan is not registered with the stack, so there is nothing to stop.
+    private void onScanFailed(LollipopScan scan, int errorCode) {
+        if (scan != mLollipopScan) return;
+        mHandler.removeCallbacks(mFleetFound);
+        mHandler.removeCallbacks(mFleetTimeout);
+        synchronized (mMissing) {
+            mMissing.clear();
+        }
+        mScanning = false;
+        mLollipopScan = null;
+        mListener.onScanFailed(errorCode);
+    }
+
+    private void onDevice(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        mListener.onDevice(device, rssi, scanRecord);
+        synchronized (mMissing) {
+            if (mMissing.remove(device.getAddress()) && mMissing.isEmpty()) {
+                mHandler.post(mFleetFound);
+            }
+        }
+    }
+
+    // Kept out of LeScanner itself so that the API 21 classes are only loaded on API 21+.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class LollipopScan extends ScanCallback {
+        final BluetoothLeScanner mScanner;
+
+        LollipopScan(BluetoothLeScanner scanner) {
+            mScanner = scanner;
+        }
+
+        boolean start(int mode, boolean batchingSupported) {
+            final ScanFilter filter = new ScanFilter.Builder()
+                    .setServiceUuid(ParcelUuid.fromString(SampleGattAttributes.HM_10_SERVICE))
+                    .build();
+            final ScanSettings.Builder settings = new ScanSettings.Builder();
+            if (mode == MODE_FLEET) {
+                settings.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+                // A report delay fails the scan on controllers that cannot batch.
+                if (batchingSupported) {
+                    settings.setReportDelay(FLEET_REPORT_DELAY_MS);
+                }
+            } else {
+                settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            }
+            try {
+                mScanner.startScan(Collections.singletonList(filter), settings.build(), this);
+                return true;
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off meanwhile.
+                Log.w(TAG, "Unable to start scan", e);
+                return false;
+            }
+        }
+
+        void stop() {
+            try {
+                mScanner.stopScan(this);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Unable to stop scan", e);
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            report(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                report(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LeScanner.this.onScanFailed(LollipopScan.this, errorCode);
+                }
+            });
+        }
+
+        private void report(ScanResult result) {
+            final ScanRecord record = result.getScanRecord();
+            onDevice(result.getDevice(), result.getRssi(),
+                    record != null ? record.getBytes() : null);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Random;
+
+/**
+ * Decides when and how a dropped link is brought back.  The first few attempts are direct
+ * connections spaced by an exponentially growing, jittered delay, except that
+ * {@link GattConnection} makes the first one through the client it already has, to keep its
+ * services; after that the link falls back
+ * to a single background ({@code autoConnect}) connection, which the controller keeps pending at
+ * low duty cycle until the device shows up again.  Immutable.
+ */
+public final class ReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_DIRECT_ATTEMPTS = 4;
+    // A direct connect that has not completed after this long is abandoned.  The stack's own
+    // timeout is around 30 seconds, far longer than a sensor that is in range needs.
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(DEFAULT_INITIAL_DELAY_MS,
+            DEFAULT_MAX_DELAY_MS, DEFAULT_DIRECT_ATTEMPTS, DEFAULT_CONNECT_TIMEOUT_MS);
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final int mDirectAttempts;
+    private final long mConnectTimeoutMs;
+    private final Random mRandom;
+
+    /**
+     * @param initialDelayMs Delay before the first attempt; doubled for every attempt after.
+     * @param maxDelayMs Upper bound on the delay.
+     * @param directAttempts Direct connects to try before falling back to autoConnect.
+     * @param connectTimeoutMs How long a direct connect may take before it counts as failed.
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int directAttempts,
+                           long connectTimeoutMs) {
+        this(initialDelayMs, maxDelayMs, directAttempts, connectTimeoutMs, new Random());
+    }
+
+    /**
+     * Draws the jitter from {@code random}, so that simulated runs can be repeated.
+     */
+    ReconnectPolicy(long initialDelayMs, long maxDelayMs, int directAttempts,
+                    long connectTimeoutMs, Random random) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mDirectAttempts = directAttempts;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mRandom = random;
+    }
+
+    /**
+     * Returns how long to wait before attempt number {@code attempt}, counting from 1.  The
+     * result is drawn uniformly from the upper half of the backoff interval, so links that
+     * dropped together do not all retry at the same moment.
+     */
+    public long getDelayMs(int attempt) {
+        int shift = Math.min(Math.max(attempt - 1, 0), 30);
+        long delay = Math.min(mInitialDelayMs << shift, mMaxDelayMs);
+        long half = delay / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (delay - half));
+        }
+    }
+
+    /**
+     * Returns true if attempt number {@code attempt} should be a background connection.
+     */
+    public boolean useAutoConnect(int attempt) {
+        return attempt > mDirectAttempts;
+    }
+
+    public long getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Aggregated readings of one device over one window: a minute, an hour or a day, aligned to
+ * UTC.
+ */
+public class Rollup {
+    public static final int RESOLUTION_MINUTE = 0;
+    public static final int RESOLUTION_HOUR = 1;
+    public static final int RESOLUTION_DAY = 2;
+    static final int RESOLUTION_COUNT = 3;
+
+    private static final long[] WINDOW_MS = {60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+
+    private final String mAddress;
+    private final int mResolution;
+    private final long mWindowStart;
+    private final RunningStats mHeartRate;
+    private final RunningStats mTemperature;
+
+    Rollup(String address, int resolution, long windowStart, RunningStats heartRate,
+           RunningStats temperature) {
+        mAddress = address;
+        mResolution = resolution;
+        mWindowStart = windowStart;
+        mHeartRate = heartRate;
+        mTemperature = temperature;
+    }
+
+    /**
+     * Returns the length of a window at {@code resolution}, in milliseconds.
+     */
+    public static long getWindowMs(int resolution) {
+        return WINDOW_MS[resolution];
+    }
+
+    /**
+     * Returns the start of the window at {@code resolution} that contains {@code timestamp}.
+     */
+    public static long getWindowStart(int resolution, long timestamp) {
+        final long size = WINDOW_MS[resolution];
+        return timestamp - ((timestamp % size) + size) % size;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Returns the wall-clock start of the window, in milliseconds.
+     */
+    public long getWindowStart() {
+        return mWindowStart;
+    }
+
+    public long getWindowEnd() {
+        return mWindowStart + WINDOW_MS[mResolution];
+    }
+
+    /**
+     * Returns heart rate statistics, in beats per minute.  Do not modify.
+     */
+    public RunningStats getHeartRate() {
+        return mHeartRate;
+    }
+
+    /**
+     * Returns temperature statistics, in hundredths of a degree Celsius.  Do not modify.
+     */
+    public RunningStats getTemperature() {
+        return mTemperature;
+    }
+}
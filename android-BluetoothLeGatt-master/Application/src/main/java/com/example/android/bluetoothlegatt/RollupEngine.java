@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates decoded readings into per-minute, per-hour and per-day {@link Rollup}s as they
+ * stream in.  Each device has one open window per resolution, each holding a pair of
+ * {@link RunningStats}, so memory does not grow with the number of samples.  When a sample
+ * falls into a later window the open one is closed and written to the {@link RollupStore}.
+ *
+ * <p>Samples older than the open window, which only happens when the wall clock is set back,
+ * are counted and skipped.
+ */
+public class RollupEngine implements SampleChannel.Listener {
+    private final static String TAG = RollupEngine.class.getSimpleName();
+
+    private static class Window {
+        long mStart = Long.MIN_VALUE;
+        final RunningStats mHeartRate = new RunningStats();
+        final RunningStats mTemperature = new RunningStats();
+
+        boolean isEmpty() {
+            return mHeartRate.getCount() == 0 && mTemperature.getCount() == 0;
+        }
+    }
+
+    private final RollupStore mStore;
+    private final HashMap<String, Window[]> mDevices = new HashMap<String, Window[]>();
+    private long mLateCount;
+
+    public RollupEngine(RollupStore store) {
+        mStore = store;
+    }
+
+    @Override
+    public synchronized void onSample(SensorSample sample) {
+        final boolean hasHeartRate = sample.hasHeartRate();
+        final boolean hasTemperature = sample.hasTemperature();
+        if (!hasHeartRate && !hasTemperature) return;
+
+        final String address = sample.getAddress();
+        Window[] windows = mDevices.get(address);
+        if (windows == null) {
+            windows = new Window[Rollup.RESOLUTION_COUNT];
+            for (int i = 0; i < windows.length; i++) {
+                windows[i] = new Window();
+            }
+            mDevices.put(address, windows);
+        }
+        final long timestamp = sample.getTimestamp();
+        for (int resolution = 0; resolution < windows.length; resolution++) {
+            final Window window = windows[resolution];
+            final long start = Rollup.getWindowStart(resolution, timestamp);
+            if (start != window.mStart) {
+                if (start < window.mStart) {
+                    mLateCount++;
+                    continue;
+                }
+                close(address, resolution, window);
+                window.mStart = start;
+            }
+            if (hasHeartRate) window.mHeartRate.add(sample.getHeartRate());
+            if (hasTemperature) window.mTemperature.add(sample.getTemperature());
+        }
+    }
+
+    /**
+     * Closes the windows that ended before {@code now}, so devices that went quiet get their
+     * last window stored too.
+     */
+    public synchronized void flushExpired(long now) {
+        for (Map.Entry<String, Window[]> entry : mDevices.entrySet()) {
+            final Window[] windows = entry.getValue();
+            for (int resolution = 0; resolution < windows.length; resolution++) {
+                if (now >= windows[resolution].mStart + Rollup.getWindowMs(resolution)) {
+                    close(entry.getKey(), resolution, windows[resolution]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores every open window as it stands, for example before the service stops.  Samples
+     * that arrive later in the same window are stored as a second part.
+     */
+    public synchronized void flushAll() {
+        for (Map.Entry<String, Window[]> entry : mDevices.entrySet()) {
+            final Window[] windows = entry.getValue();
+            for (int resolution = 0; resolution < windows.length; resolution++) {
+                close(entry.getKey(), resolution, windows[resolution]);
+            }
+        }
+    }
+
+    /**
+     * Returns what the open window of {@code address} at {@code resolution} holds so far, or
+     * null if it is empty.
+     */
+    public synchronized Rollup getOpenWindow(String address, int resolution) {
+        final Window[] windows = mDevices.get(address);
+        if (windows == null || windows[resolution].isEmpty()) return null;
+
+        final Window window = windows[resolution];
+        return new Rollup(address, resolution, window.mStart,
+                new RunningStats(window.mHeartRate), new RunningStats(window.mTemperature));
+    }
+
+    /**
+     * Returns the stored rollups of {@code address} at {@code resolution} for windows starting
+     * in [{@code from}, {@code to}), oldest first, with the open window merged in.  Both are
+     * read under the lock that closes windows, so a window that closes meanwhile is neither
+     * missed nor counted twice.
+     */
+    public synchronized List<Rollup> getRollups(String address, int resolution, long from,
+                                                long to) throws IOException {
+        final List<Rollup> rollups = mStore.query(address, resolution, from, to);
+        final Rollup open = getOpenWindow(address, resolution);
+        if (open != null && open.getWindowStart() >= from && open.getWindowStart() < to) {
+            final int last = rollups.size() - 1;
+            if (last >= 0 && rollups.get(last).getWindowStart() == open.getWindowStart()) {
+                // Part of the open window was stored when the service last stopped.
+                rollups.get(last).getHeartRate().merge(open.getHeartRate());
+                rollups.get(last).getTemperature().merge(open.getTemperature());
+            } else {
+                rollups.add(open);
+            }
+        }
+        return rollups;
+    }
+
+    public synchronized long getLateCount() {
+        return mLateCount;
+    }
+
+    private void close(String address, int resolution, Window window) {
+        if (window.isEmpty()) return;
+        try {
+            mStore.append(new Rollup(address, resolution, window.mStart,
+                    new RunningStats(window.mHeartRate), new RunningStats(window.mTemperature)));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store rollup", e);
+        }
+        window.mHeartRate.reset();
+        window.mTemperature.reset();
+    }
+}
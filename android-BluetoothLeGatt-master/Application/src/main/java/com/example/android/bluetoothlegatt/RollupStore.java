@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps closed {@link Rollup} windows in one append-only file per device and resolution, so a
+ * query only reads the windows of the device asked for.  Records are fixed width:
+ * <pre>
+ *   0  int     device id, shared with the {@link SampleStore}
+ *   4  long    window start, wall-clock milliseconds
+ *  12  28 B    heart rate statistics: int count, int min, int max, double mean, double M2
+ *  40  28 B    temperature statistics, same layout
+ * </pre>
+ * A window may be written more than once, for example when the service stopped while it was
+ * still open; {@link #query} merges the parts.
+ *
+ * <p>Minute windows are kept for {@link #MINUTE_RETENTION_MS} behind the newest one of their
+ * device, longer ones for good.  A minute file is rewritten without the expired windows once
+ * its oldest is a day past the limit, so about once a day per device.
+ */
+public class RollupStore {
+    private final static String TAG = RollupStore.class.getSimpleName();
+
+    static final int RECORD_SIZE = 68;
+    public static final long MINUTE_RETENTION_MS = 7 * 24 * 60 * 60 * 1000L;
+    // How far past the retention limit the oldest window may get before a file is rewritten.
+    private static final long TRIM_SLACK_MS = 24 * 60 * 60 * 1000L;
+    // Per resolution; 0 keeps windows for good.
+    private static final long[] RETENTION_MS = {MINUTE_RETENTION_MS, 0, 0};
+    private static final String[] FILE_NAMES = {"minute.rollup", "hour.rollup", "day.rollup"};
+    // Records read per batch when querying.
+    private static final int READ_BATCH = 256;
+
+    // The open file of one device at one resolution.
+    private static class DeviceFile {
+        final File mFile;
+        FileChannel mChannel;
+        // Start of the oldest window in the file, or Long.MAX_VALUE if it is empty.
+        long mOldest = Long.MAX_VALUE;
+
+        DeviceFile(File file) {
+            mFile = file;
+        }
+    }
+
+    private final File mDirectory;
+    private final SampleStore mSampleStore;
+    // Keyed by device id and resolution, see key().
+    private final HashMap<Long, DeviceFile> mFiles = new HashMap<Long, DeviceFile>();
+    private final ByteBuffer mRecord =
+            ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.nativeOrder());
+    private final ByteBuffer mBatch =
+            ByteBuffer.allocate(RECORD_SIZE * READ_BATCH).order(ByteOrder.nativeOrder());
+    private boolean mMigrated;
+
+    /**
+     * @param sampleStore Store whose device ids the records use.
+     */
+    public RollupStore(File directory, SampleStore sampleStore) {
+        mDirectory = directory;
+        mSampleStore = sampleStore;
+    }
+
+    public synchronized void append(Rollup rollup) throws IOException {
+        final int device = mSampleStore.registerDevice(rollup.getAddress());
+        final int resolution = rollup.getResolution();
+        final DeviceFile file = getFile(device, resolution);
+        final ByteBuffer record = mRecord;
+        record.clear();
+        record.putInt(device);
+        record.putLong(rollup.getWindowStart());
+        putStats(record, rollup.getHeartRate());
+        putStats(record, rollup.getTemperature());
+        record.flip();
+        while (record.hasRemaining()) {
+            file.mChannel.write(record);
+        }
+        file.mOldest = Math.min(file.mOldest, rollup.getWindowStart());
+
+        final long retention = RETENTION_MS[resolution];
+        if (retention > 0
+                && rollup.getWindowStart() - file.mOldest > retention + TRIM_SLACK_MS) {
+            trim(file, rollup.getWindowStart() - retention);
+        }
+    }
+
+    /**
+     * Returns the rollups of {@code address} at {@code resolution} whose windows start in
+     * [{@code from}, {@code to}), oldest first.
+     */
+    public synchronized List<Rollup> query(String address, int resolution, long from, long to)
+            throws IOException {
+        mSampleStore.open();
+        final int device = mSampleStore.getDeviceId(address);
+        if (device < 0) return new ArrayList<Rollup>();
+
+        final TreeMap<Long, Rollup> windows = new TreeMap<Long, Rollup>();
+        final FileChannel channel = getFile(device, resolution).mChannel;
+        final ByteBuffer buffer = mBatch;
+        final long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+            if (read <= 0) break;
+            position += read;
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                buffer.getInt();
+                final long start = buffer.getLong();
+                if (start < from || start >= to) {
+                    buffer.position(buffer.position() + RECORD_SIZE - 12);
+                    continue;
+                }
+                final RunningStats heartRate = getStats(buffer);
+                final RunningStats temperature = getStats(buffer);
+                final Rollup existing = windows.get(start);
+                if (existing != null) {
+                    existing.getHeartRate().merge(heartRate);
+                    existing.getTemperature().merge(temperature);
+                } else {
+                    windows.put(start, new Rollup(address, resolution, start, heartRate,
+                            temperature));
+                }
+            }
+            // A record split across reads is read again with the next batch.
+            position -= buffer.remaining();
+        }
+        return new ArrayList<Rollup>(windows.values());
+    }
+
+    public synchronized void close() {
+        for (DeviceFile file : mFiles.values()) {
+            try {
+                file.mChannel.force(false);
+                file.mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + file.mFile, e);
+            }
+        }
+        mFiles.clear();
+    }
+
+    private static long key(int device, int resolution) {
+        return (long) device * Rollup.RESOLUTION_COUNT + resolution;
+    }
+
+    private DeviceFile getFile(int device, int resolution) throws IOException {
+        if (!mMigrated) {
+            migrate();
+        }
+        final long key = key(device, resolution);
+        DeviceFile file = mFiles.get(key);
+        if (file == null) {
+            file = new DeviceFile(new File(mDirectory,
+                    String.format(Locale.US, "%d.%s", device, FILE_NAMES[resolution])));
+            open(file);
+            mFiles.put(key, file);
+        }
+        return file;
+    }
+
+    private void open(DeviceFile file) throws IOException {
+        final FileChannel channel = new RandomAccessFile(file.mFile, "rw").getChannel();
+        // Drop a record cut short by a crash.
+        final long size = channel.size();
+        channel.truncate(size - size % RECORD_SIZE);
+        channel.position(channel.size());
+        file.mChannel = channel;
+        file.mOldest = Long.MAX_VALUE;
+        if (channel.size() > 0) {
+            final ByteBuffer record = mRecord;
+            record.clear();
+            channel.read(record, 0);
+            file.mOldest = record.getLong(4);
+        }
+    }
+
+    // Rewrites |file| without the windows that start before |cutoff|.
+    private void trim(DeviceFile file, long cutoff) throws IOException {
+        final File tmp = new File(file.mFile.getPath() + ".tmp");
+        final FileChannel out = new RandomAccessFile(tmp, "rw").getChannel();
+        long oldest = Long.MAX_VALUE;
+        long kept = 0;
+        try {
+            out.truncate(0);
+            final FileChannel in = file.mChannel;
+            final ByteBuffer buffer = mBatch;
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                final int read = in.read(buffer, position);
+                if (read <= 0) break;
+                buffer.flip();
+                buffer.limit(buffer.limit() - buffer.limit() % RECORD_SIZE);
+                position += buffer.limit();
+                // Compacts the batch in place down to the records that are kept.
+                int write = 0;
+                for (int record = 0; record < buffer.limit(); record += RECORD_SIZE) {
+                    final long start = buffer.getLong(record + 4);
+                    if (start < cutoff) continue;
+                    oldest = Math.min(oldest, start);
+                    for (int i = 0; i < RECORD_SIZE; i += 4) {
+                        buffer.putInt(write + i, buffer.getInt(record + i));
+                    }
+                    write += RECORD_SIZE;
+                }
+                buffer.position(0).limit(write);
+                kept += write / RECORD_SIZE;
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(false);
+        } finally {
+            out.close();
+        }
+        file.mChannel.close();
+        if (!tmp.renameTo(file.mFile)) {
+            throw new IOException("Unable to replace " + file.mFile);
+        }
+        open(file);
+        Log.d(TAG, "Trimmed " + file.mFile + " to " + kept + " windows");
+    }
+
+    // Splits the files of earlier versions, which held every device in one file per
+    // resolution, into files per device.
+    private void migrate() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        mMigrated = true;
+        for (int resolution = 0; resolution < FILE_NAMES.length; resolution++) {
+            final File legacy = new File(mDirectory, FILE_NAMES[resolution]);
+            if (!legacy.exists()) continue;
+
+            // Files per device next to a legacy file are left from a split cut short.
+            final File[] partial = mDirectory.listFiles();
+            if (partial != null) {
+                for (File f : partial) {
+                    if (f.getName().endsWith("." + FILE_NAMES[resolution]) && !f.delete()) {
+                        throw new IOException("Unable to delete " + f);
+                    }
+                }
+            }
+
+            final FileChannel in = new RandomAccessFile(legacy, "r").getChannel();
+            try {
+                final ByteBuffer record = mRecord;
+                final long size = in.size() - in.size() % RECORD_SIZE;
+                for (long position = 0; position < size; position += RECORD_SIZE) {
+                    record.clear();
+                    in.read(record, position);
+                    // Opening the device's file reuses the record buffer.
+                    final DeviceFile file = getFile(record.getInt(0), resolution);
+                    record.clear();
+                    in.read(record, position);
+                    record.flip();
+                    file.mOldest = Math.min(file.mOldest, record.getLong(4));
+                    while (record.hasRemaining()) {
+                        file.mChannel.write(record);
+                    }
+                }
+                for (Map.Entry<Long, DeviceFile> entry : mFiles.entrySet()) {
+                    entry.getValue().mChannel.force(false);
+                }
+            } finally {
+                in.close();
+            }
+            if (!legacy.delete()) {
+                throw new IOException("Unable to delete " + legacy);
+            }
+            Log.i(TAG, "Split " + legacy + " into files per device");
+        }
+    }
+
+    private static void putStats(ByteBuffer buffer, RunningStats stats) {
+        buffer.putInt(stats.getCount());
+        buffer.putInt(stats.getMin());
+        buffer.putInt(stats.getMax());
+        buffer.putDouble(stats.getMean());
+        buffer.putDouble(stats.getM2());
+    }
+
+    private static RunningStats getStats(ByteBuffer buffer) {
+        return new RunningStats(buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getDouble(), buffer.getDouble());
+    }
+}
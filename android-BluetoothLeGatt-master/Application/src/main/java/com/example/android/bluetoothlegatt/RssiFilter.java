@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Smooths the RSSI of one device with a one-dimensional Kalman filter.  The signal is modeled
+ * as constant plus noise, drifting by {@link #PROCESS_NOISE} dB&sup2; per second, so a device
+ * that was not heard for a while is trusted less and its next readings count more.  At a
+ * steady advertising rate the filter settles to an exponentially weighted moving average.
+ *
+ * <p>Not thread safe.
+ */
+public class RssiFilter {
+    // Variance of the change of the real signal, in dB^2 per second.
+    static final double PROCESS_NOISE = 0.5;
+    // Variance of a single reading around the real signal, in dB^2.
+    static final double MEASUREMENT_NOISE = 16;
+
+    private double mEstimate = Double.NaN;
+    private double mVariance;
+    private long mLastTime;
+
+    /**
+     * Adds a reading taken at {@code time}, in milliseconds, and returns the new estimate.
+     */
+    public double update(int rssi, long time) {
+        if (Double.isNaN(mEstimate)) {
+            mEstimate = rssi;
+            mVariance = MEASUREMENT_NOISE;
+        } else {
+            final double elapsed = Math.max(0, time - mLastTime) / 1000.0;
+            final double predicted = mVariance + PROCESS_NOISE * elapsed;
+            final double gain = predicted / (predicted + MEASUREMENT_NOISE);
+            mEstimate += gain * (rssi - mEstimate);
+            mVariance = (1 - gain) * predicted;
+        }
+        mLastTime = time;
+        return mEstimate;
+    }
+
+    /**
+     * Returns the smoothed RSSI in dBm, or NaN before the first reading.
+     */
+    public double getEstimate() {
+        return mEstimate;
+    }
+}
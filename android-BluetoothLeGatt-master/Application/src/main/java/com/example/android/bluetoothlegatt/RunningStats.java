@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Count, minimum, maximum, mean and variance of a stream of values in constant space.  The
+ * mean and variance are updated with Welford's method, which stays accurate over long streams
+ * where the textbook sum-of-squares formula loses precision.  Two instances can be merged, so
+ * partial results for the same window combine exactly.
+ */
+public class RunningStats {
+    private int mCount;
+    private int mMin;
+    private int mMax;
+    private double mMean;
+    // Sum of squared differences from the mean.
+    private double mM2;
+
+    public RunningStats() {
+    }
+
+    public RunningStats(RunningStats other) {
+        set(other);
+    }
+
+    RunningStats(int count, int min, int max, double mean, double m2) {
+        mCount = count;
+        mMin = min;
+        mMax = max;
+        mMean = mean;
+        mM2 = m2;
+    }
+
+    public void add(int value) {
+        if (mCount == 0) {
+            mMin = value;
+            mMax = value;
+        } else {
+            if (value < mMin) mMin = value;
+            if (value > mMax) mMax = value;
+        }
+        mCount++;
+        final double delta = value - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+    }
+
+    /**
+     * Adds every value {@code other} has seen.
+     */
+    public void merge(RunningStats other) {
+        if (other.mCount == 0) return;
+        if (mCount == 0) {
+            set(other);
+            return;
+        }
+        final int count = mCount + other.mCount;
+        final double delta = other.mMean - mMean;
+        mMean += delta * other.mCount / count;
+        mM2 += other.mM2 + delta * delta * ((double) mCount * other.mCount / count);
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+        mCount = count;
+    }
+
+    public void set(RunningStats other) {
+        mCount = other.mCount;
+        mMin = other.mMin;
+        mMax = other.mMax;
+        mMean = other.mMean;
+        mM2 = other.mM2;
+    }
+
+    public void reset() {
+        mCount = 0;
+        mMin = 0;
+        mMax = 0;
+        mMean = 0;
+        mM2 = 0;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smallest value, or 0 if there are none.
+     */
+    public int getMin() {
+        return mMin;
+    }
+
+    /**
+     * Returns the largest value, or 0 if there are none.
+     */
+    public int getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return mMean;
+    }
+
+    /**
+     * Returns the sample variance, or 0 for fewer than two values.
+     */
+    public double getVariance() {
+        return mCount > 1 ? mM2 / (mCount - 1) : 0;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    double getM2() {
+        return mM2;
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Long-term history of readings, compressed with {@link SampleBlockCodec}.  Once the
+ * {@link SampleStore} seals a segment its records are split by device and appended as blocks
+ * of up to {@link #BLOCK_SAMPLES} readings to one file per device id.  Sequence numbers are not
+ * kept.
+ *
+ * <p>The first and last timestamp and the file offset of every block are kept in a sparse
+ * in-memory index per device, read from the block headers on first use and extended as blocks
+ * are appended, so time range queries only read the blocks they need.
+ *
+ * <p>A small "compacted" file records the last segment compacted and the length of every block
+ * file at that point.  Compaction first cuts the block files back to those lengths, so a
+ * compaction interrupted by a crash is redone without duplicating blocks.  Segments are
+ * compacted in order, so every segment up to the last one compacted is in the archive and
+ * the store may delete it.
+ */
+public class SampleArchive {
+    private final static String TAG = SampleArchive.class.getSimpleName();
+
+    public static final int BLOCK_SAMPLES = 1024;
+
+    private static final String BLOCK_SUFFIX = ".blk";
+    private static final String COMPACTED_FILE = "compacted";
+
+    // Where each block of one device is and what time span it covers.
+    private static class BlockIndex {
+        long[] mFirst = new long[16];
+        long[] mLast = new long[16];
+        long[] mOffsets = new long[16];
+        int[] mLengths = new int[16];
+        int mSize;
+
+        void add(long first, long last, long offset, int length) {
+            if (mSize == mFirst.length) {
+                final int capacity = mSize * 2;
+                mFirst = Arrays.copyOf(mFirst, capacity);
+                mLast = Arrays.copyOf(mLast, capacity);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mLengths = Arrays.copyOf(mLengths, capacity);
+            }
+            mFirst[mSize] = first;
+            mLast[mSize] = last;
+            mOffsets[mSize] = offset;
+            mLengths[mSize] = length;
+            mSize++;
+        }
+    }
+
+    private final File mDirectory;
+    private final SampleBlockCodec mCodec = new SampleBlockCodec();
+    private final byte[] mHeader = new byte[SampleBlockCodec.HEADER_SIZE];
+    private byte[] mBlock = new byte[4096];
+    // Compaction scratch, reused from segment to segment.
+    private final HashMap<Integer, SampleBlockCodec.Columns> mPending =
+            new HashMap<Integer, SampleBlockCodec.Columns>();
+    private final HashMap<Integer, FileOutputStream> mOutputs =
+            new HashMap<Integer, FileOutputStream>();
+
+    // Loaded lazily; -1 once loaded means nothing was compacted yet.
+    private boolean mLoaded;
+    private long mCompactedIndex = -1;
+    private final HashMap<Integer, Long> mCompactedLengths = new HashMap<Integer, Long>();
+    // Block indexes of the devices queried so far.
+    private final HashMap<Integer, BlockIndex> mIndexes = new HashMap<Integer, BlockIndex>();
+
+    public SampleArchive(File directory) {
+        mDirectory = directory;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the index of the last segment compacted, or -1 if none was.
+     */
+    public synchronized long getCompactedIndex() throws IOException {
+        load();
+        return mCompactedIndex;
+    }
+
+    /**
+     * Compacts the sealed segments of {@code store} that were not compacted yet, oldest first,
+     * for example because the process died before it got to them or an earlier attempt failed.
+     * Stops at the first segment that cannot be compacted.
+     */
+    public synchronized void catchUp(SampleStore store) throws IOException {
+        load();
+        store.open();
+        final long current = store.getCurrentSegmentIndex();
+        for (File segment : store.getSegments()) {
+            final long index = SampleStore.parseSegmentIndex(segment);
+            if (index <= mCompactedIndex || index >= current) continue;
+            if (mCompactedIndex >= 0 && index > mCompactedIndex + 1) {
+                // Deleted by a version that did not wait for the archive.
+                Log.w(TAG, "Segments " + (mCompactedIndex + 1) + " to " + (index - 1)
+                        + " were never compacted");
+                mCompactedIndex = index - 1;
+            }
+            compact(segment, index);
+        }
+    }
+
+    /**
+     * Appends the readings of a sealed segment.  Does nothing if it was already compacted.
+     *
+     * @throws IOException if the segment cannot be read, or if the one before it was not
+     *         compacted yet.
+     */
+    public synchronized void compact(File segment, long index) throws IOException {
+        load();
+        if (index <= mCompactedIndex) return;
+        if (mCompactedIndex >= 0 && index != mCompactedIndex + 1) {
+            throw new IOException("Segment " + (mCompactedIndex + 1) + " is not compacted yet");
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        truncateToCompacted();
+        boolean done = false;
+
+        final MappedByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+        } finally {
+            raf.close();
+        }
+
+        try {
+            final int size = buffer.capacity();
+            final int recordSize = SampleStore.RECORD_SIZE;
+            long count = 0;
+            for (int position = recordSize; position + recordSize <= size
+                    && SampleStore.isValidRecord(buffer, position); position += recordSize) {
+                final int device = buffer.getInt(position + SampleStore.OFFSET_DEVICE);
+                SampleBlockCodec.Columns columns = mPending.get(device);
+                if (columns == null) {
+                    columns = new SampleBlockCodec.Columns();
+                    columns.ensureCapacity(BLOCK_SAMPLES);
+                    mPending.put(device, columns);
+                }
+                columns.add(buffer.getLong(position + SampleStore.OFFSET_TIMESTAMP),
+                        buffer.getInt(position + SampleStore.OFFSET_HEART_RATE),
+                        buffer.getInt(position + SampleStore.OFFSET_TEMPERATURE));
+                if (columns.count == BLOCK_SAMPLES) {
+                    writeBlock(device, columns);
+                }
+                count++;
+            }
+            for (Map.Entry<Integer, SampleBlockCodec.Columns> entry : mPending.entrySet()) {
+                if (entry.getValue().count > 0) {
+                    writeBlock(entry.getKey(), entry.getValue());
+                }
+            }
+            final HashMap<Integer, Long> lengths = new HashMap<Integer, Long>();
+            for (Map.Entry<Integer, FileOutputStream> entry : mOutputs.entrySet()) {
+                final FileOutputStream out = entry.getValue();
+                out.getFD().sync();
+                lengths.put(entry.getKey(), out.getChannel().position());
+            }
+            mCompactedLengths.putAll(lengths);
+            Log.d(TAG, "Compacted segment " + index + ", " + count + " readings");
+            done = true;
+        } finally {
+            if (!done) {
+                // They may list blocks that will be cut off again.
+                mIndexes.clear();
+            }
+            for (SampleBlockCodec.Columns columns : mPending.values()) {
+                columns.clear();
+            }
+            for (FileOutputStream out : mOutputs.values()) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Lengths are only recorded once all are synced; the tail is dropped next time.
+                }
+            }
+            mOutputs.clear();
+        }
+        mCompactedIndex = index;
+        saveCompacted();
+    }
+
+    /**
+     * Returns the number of blocks stored for {@code deviceId}.
+     */
+    public synchronized int getBlockCount(int deviceId) throws IOException {
+        final BlockIndex index = getIndex(deviceId);
+        return index != null ? index.mSize : 0;
+    }
+
+    /**
+     * Returns the first block of {@code deviceId} in [{@code start}, {@code end}) that holds
+     * readings in [{@code from}, {@code to}), or -1 if there is none.  Only the in-memory
+     * index is consulted.
+     */
+    public synchronized int findBlock(int deviceId, int start, int end, long from, long to)
+            throws IOException {
+        final BlockIndex index = getIndex(deviceId);
+        if (index == null) return -1;
+        end = Math.min(end, index.mSize);
+        for (int i = start; i < end; i++) {
+            if (index.mLast[i] >= from && index.mFirst[i] < to) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes block {@code block} of {@code deviceId} into {@code columns}.
+     */
+    public synchronized void readBlock(int deviceId, int block, SampleBlockCodec.Columns columns)
+            throws IOException {
+        final BlockIndex index = getIndex(deviceId);
+        if (index == null || block >= index.mSize) {
+            throw new IndexOutOfBoundsException("No block " + block + " for " + deviceId);
+        }
+        final int length = index.mLengths[block];
+        if (mBlock.length < length) {
+            mBlock = new byte[Math.max(length, mBlock.length * 2)];
+        }
+        final RandomAccessFile file = new RandomAccessFile(blockFile(deviceId), "r");
+        try {
+            file.seek(index.mOffsets[block]);
+            file.readFully(mBlock, 0, length);
+        } catch (EOFException e) {
+            throw new IOException("Truncated block file for device " + deviceId);
+        } finally {
+            file.close();
+        }
+        mCodec.decode(mBlock, 0, columns);
+    }
+
+    // Returns the index of the blocks of a device, reading it from the block headers the
+    // first time.  Null if the device has no blocks.
+    private BlockIndex getIndex(int deviceId) throws IOException {
+        load();
+        BlockIndex index = mIndexes.get(deviceId);
+        if (index != null) return index;
+        final Long compacted = mCompactedLengths.get(deviceId);
+        if (compacted == null) return null;
+
+        index = new BlockIndex();
+        final RandomAccessFile file = new RandomAccessFile(blockFile(deviceId), "r");
+        try {
+            // Anything past the recorded length belongs to an unfinished compaction.
+            final long length = Math.min(compacted, file.length());
+            final byte[] header = mHeader;
+            long position = 0;
+            while (position + SampleBlockCodec.HEADER_SIZE <= length) {
+                file.seek(position);
+                file.readFully(header);
+                final int blockLength = SampleBlockCodec.getBlockLength(header, 0);
+                if (blockLength < SampleBlockCodec.HEADER_SIZE || position + blockLength > length) {
+                    throw new IOException("Damaged block file for device " + deviceId);
+                }
+                index.add(SampleBlockCodec.getFirstTimestamp(header, 0),
+                        SampleBlockCodec.getLastTimestamp(header, 0), position, blockLength);
+                position += blockLength;
+            }
+        } finally {
+            file.close();
+        }
+        mIndexes.put(deviceId, index);
+        return index;
+    }
+
+    private void writeBlock(int device, SampleBlockCodec.Columns columns) throws IOException {
+        FileOutputStream out = mOutputs.get(device);
+        if (out == null) {
+            out = new FileOutputStream(blockFile(device), true);
+            mOutputs.put(device, out);
+        }
+        final long offset = out.getChannel().position();
+        final int length = mCodec.encode(columns);
+        out.write(mCodec.getBuffer(), 0, length);
+        final BlockIndex index = mIndexes.get(device);
+        if (index != null) {
+            index.add(columns.timestamps[0], columns.timestamps[columns.count - 1], offset,
+                    length);
+        }
+        columns.clear();
+    }
+
+    private File blockFile(int device) {
+        return new File(mDirectory, device + BLOCK_SUFFIX);
+    }
+
+    // Cuts every block file back to what the last finished compaction left.
+    private void truncateToCompacted() throws IOException {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(BLOCK_SUFFIX)) continue;
+            final int device;
+            try {
+                device = Integer.parseInt(
+                        name.substring(0, name.length() - BLOCK_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final Long compacted = mCompactedLengths.get(device);
+            final long length = compacted != null ? compacted : 0;
+            if (file.length() > length) {
+                Log.w(TAG, "Dropping unfinished blocks of device " + device);
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        if (mLoaded) return;
+        final File file = new File(mDirectory, COMPACTED_FILE);
+        if (file.exists()) {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            try {
+                mCompactedIndex = Long.parseLong(reader.readLine());
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int space = line.indexOf(' ');
+                    mCompactedLengths.put(Integer.parseInt(line.substring(0, space)),
+                            Long.parseLong(line.substring(space + 1)));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Damaged " + file);
+            } finally {
+                reader.close();
+            }
+        }
+        mLoaded = true;
+    }
+
+    private void saveCompacted() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        text.append(mCompactedIndex).append('\n');
+        for (Map.Entry<Integer, Long> entry : mCompactedLengths.entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        final File file = new File(mDirectory, COMPACTED_FILE);
+        final File tmp = new File(mDirectory, COMPACTED_FILE + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(text.toString().getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses runs of readings from one device into self-contained blocks.  The three columns
+ * are stored one after the other, each with the scheme that suits it:
+ * <ul>
+ * <li>timestamps as delta-of-delta, in the variable-width buckets of Facebook's Gorilla, so a
+ * steady 1 Hz stream costs one or a few bits per sample;</li>
+ * <li>heart rates as zig-zag varint deltas, one byte for any change under 64 bpm;</li>
+ * <li>temperatures Gorilla style, as the XOR with the previous value reusing the previous
+ * window of meaningful bits where possible.  Temperatures are fixed point hundredths, so the
+ * XOR runs over the 32 bits of the int rather than over float bits.</li>
+ * </ul>
+ *
+ * <p>Every block starts with a {@link #HEADER_SIZE} byte big-endian header: magic, sample
+ * count, payload length, CRC-32 of the payload, first and last timestamp.  The header alone is
+ * enough to skip a block that is outside a time range.
+ *
+ * <p>An instance keeps its encode buffer and bit reader between calls, so steady-state
+ * encoding and decoding do not allocate.  Not thread safe.
+ */
+public class SampleBlockCodec {
+    public static final int HEADER_SIZE = 32;
+    public static final int MAGIC = 0x424c4b31;
+
+    /**
+     * Decoded columns.  Arrays grow as needed and are reused from block to block.
+     */
+    public static class Columns {
+        public long[] timestamps = new long[0];
+        public int[] heartRates = new int[0];
+        public int[] temperatures = new int[0];
+        public int count;
+
+        public void ensureCapacity(int capacity) {
+            if (timestamps.length >= capacity) return;
+            final long[] newTimestamps = new long[capacity];
+            final int[] newHeartRates = new int[capacity];
+            final int[] newTemperatures = new int[capacity];
+            System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+            System.arraycopy(heartRates, 0, newHeartRates, 0, count);
+            System.arraycopy(temperatures, 0, newTemperatures, 0, count);
+            timestamps = newTimestamps;
+            heartRates = newHeartRates;
+            temperatures = newTemperatures;
+        }
+
+        public void add(long timestamp, int heartRate, int temperature) {
+            if (count == timestamps.length) {
+                ensureCapacity(Math.max(16, count * 2));
+            }
+            timestamps[count] = timestamp;
+            heartRates[count] = heartRate;
+            temperatures[count] = temperature;
+            count++;
+        }
+
+        public void clear() {
+            count = 0;
+        }
+    }
+
+    private final BitWriter mWriter = new BitWriter();
+    private final BitReader mReader = new BitReader();
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Encodes the first {@code columns.count} samples of {@code columns}, which must be at least
+     * one.  The block is left in {@link #getBuffer()}.
+     *
+     * @return the length of the block in bytes, header included.
+     */
+    public int encode(Columns columns) {
+        final int count = columns.count;
+        if (count < 1) throw new IllegalArgumentException("Empty block");
+
+        final BitWriter out = mWriter;
+        out.reset(HEADER_SIZE);
+        encodeTimestamps(out, columns.timestamps, count);
+        encodeHeartRates(out, columns.heartRates, count);
+        encodeTemperatures(out, columns.temperatures, count);
+        out.finish();
+
+        final byte[] buffer = out.mBuffer;
+        final int payloadLength = out.mLength - HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(buffer, HEADER_SIZE, payloadLength);
+        putInt(buffer, 0, MAGIC);
+        putInt(buffer, 4, count);
+        putInt(buffer, 8, payloadLength);
+        putInt(buffer, 12, (int) mCrc.getValue());
+        putLong(buffer, 16, columns.timestamps[0]);
+        putLong(buffer, 24, columns.timestamps[count - 1]);
+        return out.mLength;
+    }
+
+    /**
+     * Returns the buffer holding the block produced by the last {@link #encode(Columns)}.
+     */
+    public byte[] getBuffer() {
+        return mWriter.mBuffer;
+    }
+
+    /**
+     * Decodes the block at {@code offset} of {@code block} into {@code columns}, replacing
+     * what they held.
+     *
+     * @throws IOException if the block is damaged.
+     */
+    public void decode(byte[] block, int offset, Columns columns) throws IOException {
+        if (getInt(block, offset) != MAGIC) throw new IOException("Not a sample block");
+        final int count = getInt(block, offset + 4);
+        final int payloadLength = getInt(block, offset + 8);
+        final int payloadOffset = offset + HEADER_SIZE;
+        if (count < 1 || payloadLength < 0 || payloadOffset + payloadLength > block.length) {
+            throw new IOException("Truncated sample block");
+        }
+        mCrc.reset();
+        mCrc.update(block, payloadOffset, payloadLength);
+        if ((int) mCrc.getValue() != getInt(block, offset + 12)) {
+            throw new IOException("Sample block checksum mismatch");
+        }
+
+        columns.clear();
+        columns.ensureCapacity(count);
+        final BitReader in = mReader;
+        in.reset(block, payloadOffset, payloadOffset + payloadLength);
+        try {
+            decodeTimestamps(in, columns.timestamps, count);
+            decodeHeartRates(in, columns.heartRates, count);
+            decodeTemperatures(in, columns.temperatures, count);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated sample block");
+        }
+        columns.count = count;
+    }
+
+    public static int getCount(byte[] header, int offset) {
+        return getInt(header, offset + 4);
+    }
+
+    /**
+     * Returns the length of the block whose header is at {@code offset}, header included.
+     */
+    public static int getBlockLength(byte[] header, int offset) {
+        return HEADER_SIZE + getInt(header, offset + 8);
+    }
+
+    public static long getFirstTimestamp(byte[] header, int offset) {
+        return getLong(header, offset + 16);
+    }
+
+    public static long getLastTimestamp(byte[] header, int offset) {
+        return getLong(header, offset + 24);
+    }
+
+    private static void encodeTimestamps(BitWriter out, long[] timestamps, int count) {
+        out.write(timestamps[0], 64);
+        if (count == 1) return;
+        long previousDelta = timestamps[1] - timestamps[0];
+        out.writeVarint(zigZag(previousDelta));
+        for (int i = 2; i < count; i++) {
+            final long delta = timestamps[i] - timestamps[i - 1];
+            final long dod = delta - previousDelta;
+            previousDelta = delta;
+            if (dod == 0) {
+                out.write(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                out.write(0x2, 2);
+                out.write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                out.write(0x6, 3);
+                out.write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                out.write(0xe, 4);
+                out.write(dod, 12);
+            } else {
+                out.write(0xf, 4);
+                out.write(dod, 64);
+            }
+        }
+    }
+
+    private static void decodeTimestamps(BitReader in, long[] timestamps, int count) {
+        timestamps[0] = in.read(64);
+        if (count == 1) return;
+        long delta = unZigZag(in.readVarint());
+        timestamps[1] = timestamps[0] + delta;
+        for (int i = 2; i < count; i++) {
+            final long dod;
+            if (in.read(1) == 0) {
+                dod = 0;
+            } else if (in.read(1) == 0) {
+                dod = signExtend(in.read(7), 7);
+            } else if (in.read(1) == 0) {
+                dod = signExtend(in.read(9), 9);
+            } else if (in.read(1) == 0) {
+                dod = signExtend(in.read(12), 12);
+            } else {
+                dod = in.read(64);
+            }
+            delta += dod;
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+    }
+
+    private static void encodeHeartRates(BitWriter out, int[] heartRates, int count) {
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            out.writeVarint(zigZag(heartRates[i] - previous));
+            previous = heartRates[i];
+        }
+    }
+
+    private static void decodeHeartRates(BitReader in, int[] heartRates, int count) {
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += unZigZag(in.readVarint());
+            heartRates[i] = (int) previous;
+        }
+    }
+
+    private static void encodeTemperatures(BitWriter out, int[] temperatures, int count) {
+        int previous = temperatures[0];
+        out.write(previous, 32);
+        int windowLeading = -1;
+        int windowTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            final int xor = temperatures[i] ^ previous;
+            previous = temperatures[i];
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            out.write(1, 1);
+            final int leading = Integer.numberOfLeadingZeros(xor);
+            final int trailing = Integer.numberOfTrailingZeros(xor);
+            if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing) {
+                // Fits in the window of the previous value: send only the bits inside it.
+                out.write(0, 1);
+                out.write(xor >>> windowTrailing, 32 - windowLeading - windowTrailing);
+            } else {
+                final int length = 32 - leading - trailing;
+                out.write(1, 1);
+                out.write(leading, 5);
+                out.write(length - 1, 5);
+                out.write(xor >>> trailing, length);
+                windowLeading = leading;
+                windowTrailing = trailing;
+            }
+        }
+    }
+
+    private static void decodeTemperatures(BitReader in, int[] temperatures, int count) {
+        int previous = (int) in.read(32);
+        temperatures[0] = previous;
+        int windowLeading = 0;
+        int windowTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            if (in.read(1) != 0) {
+                final int xor;
+                if (in.read(1) == 0) {
+                    xor = (int) in.read(32 - windowLeading - windowTrailing) << windowTrailing;
+                } else {
+                    windowLeading = (int) in.read(5);
+                    final int length = (int) in.read(5) + 1;
+                    windowTrailing = 32 - windowLeading - length;
+                    xor = (int) in.read(length) << windowTrailing;
+                }
+                previous ^= xor;
+            }
+            temperatures[i] = previous;
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        return (long) getInt(buffer, offset) << 32 | (getInt(buffer, offset + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Writes bit fields most significant bit first into a growable byte array.
+     */
+    private static final class BitWriter {
+        byte[] mBuffer = new byte[4096];
+        int mLength;
+        // Bits not yet written to mBuffer are the low mBits bits of mAccumulator.
+        private long mAccumulator;
+        private int mBits;
+
+        void reset(int start) {
+            mLength = start;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        /**
+         * Writes the low {@code count} bits of {@code value}.
+         */
+        void write(long value, int count) {
+            if (count > 32) {
+                write(value >>> 32, count - 32);
+                count = 32;
+            }
+            mAccumulator = (mAccumulator << count) | (value & ((1L << count) - 1));
+            mBits += count;
+            while (mBits >= 8) {
+                mBits -= 8;
+                if (mLength == mBuffer.length) {
+                    final byte[] grown = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                    mBuffer = grown;
+                }
+                mBuffer[mLength++] = (byte) (mAccumulator >>> mBits);
+            }
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((value & 0x7f) | 0x80, 8);
+                value >>>= 7;
+            }
+            write(value, 8);
+        }
+
+        /**
+         * Pads the last byte with zero bits.
+         */
+        void finish() {
+            if (mBits > 0) {
+                write(0, 8 - mBits);
+            }
+        }
+    }
+
+    private static final class BitReader {
+        private byte[] mBuffer;
+        private int mPosition;
+        private int mEnd;
+        private long mAccumulator;
+        private int mBits;
+
+        void reset(byte[] buffer, int start, int end) {
+            mBuffer = buffer;
+            mPosition = start;
+            mEnd = end;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        long read(int count) {
+            if (count > 32) {
+                final long high = read(count - 32);
+                return (high << 32) | read(32);
+            }
+            while (mBits < count) {
+                if (mPosition >= mEnd) throw new IndexOutOfBoundsException();
+                mAccumulator = (mAccumulator << 8) | (mBuffer[mPosition++] & 0xff);
+                mBits += 8;
+            }
+            mBits -= count;
+            return (mAccumulator >>> mBits) & ((1L << count) - 1);
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final long b = read(8);
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process, single-producer/multi-consumer ring buffer that carries {@link SensorSample}s from
+ * {@link BluetoothLeService} to its listeners without going through {@code sendBroadcast}.
+ *
+ * <p>The producer fills a preallocated slot obtained from {@link #claim()} and makes it visible
+ * with {@link #publish()}.  Each subscriber reads at its own pace from its own sequence number;
+ * nothing on the path takes a lock or allocates.  A subscriber that falls a full ring behind
+ * skips ahead to the oldest sample still available and the gap is counted in
+ * {@link #getDroppedCount()}; the producer never waits for a slow reader.
+ *
+ * <p>Subscribers on a handler copy each slot before delivering it and then check, seqlock
+ * style, that the producer did not reach the slot again while they copied.  A copy that may be
+ * torn is counted as dropped rather than delivered.
+ */
+public class SampleChannel {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Receives samples.  The sample object is owned by the channel and is reused once the
+     * callback returns.
+     */
+    public interface Listener {
+        void onSample(SensorSample sample);
+    }
+
+    private final SensorSample[] mRing;
+    private final int mMask;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+    // Sequence of the next slot to be published.  Written only by the producer.
+    private volatile long mPublished;
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param capacity Number of samples kept in flight.  Rounded up to a power of two.
+     */
+    public SampleChannel(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mRing = new SensorSample[size];
+        for (int i = 0; i < size; i++) {
+            mRing[i] = new SensorSample();
+        }
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mRing.length;
+    }
+
+    /**
+     * Returns the slot the producer should fill next.  Must only be called from the producer
+     * thread, followed by {@link #publish()}.
+     */
+    public SensorSample claim() {
+        return mRing[(int) (mPublished & mMask)];
+    }
+
+    /**
+     * Makes the slot returned by the last {@link #claim()} visible to subscribers.
+     */
+    public void publish() {
+        mPublished = mPublished + 1;
+        for (Subscription subscription : mSubscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Subscribes {@code listener} to samples.
+     *
+     * @param address Only deliver samples from this device, or null for every device.
+     * @param handler Handler whose thread runs the listener, or null to run it directly on the
+     *                producer thread.  Inline listeners must be fast.
+     */
+    public void subscribe(Listener listener, String address, Handler handler) {
+        unsubscribe(listener);
+        mSubscriptions.add(new Subscription(listener, address, handler, mPublished));
+    }
+
+    public void unsubscribe(Listener listener) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener == listener) {
+                subscription.mActive = false;
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of samples skipped by subscribers that fell behind.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private class Subscription implements Runnable {
+        final Listener mListener;
+        final String mAddress;
+        final Handler mHandler;
+        final AtomicBoolean mScheduled = new AtomicBoolean();
+        // What a subscriber on a handler is given, copied out of the ring.  Null for inline
+        // subscribers, which run on the producer thread and can read the slot itself.
+        final SensorSample mCopy;
+        // Cleared on unsubscribe so a drain that is already posted does nothing.
+        volatile boolean mActive = true;
+        // Next sequence to read.  Only touched by the thread that drains this subscription.
+        long mSequence;
+
+        Subscription(Listener listener, String address, Handler handler, long start) {
+            mListener = listener;
+            mAddress = address;
+            mHandler = handler;
+            mSequence = start;
+            mCopy = handler != null ? new SensorSample() : null;
+        }
+
+        void signal() {
+            if (mHandler == null) {
+                run();
+            } else if (mScheduled.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            if (!mActive) return;
+            final long published = mPublished;
+            long sequence = skipOverwritten(mSequence, published);
+            for (; sequence < published; sequence++) {
+                SensorSample sample = mRing[(int) (sequence & mMask)];
+                if (mCopy != null) {
+                    mCopy.copyFrom(sample);
+                    if (mPublished - sequence >= mRing.length) {
+                        // The producer claimed the slot again while it was copied.
+                        sequence = skipOverwritten(sequence, mPublished) - 1;
+                        continue;
+                    }
+                    sample = mCopy;
+                }
+                if (mAddress == null || mAddress.equals(sample.getAddress())) {
+                    mListener.onSample(sample);
+                }
+            }
+            mSequence = sequence;
+        }
+
+        // Returns the oldest sequence from |sequence| on whose slot the producer has not
+        // claimed again, counting the ones passed over as dropped.  The slot of
+        // |published| - capacity is the one the producer may be filling.
+        private long skipOverwritten(long sequence, long published) {
+            final long oldest = published - mRing.length + 1;
+            if (sequence >= oldest) return sequence;
+            mDropped.addAndGet(oldest - sequence);
+            return oldest;
+        }
+    }
+}
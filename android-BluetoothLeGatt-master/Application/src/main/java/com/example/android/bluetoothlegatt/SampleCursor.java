@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Streams the stored readings of one device in a time range, oldest first: first the compressed
+ * blocks of the {@link SampleArchive}, then the segments of the {@link SampleStore} that were
+ * not compacted yet.  Readings are fetched a block at a time into a reused buffer, so memory
+ * stays flat however long the range is.
+ *
+ * <p>With a bucket size, consecutive readings that fall into the same bucket are averaged
+ * into one, timestamped with the start of the bucket, which is what a chart of a long range
+ * needs.
+ *
+ * <p>What the cursor returns is fixed when it is created: readings compacted or stored later
+ * are not included.  Reads happen on the calling thread and briefly lock the store and
+ * archive, so use the cursor off the main thread.  Not thread safe.
+ */
+public class SampleCursor {
+    private static final int BATCH_SIZE = SampleArchive.BLOCK_SAMPLES;
+
+    private final SampleStore mStore;
+    private final SampleArchive mArchive;
+    private final int mDeviceId;
+    private final long mFrom;
+    private final long mTo;
+    private final long mBucketMs;
+
+    // Archive blocks still to read are [mNextBlock, mBlockEnd).
+    private int mNextBlock;
+    private final int mBlockEnd;
+    // Raw segments still to read, and where to continue in the first of them.
+    private final long[] mSegments;
+    private final int mSegmentCount;
+    private int mSegment;
+    private int mRecord;
+
+    private final SampleBlockCodec.Columns mBatch = new SampleBlockCodec.Columns();
+    private int mBatchPosition;
+
+    // The next reading in range, read ahead when downsampling.
+    private boolean mHasRaw;
+    private long mRawTimestamp;
+    private int mRawHeartRate;
+    private int mRawTemperature;
+
+    private long mTimestamp;
+    private int mHeartRate;
+    private int mTemperature;
+    private int mCount;
+
+    /**
+     * @param bucketMs Bucket size for downsampling in milliseconds, or 0 for every reading.
+     */
+    SampleCursor(SampleStore store, SampleArchive archive, String address, long from, long to,
+                 long bucketMs) throws IOException {
+        mStore = store;
+        mArchive = archive;
+        mFrom = from;
+        mTo = to;
+        mBucketMs = bucketMs;
+
+        store.open();
+        mDeviceId = store.getDeviceId(address);
+        final long compactedIndex;
+        // Taken together, so a compaction cannot make a reading show up in both.
+        synchronized (archive) {
+            compactedIndex = archive.getCompactedIndex();
+            mBlockEnd = mDeviceId >= 0 ? archive.getBlockCount(mDeviceId) : 0;
+        }
+        final File[] files = store.getSegments();
+        int count = 0;
+        final long[] segments = new long[files.length];
+        for (File file : files) {
+            final long index = SampleStore.parseSegmentIndex(file);
+            if (index > compactedIndex) {
+                segments[count++] = index;
+            }
+        }
+        mSegments = segments;
+        mSegmentCount = mDeviceId >= 0 ? count : 0;
+    }
+
+    /**
+     * Moves to the next reading, or bucket when downsampling.
+     *
+     * @return false once there are no more.
+     */
+    public boolean moveToNext() throws IOException {
+        if (!mHasRaw && !nextRaw()) return false;
+        if (mBucketMs <= 0) {
+            mTimestamp = mRawTimestamp;
+            mHeartRate = mRawHeartRate;
+            mTemperature = mRawTemperature;
+            mCount = 1;
+            mHasRaw = false;
+            return true;
+        }
+
+        final long bucket = bucketStart(mRawTimestamp);
+        long heartRateSum = 0;
+        int heartRateCount = 0;
+        long temperatureSum = 0;
+        int temperatureCount = 0;
+        int count = 0;
+        do {
+            if (mRawHeartRate != SensorSample.NO_VALUE) {
+                heartRateSum += mRawHeartRate;
+                heartRateCount++;
+            }
+            if (mRawTemperature != SensorSample.NO_VALUE) {
+                temperatureSum += mRawTemperature;
+                temperatureCount++;
+            }
+            count++;
+        } while (nextRaw() && bucketStart(mRawTimestamp) == bucket);
+
+        mTimestamp = bucket;
+        mHeartRate = heartRateCount > 0
+                ? (int) Math.round((double) heartRateSum / heartRateCount) : SensorSample.NO_VALUE;
+        mTemperature = temperatureCount > 0
+                ? (int) Math.round((double) temperatureSum / temperatureCount)
+                : SensorSample.NO_VALUE;
+        mCount = count;
+        return true;
+    }
+
+    /**
+     * Returns the wall-clock time of the reading, or the start of the bucket, in milliseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the heart rate in beats per minute, or {@link SensorSample#NO_VALUE}.
+     */
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    /**
+     * Returns the temperature in hundredths of a degree Celsius, or
+     * {@link SensorSample#NO_VALUE}.
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     * Returns the number of readings averaged into the current one.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    private long bucketStart(long timestamp) {
+        return timestamp - ((timestamp % mBucketMs) + mBucketMs) % mBucketMs;
+    }
+
+    // Reads the next reading in range into the mRaw fields.
+    private boolean nextRaw() throws IOException {
+        final SampleBlockCodec.Columns batch = mBatch;
+        while (true) {
+            while (mBatchPosition < batch.count) {
+                final int i = mBatchPosition++;
+                final long timestamp = batch.timestamps[i];
+                // Archive blocks may reach outside the range.
+                if (timestamp >= mFrom && timestamp < mTo) {
+                    mRawTimestamp = timestamp;
+                    mRawHeartRate = batch.heartRates[i];
+                    mRawTemperature = batch.temperatures[i];
+                    mHasRaw = true;
+                    return true;
+                }
+            }
+            mHasRaw = false;
+            if (!fill()) return false;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        mBatch.clear();
+        mBatchPosition = 0;
+        if (mNextBlock < mBlockEnd) {
+            final int block = mArchive.findBlock(mDeviceId, mNextBlock, mBlockEnd, mFrom, mTo);
+            if (block >= 0) {
+                mArchive.readBlock(mDeviceId, block, mBatch);
+                mNextBlock = block + 1;
+                return true;
+            }
+            mNextBlock = mBlockEnd;
+        }
+        while (mSegment < mSegmentCount) {
+            final int next = mStore.read(mSegments[mSegment], mRecord, mDeviceId, mFrom, mTo,
+                    mBatch, BATCH_SIZE);
+            if (next < 0) {
+                mSegment++;
+                mRecord = 0;
+            } else {
+                mRecord = next;
+            }
+            if (mBatch.count > 0) return true;
+        }
+        return false;
+    }
+}
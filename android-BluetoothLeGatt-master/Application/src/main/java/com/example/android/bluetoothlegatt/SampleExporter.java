@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes stored readings out as CSV or as a compact binary file, optionally gzipped.  Readings
+ * are pulled from a {@link SampleCursor} and formatted straight into one fixed-size byte buffer,
+ * so memory use does not depend on how many readings are exported and no objects are created
+ * per reading.
+ *
+ * <p>CSV files have a header line and one line per reading:
+ * <pre>
+ *   address,timestamp_ms,heart_rate_bpm,temperature_c
+ *   D4:36:39:6F:9A:0B,1461662305123,72,36.57
+ * </pre>
+ * with empty fields for values the reading did not carry.
+ *
+ * <p>Binary files are big-endian: the int {@link #BINARY_MAGIC} and the int
+ * {@link #BINARY_VERSION}, then for each device a short address length and the ASCII address,
+ * followed by chunks of an int count and that many 16 byte readings (long timestamp, int heart
+ * rate, int temperature, with {@link SensorSample#NO_VALUE} for missing values).  A chunk with
+ * a count of 0 ends the device.
+ *
+ * <p>An export runs on the calling thread and can be cancelled from any other.
+ */
+public class SampleExporter {
+    private final static String TAG = SampleExporter.class.getSimpleName();
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    public static final int BINARY_MAGIC = 0x424c4558;
+    public static final int BINARY_VERSION = 1;
+
+    public interface ProgressListener {
+        /**
+         * Called on the exporting thread every few thousand readings and once at the end.
+         *
+         * @param fraction Rough share of the export done, from 0 to 1.
+         */
+        void onProgress(long count, float fraction);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Longer than any CSV line or binary device header.
+    private static final int MAX_LINE = 512;
+    private static final int PROGRESS_INTERVAL = 8192;
+    private static final byte[] CSV_HEADER =
+            ascii("address,timestamp_ms,heart_rate_bpm,temperature_c\n");
+
+    private final SampleStore mStore;
+    private final SampleArchive mArchive;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mLength;
+    // Offset of the count of the open binary chunk, or -1.
+    private int mChunkStart = -1;
+    private int mChunkCount;
+    private volatile boolean mCancelled;
+    private volatile long mCount;
+
+    SampleExporter(SampleStore store, SampleArchive archive) {
+        mStore = store;
+        mArchive = archive;
+    }
+
+    public static String getMimeType(int format, boolean gzip) {
+        if (gzip) return "application/gzip";
+        return format == FORMAT_CSV ? "text/csv" : "application/octet-stream";
+    }
+
+    public static String getFileExtension(int format, boolean gzip) {
+        final String extension = format == FORMAT_CSV ? ".csv" : ".bin";
+        return gzip ? extension + ".gz" : extension;
+    }
+
+    /**
+     * Stops the export in progress, or the next one, at the next batch of readings.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Returns the number of readings exported so far.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Exports to {@code file}, which is deleted again if the export is cancelled or fails.
+     *
+     * @return false if cancelled.
+     * @see #export
+     */
+    public boolean exportToFile(String[] addresses, long from, long to, long bucketMs,
+                                int format, boolean gzip, File file, ProgressListener listener)
+            throws IOException {
+        boolean done = false;
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            done = export(addresses, from, to, bucketMs, format, gzip, out, listener);
+            out.getFD().sync();
+        } finally {
+            out.close();
+            if (!done && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Writes the readings of {@code addresses}, or of every stored device if null, with
+     * timestamps in [{@code from}, {@code to}) to {@code out}, device by device.  {@code out}
+     * is not closed.
+     *
+     * @param bucketMs Averages readings per bucket of this many milliseconds if positive.
+     * @param listener Told about progress; may be null.
+     * @return false if cancelled, in which case {@code out} holds part of the export.
+     */
+    public boolean export(String[] addresses, long from, long to, long bucketMs, int format,
+                          boolean gzip, OutputStream out, ProgressListener listener)
+            throws IOException {
+        if (format != FORMAT_CSV && format != FORMAT_BINARY) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        if (addresses == null) {
+            mStore.open();
+            addresses = mStore.getDeviceAddresses();
+        }
+        mCount = 0;
+        mLength = 0;
+        final FastGzipOutputStream gzipOut = gzip ? new FastGzipOutputStream(out) : null;
+        final OutputStream target = gzip ? gzipOut : out;
+
+        try {
+            if (format == FORMAT_CSV) {
+                put(CSV_HEADER);
+            } else {
+                putInt(BINARY_MAGIC);
+                putInt(BINARY_VERSION);
+            }
+            long count = 0;
+            final double span = Math.max(1, (double) to - from);
+            for (int device = 0; device < addresses.length; device++) {
+                final byte[] address = ascii(addresses[device]);
+                final SampleCursor cursor =
+                        new SampleCursor(mStore, mArchive, addresses[device], from, to, bucketMs);
+                if (mCancelled) return false;
+                if (format == FORMAT_BINARY) {
+                    if (mLength > BUFFER_SIZE - MAX_LINE) {
+                        drain(target, format);
+                    }
+                    putShort(address.length);
+                    put(address);
+                    mChunkStart = -1;
+                }
+                while (cursor.moveToNext()) {
+                    if (mLength > BUFFER_SIZE - MAX_LINE) {
+                        drain(target, format);
+                    }
+                    if (format == FORMAT_CSV) {
+                        putCsvLine(address, cursor);
+                    } else {
+                        putBinaryRecord(cursor);
+                    }
+                    if (++count % PROGRESS_INTERVAL == 0) {
+                        mCount = count;
+                        if (mCancelled) return false;
+                        if (listener != null) {
+                            final double inDevice = Math.min(1, Math.max(0,
+                                    (cursor.getTimestamp() - (double) from) / span));
+                            listener.onProgress(count,
+                                    (float) ((device + inDevice) / addresses.length));
+                        }
+                    }
+                }
+                if (format == FORMAT_BINARY) {
+                    closeChunk();
+                    putInt(0);
+                }
+            }
+            drain(target, format);
+            if (gzipOut != null) {
+                gzipOut.finish();
+            }
+            out.flush();
+            mCount = count;
+            if (listener != null) {
+                listener.onProgress(count, 1);
+            }
+            return true;
+        } finally {
+            // The deflater holds native memory until ended, also when cancelled or failing.
+            if (gzipOut != null) {
+                gzipOut.release();
+            }
+        }
+    }
+
+    private void putCsvLine(byte[] address, SampleCursor cursor) {
+        put(address);
+        mBuffer[mLength++] = ',';
+        putDecimal(cursor.getTimestamp());
+        mBuffer[mLength++] = ',';
+        final int heartRate = cursor.getHeartRate();
+        if (heartRate != SensorSample.NO_VALUE) {
+            putDecimal(heartRate);
+        }
+        mBuffer[mLength++] = ',';
+        final int temperature = cursor.getTemperature();
+        if (temperature != SensorSample.NO_VALUE) {
+            // Hundredths of a degree, written as degrees with two decimals.
+            long value = temperature;
+            if (value < 0) {
+                mBuffer[mLength++] = '-';
+                value = -value;
+            }
+            putDecimal(value / 100);
+            mBuffer[mLength++] = '.';
+            mBuffer[mLength++] = (byte) ('0' + value % 100 / 10);
+            mBuffer[mLength++] = (byte) ('0' + value % 10);
+        }
+        mBuffer[mLength++] = '\n';
+    }
+
+    private void putBinaryRecord(SampleCursor cursor) {
+        if (mChunkStart < 0) {
+            mChunkStart = mLength;
+            mChunkCount = 0;
+            mLength += 4;
+        }
+        final long timestamp = cursor.getTimestamp();
+        putInt((int) (timestamp >>> 32));
+        putInt((int) timestamp);
+        putInt(cursor.getHeartRate());
+        putInt(cursor.getTemperature());
+        mChunkCount++;
+    }
+
+    // Fills in the count of the open chunk.
+    private void closeChunk() {
+        if (mChunkStart < 0) return;
+        final int length = mLength;
+        mLength = mChunkStart;
+        putInt(mChunkCount);
+        mLength = length;
+        mChunkStart = -1;
+    }
+
+    private void drain(OutputStream out, int format) throws IOException {
+        if (format == FORMAT_BINARY) {
+            closeChunk();
+        }
+        out.write(mBuffer, 0, mLength);
+        mLength = 0;
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    private void putShort(int value) {
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        mBuffer[mLength++] = (byte) (value >>> 24);
+        mBuffer[mLength++] = (byte) (value >>> 16);
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void putDecimal(long value) {
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            if (value == Long.MIN_VALUE) {
+                put(ascii("9223372036854775808"));
+                return;
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int position = mLength + digits;
+        mLength = position;
+        do {
+            mBuffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    // Readings repeat a lot, so the fastest level already gets most of the gain, several times
+    // quicker than the default.
+    private static class FastGzipOutputStream extends GZIPOutputStream {
+        FastGzipOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+
+        // Frees the deflater without closing the wrapped stream, which the caller owns.
+        void release() {
+            def.end();
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -16,29 +16,44 @@
 
 package com.example.android.bluetoothlegatt;
 
-import java.util.HashMap;
+import java.util.UUID;
 
 /**
  * This class includes a small subset of standard GATT attributes for demonstration purposes.
+ * Names are kept by the short form of their UUID, so looking one up allocates nothing; see
+ * {@link GattUuidRegistry} for the names of all standard attributes.
  */
 public class SampleGattAttributes {
-    private static HashMap<String, String> attributes = new HashMap();
+    private static UuidNameTable attributes = new UuidNameTable(4);
+    public static String HM_10_SERVICE = "0000ffe0-0000-1000-8000-00805f9b34fb";
     public static String HM_10 = "0000ffe1-0000-1000-8000-00805f9b34fb";
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
 
 
     static {
         // Sample Services.
-       // attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
-        attributes.put("0000ffe0-0000-1000-8000-00805f9b34fb", "Heart Rate & Temp");
+       // put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
+        put(HM_10_SERVICE, "Heart Rate & Temp");
         // Sample Characteristics.
-      //  attributes.put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String");
-        attributes.put(HM_10, "Check Now!");
+      //  put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String");
+        put(HM_10, "Check Now!");
 
     }
 
-    public static String lookup(String uuid, String defaultName) {
+    private static void put(String uuid, String name) {
+        attributes.put((int) UuidNameTable.shortForm(UUID.fromString(uuid)), name);
+    }
+
+    public static String lookup(UUID uuid, String defaultName) {
         String name = attributes.get(uuid);
         return name == null ? defaultName : name;
     }
+
+    public static String lookup(String uuid, String defaultName) {
+        try {
+            return lookup(UUID.fromString(uuid), defaultName);
+        } catch (IllegalArgumentException e) {
+            return defaultName;
+        }
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Turns raw characteristic values into {@link SensorSample}s on a {@link SampleChannel}.
+ *
+ * <p>Every characteristic of a device gets its own {@link CharacteristicCodec} from the
+ * {@link CodecRegistry}: for all characteristics of the device when its services are
+ * discovered, see {@link #onServicesDiscovered}, or else when the first value of the
+ * characteristic arrives.  Values are then handed straight to that codec.  By default data from
+ * the HM-10 UART characteristic is run through {@link Hm10TextCodec}, the standard Heart Rate
+ * and Temperature Measurement characteristics are decoded, and values from any other
+ * characteristic are published as they are, one sample per value.
+ *
+ * <p>Not thread safe: all calls must come from one thread, or be serialized by the caller.
+ */
+public class SamplePipeline {
+    private static final UUID UUID_HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+
+    // The sensors terminate each reading with CR LF.
+    public static final FrameReassembler.Format HM_10_FORMAT =
+            FrameReassembler.Format.delimited((byte) '\r', (byte) '\n');
+
+    // The codecs of one device.  A device has a handful of characteristics at most, so a
+    // linear search, by identity first as values carry the UUID of their characteristic, is
+    // cheaper than hashing the UUID.
+    private static class DeviceState {
+        UUID[] mUuids = new UUID[4];
+        CharacteristicCodec[] mCodecs = new CharacteristicCodec[4];
+        int mCount;
+
+        CharacteristicCodec find(UUID uuid) {
+            for (int i = 0; i < mCount; i++) {
+                if (mUuids[i] == uuid) return mCodecs[i];
+            }
+            for (int i = 0; i < mCount; i++) {
+                if (mUuids[i].equals(uuid)) return mCodecs[i];
+            }
+            return null;
+        }
+
+        void add(UUID uuid, CharacteristicCodec codec) {
+            if (mCount == mUuids.length) {
+                final UUID[] uuids = new UUID[mCount * 2];
+                final CharacteristicCodec[] codecs = new CharacteristicCodec[mCount * 2];
+                System.arraycopy(mUuids, 0, uuids, 0, mCount);
+                System.arraycopy(mCodecs, 0, codecs, 0, mCount);
+                mUuids = uuids;
+                mCodecs = codecs;
+            }
+            mUuids[mCount] = uuid;
+            mCodecs[mCount] = codec;
+            mCount++;
+        }
+
+        void reset() {
+            for (int i = 0; i < mCount; i++) {
+                mCodecs[i].reset();
+            }
+        }
+    }
+
+    private final SampleChannel mChannel;
+    private final CodecRegistry mRegistry = new CodecRegistry();
+    private final HashMap<String, DeviceState> mDevices = new HashMap<String, DeviceState>();
+    private FrameReassembler.Format mFormat = HM_10_FORMAT;
+
+    public SamplePipeline(SampleChannel channel) {
+        mChannel = channel;
+        mRegistry.registerStandardCodecs();
+        mRegistry.register(UUID_HM_10, new CharacteristicCodec.Factory() {
+            @Override
+            public CharacteristicCodec create() {
+                return new Hm10TextCodec(mFormat);
+            }
+        });
+    }
+
+    public SampleChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns the registry codecs come from, to register more.  Devices already seen keep
+     * their codecs until their services are discovered again.
+     */
+    public CodecRegistry getCodecRegistry() {
+        return mRegistry;
+    }
+
+    /**
+     * Changes how HM-10 data is framed.  Partial frames buffered under the old format are lost.
+     */
+    public void setFrameFormat(FrameReassembler.Format format) {
+        mFormat = format;
+        mDevices.clear();
+    }
+
+    /**
+     * Resolves the codecs of every characteristic of {@code address}.  A characteristic that
+     * resolves to the same kind of codec as before keeps the codec it had, and with it the
+     * sequence numbers it assigns, so a device that reconnects does not number its readings
+     * from 0 again.
+     */
+    public void onServicesDiscovered(String address, List<BluetoothGattService> services) {
+        final DeviceState previous = mDevices.get(address);
+        if (services == null) {
+            // Nothing to resolve ahead of time; codecs are created as values arrive.
+            if (previous == null) {
+                mDevices.put(address, new DeviceState());
+            }
+            return;
+        }
+        final DeviceState state = new DeviceState();
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                final UUID uuid = characteristic.getUuid();
+                if (state.find(uuid) != null) continue;
+                CharacteristicCodec codec = mRegistry.create(uuid);
+                final CharacteristicCodec old = previous != null ? previous.find(uuid) : null;
+                if (old != null && old.getClass() == codec.getClass()) {
+                    codec = old;
+                }
+                state.add(uuid, codec);
+            }
+        }
+        mDevices.put(address, state);
+    }
+
+    /**
+     * Processes a value received from {@code address}.
+     *
+     * @param timestamp Wall-clock arrival time in milliseconds.
+     */
+    public void onData(String address, UUID uuid, long timestamp, byte[] value) {
+        if (value == null) return;
+
+        onData(address, uuid, timestamp, value, 0, value.length);
+    }
+
+    /**
+     * Processes {@code length} bytes of {@code value} starting at {@code offset}.
+     */
+    public void onData(String address, UUID uuid, long timestamp, byte[] value, int offset,
+                       int length) {
+        DeviceState state = mDevices.get(address);
+        if (state == null) {
+            state = new DeviceState();
+            mDevices.put(address, state);
+        }
+        CharacteristicCodec codec = state.find(uuid);
+        if (codec == null) {
+            codec = mRegistry.create(uuid);
+            state.add(uuid, codec);
+        }
+        codec.decode(address, uuid, timestamp, value, offset, length, mChannel);
+    }
+
+    /**
+     * Drops any partial frame from {@code address}, for example after it disconnected.
+     */
+    public void reset(String address) {
+        DeviceState state = mDevices.get(address);
+        if (state != null) {
+            state.reset();
+        }
+    }
+
+    /**
+     * Returns the reassembler for HM-10 data from {@code address}, or null if nothing was
+     * received from it yet.
+     */
+    public FrameReassembler getReassembler(String address) {
+        DeviceState state = mDevices.get(address);
+        final CharacteristicCodec codec = state != null ? state.find(UUID_HM_10) : null;
+        return codec instanceof Hm10TextCodec ? ((Hm10TextCodec) codec).getReassembler() : null;
+    }
+}
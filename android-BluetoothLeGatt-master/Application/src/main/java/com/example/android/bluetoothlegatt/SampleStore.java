@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Append-only log of decoded readings, kept in fixed-size segment files that are written
+ * through a {@link MappedByteBuffer}.  Appending a reading is a handful of stores into mapped
+ * memory: no system call, no copy and no allocation.
+ *
+ * <p>Every segment starts with a one record header followed by {@link #RECORD_SIZE} byte
+ * records laid out as
+ * <pre>
+ *   0  int   device id (see {@link #getDeviceAddress(int)})
+ *   4  int   checksum of the other fields
+ *   8  long  timestamp, wall-clock milliseconds
+ *  16  long  sequence number reported by the sensor, or -1
+ *  24  int   heart rate, beats per minute
+ *  28  int   temperature, hundredths of a degree Celsius
+ * </pre>
+ * in native byte order.  When a segment is full it is forced to disk and the next one is
+ * started; once there are more than {@link #setMaxSegments(int) max segments} the oldest is
+ * deleted, unless it is past the limit set with {@link #setDeletableThrough(long)}.  A
+ * {@link SegmentListener} can pick up each segment as it is sealed.
+ *
+ * <p>For time range reads every segment has a sparse index holding the smallest and largest
+ * timestamp of each page of {@link #PAGE_RECORDS} records.  The index of the segment being
+ * written is kept up to date as records are appended; those of older segments are built the
+ * first time they are read.
+ *
+ * <p>Mapped pages survive a crash of the process, but a power loss can leave the tail of the
+ * last segment partly written.  {@link #open()} scans the last segment for the first record
+ * whose checksum does not match, continues appending there and zeroes everything after it.
+ */
+public class SampleStore {
+    private final static String TAG = SampleStore.class.getSimpleName();
+
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    static final int OFFSET_DEVICE = 0;
+    static final int OFFSET_CHECKSUM = 4;
+    static final int OFFSET_TIMESTAMP = 8;
+    static final int OFFSET_SEQUENCE = 16;
+    static final int OFFSET_HEART_RATE = 24;
+    static final int OFFSET_TEMPERATURE = 28;
+    static final int PAGE_RECORDS = 256;
+
+    /**
+     * Told about each segment once it is full and forced to disk.  Called on the appending
+     * thread with the store locked, so it should hand the segment off rather than read it.
+     */
+    public interface SegmentListener {
+        void onSegmentSealed(File segment, long index);
+    }
+
+    private static final int MAGIC = 0x424c4553;
+    private static final int VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DEVICES_FILE = "devices";
+
+    private static class SegmentIndex {
+        final ByteBuffer mBuffer;
+        final long[] mPageMin;
+        final long[] mPageMax;
+        // Number of records in the segment.
+        int mCount;
+
+        SegmentIndex(ByteBuffer buffer, int segmentSize) {
+            mBuffer = buffer;
+            final int pages = (segmentSize / RECORD_SIZE - 1 + PAGE_RECORDS - 1) / PAGE_RECORDS;
+            mPageMin = new long[pages];
+            mPageMax = new long[pages];
+            Arrays.fill(mPageMin, Long.MAX_VALUE);
+            Arrays.fill(mPageMax, Long.MIN_VALUE);
+        }
+
+        void add(long timestamp) {
+            final int page = mCount / PAGE_RECORDS;
+            if (timestamp < mPageMin[page]) mPageMin[page] = timestamp;
+            if (timestamp > mPageMax[page]) mPageMax[page] = timestamp;
+            mCount++;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private int mMaxSegments = DEFAULT_MAX_SEGMENTS;
+    private SegmentListener mSegmentListener;
+    // Retention only deletes segments up to this index.
+    private long mDeletableThrough = Long.MAX_VALUE;
+
+    private final HashMap<String, Integer> mDeviceIds = new HashMap<String, Integer>();
+    private final ArrayList<String> mDevices = new ArrayList<String>();
+    private final HashMap<Long, SegmentIndex> mIndexes = new HashMap<Long, SegmentIndex>();
+
+    private MappedByteBuffer mBuffer;
+    private SegmentIndex mIndex;
+    private long mSegmentIndex;
+    // Byte offset of the next record in the current segment.
+    private int mPosition;
+    private long mAppendedCount;
+    // Single-entry cache in front of mDeviceIds; samples mostly come in runs from one device.
+    private String mLastAddress;
+    private int mLastDeviceId;
+
+    public SampleStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize Size of each segment file in bytes; a multiple of {@link #RECORD_SIZE}.
+     */
+    public SampleStore(File directory, int segmentSize) {
+        if (segmentSize % RECORD_SIZE != 0 || segmentSize < 2 * RECORD_SIZE) {
+            throw new IllegalArgumentException("Bad segment size " + segmentSize);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+    }
+
+    public synchronized void setMaxSegments(int maxSegments) {
+        mMaxSegments = maxSegments;
+    }
+
+    public synchronized void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * Keeps retention from deleting segments past {@code index}, for example because they were
+     * not archived yet.  Segments held back are deleted once a later call lets them go.  By
+     * default every segment may be deleted.
+     */
+    public synchronized void setDeletableThrough(long index) {
+        mDeletableThrough = index;
+        if (mBuffer != null) {
+            deleteOldSegments();
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    public synchronized boolean isOpen() {
+        return mBuffer != null;
+    }
+
+    /**
+     * Opens the store, recovering the tail of the last segment.  Does nothing if already open.
+     */
+    public synchronized void open() throws IOException {
+        if (mBuffer != null) return;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        loadDevices();
+
+        final File[] segments = listSegments();
+        if (segments.length == 0) {
+            startSegment(0);
+            return;
+        }
+        final File last = segments[segments.length - 1];
+        mSegmentIndex = parseSegmentIndex(last);
+        mBuffer = map(last);
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION
+                || mBuffer.getInt(8) != RECORD_SIZE) {
+            Log.w(TAG, "Unrecognized segment " + last + ", starting a new one.");
+            startSegment(mSegmentIndex + 1);
+            return;
+        }
+        mPosition = recoverTail(mBuffer);
+        mIndex = buildIndex(mBuffer);
+        mIndexes.put(mSegmentIndex, mIndex);
+    }
+
+    /**
+     * Appends the reading in {@code sample}.  Does nothing for samples that carry neither a heart
+     * rate nor a temperature.
+     */
+    public void append(SensorSample sample) throws IOException {
+        if (!sample.hasHeartRate() && !sample.hasTemperature()) return;
+
+        append(sample.getAddress(), sample.getTimestamp(), sample.getSequence(),
+                sample.getHeartRate(), sample.getTemperature());
+    }
+
+    public synchronized void append(String address, long timestamp, long sequence,
+                                    int heartRate, int temperature) throws IOException {
+        if (mBuffer == null) {
+            open();
+        }
+        if (mPosition + RECORD_SIZE > mSegmentSize) {
+            mBuffer.force();
+            if (mSegmentListener != null) {
+                mSegmentListener.onSegmentSealed(segmentFile(mSegmentIndex), mSegmentIndex);
+            }
+            startSegment(mSegmentIndex + 1);
+        }
+        final int device = getOrAssignDeviceId(address);
+        final ByteBuffer buffer = mBuffer;
+        final int position = mPosition;
+        buffer.putInt(position + OFFSET_DEVICE, device);
+        buffer.putLong(position + OFFSET_TIMESTAMP, timestamp);
+        buffer.putLong(position + OFFSET_SEQUENCE, sequence);
+        buffer.putInt(position + OFFSET_HEART_RATE, heartRate);
+        buffer.putInt(position + OFFSET_TEMPERATURE, temperature);
+        buffer.putInt(position + OFFSET_CHECKSUM,
+                checksum(device, timestamp, sequence, heartRate, temperature));
+        mPosition = position + RECORD_SIZE;
+        mIndex.add(timestamp);
+        mAppendedCount++;
+    }
+
+    /**
+     * Forces what was appended so far to disk.
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        mBuffer = null;
+        mIndex = null;
+        mIndexes.clear();
+    }
+
+    /**
+     * Copies the readings of {@code deviceId} with timestamps in [{@code from}, {@code to})
+     * from segment {@code segmentIndex} into {@code out}, starting at record {@code start} and
+     * stopping once {@code out} holds {@code max} readings.  Pages whose timestamps are all
+     * outside the range are skipped without being read.
+     *
+     * @return the record to continue from, or -1 once the end of the segment is reached or if
+     *         the segment does not exist.
+     */
+    public synchronized int read(long segmentIndex, int start, int deviceId, long from, long to,
+                                 SampleBlockCodec.Columns out, int max) throws IOException {
+        final SegmentIndex index = getIndex(segmentIndex);
+        if (index == null) return -1;
+
+        out.ensureCapacity(max);
+        final ByteBuffer buffer = index.mBuffer;
+        final int count = index.mCount;
+        int record = start;
+        while (record < count && out.count < max) {
+            final int page = record / PAGE_RECORDS;
+            if (index.mPageMax[page] < from || index.mPageMin[page] >= to) {
+                record = (page + 1) * PAGE_RECORDS;
+                continue;
+            }
+            final int position = (record + 1) * RECORD_SIZE;
+            final long timestamp = buffer.getLong(position + OFFSET_TIMESTAMP);
+            if (buffer.getInt(position + OFFSET_DEVICE) == deviceId
+                    && timestamp >= from && timestamp < to) {
+                out.add(timestamp, buffer.getInt(position + OFFSET_HEART_RATE),
+                        buffer.getInt(position + OFFSET_TEMPERATURE));
+            }
+            record++;
+        }
+        return record < count ? record : -1;
+    }
+
+    /**
+     * Returns the number of records appended since this instance was created.
+     */
+    public synchronized long getAppendedCount() {
+        return mAppendedCount;
+    }
+
+    /**
+     * Returns the id records of {@code address} carry, assigning one if it has none yet.
+     */
+    public synchronized int registerDevice(String address) throws IOException {
+        if (mBuffer == null) {
+            open();
+        }
+        return getOrAssignDeviceId(address);
+    }
+
+    /**
+     * Returns the address a device id in a record stands for, or null if it is unknown.
+     */
+    public synchronized String getDeviceAddress(int deviceId) {
+        return deviceId >= 0 && deviceId < mDevices.size() ? mDevices.get(deviceId) : null;
+    }
+
+    /**
+     * Returns the addresses of every device something was stored for.
+     */
+    public synchronized String[] getDeviceAddresses() {
+        return mDevices.toArray(new String[mDevices.size()]);
+    }
+
+    /**
+     * Returns the id records of {@code address} carry, or -1 if nothing was stored for it.
+     */
+    public synchronized int getDeviceId(String address) {
+        final Integer id = mDeviceIds.get(address);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Returns the segment files, oldest first.
+     */
+    public synchronized File[] getSegments() {
+        return listSegments();
+    }
+
+    /**
+     * Returns the index of the segment being appended to; every lower index is sealed.
+     */
+    public synchronized long getCurrentSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    static int checksum(int device, long timestamp, long sequence, int heartRate,
+                        int temperature) {
+        // Seeded so that an all-zero record, as left by a fresh segment, never checks out.
+        int h = 0x5bd1e995;
+        h = 31 * h + device;
+        h = 31 * h + (int) (timestamp ^ (timestamp >>> 32));
+        h = 31 * h + (int) (sequence ^ (sequence >>> 32));
+        h = 31 * h + heartRate;
+        h = 31 * h + temperature;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    static boolean isValidRecord(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + OFFSET_CHECKSUM) == checksum(
+                buffer.getInt(position + OFFSET_DEVICE),
+                buffer.getLong(position + OFFSET_TIMESTAMP),
+                buffer.getLong(position + OFFSET_SEQUENCE),
+                buffer.getInt(position + OFFSET_HEART_RATE),
+                buffer.getInt(position + OFFSET_TEMPERATURE));
+    }
+
+    private int recoverTail(MappedByteBuffer buffer) {
+        int position = RECORD_SIZE;
+        while (position + RECORD_SIZE <= mSegmentSize && isValidRecord(buffer, position)) {
+            position += RECORD_SIZE;
+        }
+        // Anything after the first bad record is left over from before the crash.  Clear it, or
+        // a later recovery could take it for valid data once appends reach it again.
+        boolean dirty = false;
+        for (int i = position; i < mSegmentSize; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                buffer.putLong(i, 0);
+                dirty = true;
+            }
+        }
+        if (dirty) {
+            Log.w(TAG, "Recovered segment " + mSegmentIndex + " at offset " + position);
+            buffer.force();
+        }
+        return position;
+    }
+
+    private SegmentIndex getIndex(long segmentIndex) throws IOException {
+        SegmentIndex index = mIndexes.get(segmentIndex);
+        if (index == null) {
+            final File file = segmentFile(segmentIndex);
+            if (!file.exists()) return null;
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final MappedByteBuffer buffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), mSegmentSize));
+                buffer.order(ByteOrder.nativeOrder());
+                index = buildIndex(buffer);
+            } finally {
+                raf.close();
+            }
+            mIndexes.put(segmentIndex, index);
+        }
+        return index;
+    }
+
+    private SegmentIndex buildIndex(ByteBuffer buffer) {
+        final SegmentIndex index = new SegmentIndex(buffer, mSegmentSize);
+        final int end = buffer.capacity();
+        for (int position = RECORD_SIZE; position + RECORD_SIZE <= end
+                && isValidRecord(buffer, position); position += RECORD_SIZE) {
+            index.add(buffer.getLong(position + OFFSET_TIMESTAMP));
+        }
+        return index;
+    }
+
+    private void startSegment(long index) throws IOException {
+        mSegmentIndex = index;
+        mBuffer = map(segmentFile(index));
+        mIndex = new SegmentIndex(mBuffer, mSegmentSize);
+        mIndexes.put(index, mIndex);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, RECORD_SIZE);
+        mBuffer.putLong(16, index);
+        mPosition = RECORD_SIZE;
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() {
+        final File[] segments = listSegments();
+        for (int i = 0; i < segments.length - mMaxSegments; i++) {
+            final long index = parseSegmentIndex(segments[i]);
+            if (index > mDeletableThrough) break;
+            mIndexes.remove(index);
+            if (!segments[i].delete()) {
+                Log.w(TAG, "Unable to delete " + segments[i]);
+            }
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(mSegmentSize);
+            // The mapping stays valid after the file is closed.
+            final MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(mDirectory, String.format(Locale.US, "%012d", index) + SEGMENT_SUFFIX);
+    }
+
+    static long parseSegmentIndex(File file) {
+        final String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File[] listSegments() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return new File[0];
+
+        final ArrayList<File> segments = new ArrayList<File>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(SEGMENT_SUFFIX) && parseSegmentIndex(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        final File[] result = segments.toArray(new File[segments.size()]);
+        // Names are zero padded, so lexical order is segment order.
+        Arrays.sort(result);
+        return result;
+    }
+
+    private int getOrAssignDeviceId(String address) throws IOException {
+        if (address.equals(mLastAddress)) return mLastDeviceId;
+
+        Integer id = mDeviceIds.get(address);
+        if (id == null) {
+            // Made durable before any record refers to it.
+            final FileOutputStream out =
+                    new FileOutputStream(new File(mDirectory, DEVICES_FILE), true);
+            try {
+                out.write((address + "\n").getBytes("US-ASCII"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            id = mDevices.size();
+            mDevices.add(address);
+            mDeviceIds.put(address, id);
+        }
+        mLastAddress = address;
+        mLastDeviceId = id;
+        return id;
+    }
+
+    private void loadDevices() throws IOException {
+        mDevices.clear();
+        mDeviceIds.clear();
+        mLastAddress = null;
+        final File file = new File(mDirectory, DEVICES_FILE);
+        if (!file.exists()) return;
+
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mDeviceIds.put(line, mDevices.size());
+                mDevices.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Periodically samples characteristics.  There is at most one job per device and
+ * characteristic: scheduling the same pair again replaces its interval, and scheduling it with
+ * the interval it already has does nothing.
+ *
+ * <p>Short intervals run on a {@link Handler}.  Intervals of {@link #ALARM_THRESHOLD_MS} or more
+ * use inexact {@link AlarmManager} windows that deliver {@link #ACTION_SAMPLE} to the owning
+ * service, so the system can batch the wakeups with those of other apps.  In Doze such alarms
+ * are held until the next maintenance window, so samples may then come further apart than the
+ * interval.  Jobs are saved in {@code SharedPreferences} and come back with {@link #restore()}
+ * when the service is recreated.
+ *
+ * <p>Thread safe.  The {@link Sampler} is called on the handler's thread, or on the main thread
+ * for alarms.
+ */
+public class SamplingScheduler {
+    private final static String TAG = SamplingScheduler.class.getSimpleName();
+
+    public final static String ACTION_SAMPLE =
+            "com.example.bluetooth.le.ACTION_SAMPLE";
+    private final static String EXTRA_ADDRESS = "com.example.bluetooth.le.EXTRA_SAMPLE_ADDRESS";
+    private final static String EXTRA_UUID = "com.example.bluetooth.le.EXTRA_SAMPLE_UUID";
+
+    // Intervals at least this long go through AlarmManager instead of the Handler.
+    public static final long ALARM_THRESHOLD_MS = 5 * 60 * 1000;
+
+    private static final String PREFERENCES = "sampling_jobs";
+    private static final char KEY_SEPARATOR = '|';
+    private static final String ALARM_SCHEME = "sample";
+
+    /**
+     * Takes one sample.
+     */
+    public interface Sampler {
+        /**
+         * Samples {@code uuid} on {@code address}.
+         *
+         * @return false if the device is not ready yet.  The sample is then taken as soon as
+         *         {@link #onDeviceReady(String)} is called for the device.
+         */
+        boolean sample(String address, UUID uuid);
+    }
+
+    private class Job implements Runnable {
+        final String mKey;
+        final String mAddress;
+        final UUID mUuid;
+        final long mIntervalMs;
+        PendingIntent mAlarm;
+        volatile boolean mPending;
+
+        Job(String key, String address, UUID uuid, long intervalMs) {
+            mKey = key;
+            mAddress = address;
+            mUuid = uuid;
+            mIntervalMs = intervalMs;
+        }
+
+        boolean usesAlarm() {
+            return mIntervalMs >= ALARM_THRESHOLD_MS;
+        }
+
+        @Override
+        public void run() {
+            synchronized (SamplingScheduler.this) {
+                if (mJobs.get(mKey) != this) return;
+                scheduleNext(this);
+            }
+            runJob(this);
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Sampler mSampler;
+    private final AlarmManager mAlarmManager;
+    private final SharedPreferences mPreferences;
+    private final HashMap<String, Job> mJobs = new HashMap<String, Job>();
+
+    public SamplingScheduler(Context context, Handler handler, Sampler sampler) {
+        mContext = context;
+        mHandler = handler;
+        mSampler = sampler;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Samples {@code uuid} on {@code address} every {@code intervalMs}, starting one interval
+     * from now.
+     *
+     * @return false if exactly this job was already scheduled.
+     */
+    public synchronized boolean schedule(String address, UUID uuid, long intervalMs) {
+        final String key = address + KEY_SEPARATOR + uuid;
+        final Job existing = mJobs.get(key);
+        if (existing != null) {
+            if (existing.mIntervalMs == intervalMs) return false;
+            stop(existing);
+        }
+        final Job job = new Job(key, address, uuid, intervalMs);
+        mJobs.put(key, job);
+        mPreferences.edit().putLong(key, intervalMs).apply();
+        scheduleNext(job);
+        return true;
+    }
+
+    public synchronized void cancel(String address, UUID uuid) {
+        final Job job = mJobs.remove(address + KEY_SEPARATOR + uuid);
+        if (job != null) {
+            stop(job);
+            mPreferences.edit().remove(job.mKey).apply();
+        }
+    }
+
+    /**
+     * Returns the interval {@code uuid} on {@code address} is sampled at, or 0 if it is not.
+     */
+    public synchronized long getIntervalMs(String address, UUID uuid) {
+        final Job job = mJobs.get(address + KEY_SEPARATOR + uuid);
+        return job != null ? job.mIntervalMs : 0;
+    }
+
+    /**
+     * Returns the characteristics sampled on {@code address}, each with its interval.
+     */
+    public synchronized Map<UUID, Long> getJobs(String address) {
+        final HashMap<UUID, Long> jobs = new HashMap<UUID, Long>();
+        for (Job job : mJobs.values()) {
+            if (job.mAddress.equals(address)) {
+                jobs.put(job.mUuid, job.mIntervalMs);
+            }
+        }
+        return jobs;
+    }
+
+    public synchronized int getJobCount() {
+        return mJobs.size();
+    }
+
+    /**
+     * Schedules again every job saved by an earlier instance.
+     */
+    public synchronized void restore() {
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            final String key = entry.getKey();
+            final int separator = key.indexOf(KEY_SEPARATOR);
+            if (separator < 0 || !(entry.getValue() instanceof Long) || mJobs.containsKey(key)) {
+                continue;
+            }
+            try {
+                final Job job = new Job(key, key.substring(0, separator),
+                        UUID.fromString(key.substring(separator + 1)), (Long) entry.getValue());
+                mJobs.put(key, job);
+                scheduleNext(job);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Dropping malformed job " + key);
+                mPreferences.edit().remove(key).apply();
+            }
+        }
+    }
+
+    /**
+     * Handles an {@link #ACTION_SAMPLE} intent delivered to the service.
+     */
+    public void onAlarm(Intent intent) {
+        final Job job;
+        synchronized (this) {
+            job = mJobs.get(intent.getStringExtra(EXTRA_ADDRESS) + KEY_SEPARATOR
+                    + intent.getStringExtra(EXTRA_UUID));
+            if (job == null) return;
+            scheduleNext(job);
+        }
+        runJob(job);
+    }
+
+    /**
+     * Takes the samples that were due while {@code address} was not ready.
+     */
+    public void onDeviceReady(String address) {
+        Job[] jobs;
+        synchronized (this) {
+            jobs = mJobs.values().toArray(new Job[mJobs.size()]);
+        }
+        for (Job job : jobs) {
+            if (job.mPending && job.mAddress.equals(address)) {
+                runJob(job);
+            }
+        }
+    }
+
+    private void runJob(Job job) {
+        job.mPending = !mSampler.sample(job.mAddress, job.mUuid);
+    }
+
+    private void scheduleNext(Job job) {
+        if (!job.usesAlarm()) {
+            mHandler.postDelayed(job, job.mIntervalMs);
+            return;
+        }
+        if (job.mAlarm == null) {
+            // The key in the data makes the intents of two jobs differ for
+            // Intent.filterEquals(), so each job gets a PendingIntent of its own.  A request
+            // code from the key could collide and make jobs overwrite each other's alarm.
+            final Intent intent = new Intent(mContext, BluetoothLeService.class)
+                    .setAction(ACTION_SAMPLE)
+                    .setData(Uri.fromParts(ALARM_SCHEME, job.mKey, null))
+                    .putExtra(EXTRA_ADDRESS, job.mAddress)
+                    .putExtra(EXTRA_UUID, job.mUuid.toString());
+            job.mAlarm = PendingIntent.getService(mContext, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        final long trigger = SystemClock.elapsedRealtime() + job.mIntervalMs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Let the alarm fire anywhere in the last quarter of the interval.
+            final long window = job.mIntervalMs / 4;
+            mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, trigger - window,
+                    window, job.mAlarm);
+        } else {
+            // Before KitKat set() is exact; there is no way to ask for batching.
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, trigger, job.mAlarm);
+        }
+    }
+
+    private void stop(Job job) {
+        mHandler.removeCallbacks(job);
+        if (job.mAlarm != null) {
+            mAlarmManager.cancel(job.mAlarm);
+            job.mAlarm.cancel();
+        }
+    }
+}
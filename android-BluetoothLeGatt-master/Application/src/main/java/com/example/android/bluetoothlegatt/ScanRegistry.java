@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Devices seen during a scan, keyed by address, with their smoothed RSSI, what their latest
+ * advertisement carried and when it was received.  {@link #update} is cheap enough to call from
+ * the scan callback for every advertisement: the record is parsed in place and nothing is
+ * allocated unless something new is learned about the device.  Readers poll
+ * {@link #collectChanges} at their own pace and only get the devices updated since their last
+ * call.
+ *
+ * <p>Devices can be ranked by proximity with {@link Result#getPathLoss()}, which takes their
+ * transmit power into account, and told apart by advertised service and manufacturer data
+ * without connecting to them.
+ *
+ * <p>Safe to use from any thread.
+ */
+public class ScanRegistry {
+    // Assumed when a device does not advertise its transmit power; the HM-10 default.
+    public static final int DEFAULT_TX_POWER = 0;
+
+    private static final UUID SENSOR_SERVICE = UUID.fromString(SampleGattAttributes.HM_10_SERVICE);
+
+    /**
+     * What was known of a device at the time it was collected.  Owned by the caller of
+     * {@link #collectChanges}.
+     */
+    public static class Result {
+        private final BluetoothDevice mDevice;
+        private final String mAddress;
+        private final String mName;
+        private final int mRssi;
+        private final int mTxPower;
+        private final int mManufacturerId;
+        private final byte[] mManufacturerData;
+        private final boolean mSensor;
+        private final long mLastSeen;
+
+        Result(Entry entry) {
+            mDevice = entry.mDevice;
+            mAddress = entry.mAddress;
+            mName = entry.mName;
+            mRssi = entry.mRssi;
+            mTxPower = entry.mTxPower;
+            mManufacturerId = entry.mManufacturerId;
+            // Entries replace the array instead of changing it, so it can be shared.
+            mManufacturerData = entry.mManufacturerData;
+            mSensor = entry.mSensor;
+            mLastSeen = entry.mLastSeen;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Returns the name of the device or the local name it advertises, or null if it has
+         * none.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the smoothed RSSI, in dBm.
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Returns the advertised transmit power in dBm, or
+         * {@link AdvertisementParser#NO_TX_POWER}.
+         */
+        public int getTxPower() {
+            return mTxPower;
+        }
+
+        /**
+         * Returns the loss of signal between the device and us in dB, from the advertised or
+         * else {@link #DEFAULT_TX_POWER} transmit power.  The lower, the closer the device.
+         */
+        public int getPathLoss() {
+            return (mTxPower != AdvertisementParser.NO_TX_POWER ? mTxPower : DEFAULT_TX_POWER)
+                    - mRssi;
+        }
+
+        /**
+         * Returns the company identifier of the latest manufacturer data, or
+         * {@link AdvertisementParser#NO_MANUFACTURER}.
+         */
+        public int getManufacturerId() {
+            return mManufacturerId;
+        }
+
+        /**
+         * Returns the latest manufacturer data after the company identifier, or null.  Do not
+         * modify.
+         */
+        public byte[] getManufacturerData() {
+            return mManufacturerData;
+        }
+
+        /**
+         * Returns true if the device advertises the HM-10 service of the sensors.
+         */
+        public boolean isSensor() {
+            return mSensor;
+        }
+
+        /**
+         * Returns the {@link SystemClock#elapsedRealtime()} of the latest advertisement.
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+    }
+
+    private static class Entry {
+        final BluetoothDevice mDevice;
+        final String mAddress;
+        final RssiFilter mFilter = new RssiFilter();
+        String mName;
+        int mRssi;
+        int mTxPower = AdvertisementParser.NO_TX_POWER;
+        int mManufacturerId = AdvertisementParser.NO_MANUFACTURER;
+        byte[] mManufacturerData;
+        boolean mSensor;
+        long mLastSeen;
+        long mVersion;
+
+        Entry(BluetoothDevice device, String address) {
+            mDevice = device;
+            mAddress = address;
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Guarded by this, like the entries.
+    private final AdvertisementParser mParser = new AdvertisementParser();
+    private long mVersion;
+
+    /**
+     * Records an advertisement of {@code device}.
+     *
+     * @param scanRecord The raw advertisement, or null.  Not kept.
+     */
+    public void update(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final String address = device.getAddress();
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            Entry entry = mEntries.get(address);
+            boolean changed = false;
+            if (entry == null) {
+                entry = new Entry(device, address);
+                mEntries.put(address, entry);
+                changed = true;
+            }
+            final AdvertisementParser parser = mParser;
+            parser.parse(scanRecord);
+            if (entry.mName == null) {
+                // The name may only come with a later scan response; once known it is kept.
+                entry.mName = device.getName();
+                if (entry.mName == null && parser.hasLocalName()) {
+                    entry.mName = parser.getLocalName();
+                }
+                changed |= entry.mName != null;
+            }
+            // Only what an advertisement carries replaces what is known; a scan response
+            // without TX power or manufacturer data does not clear them.
+            final int txPower = parser.getTxPower();
+            if (txPower != AdvertisementParser.NO_TX_POWER && txPower != entry.mTxPower) {
+                entry.mTxPower = txPower;
+                changed = true;
+            }
+            final int manufacturerId = parser.getManufacturerId();
+            if (manufacturerId != AdvertisementParser.NO_MANUFACTURER
+                    && (manufacturerId != entry.mManufacturerId
+                            || !parser.manufacturerDataEquals(entry.mManufacturerData))) {
+                entry.mManufacturerId = manufacturerId;
+                entry.mManufacturerData = new byte[parser.getManufacturerDataLength()];
+                System.arraycopy(parser.getRecord(), parser.getManufacturerDataOffset(),
+                        entry.mManufacturerData, 0, entry.mManufacturerData.length);
+                changed = true;
+            }
+            if (!entry.mSensor && parser.hasServiceUuid(SENSOR_SERVICE)) {
+                entry.mSensor = true;
+                changed = true;
+            }
+            final int smoothed = (int) Math.round(entry.mFilter.update(rssi, now));
+            changed |= smoothed != entry.mRssi;
+            entry.mRssi = smoothed;
+            entry.mLastSeen = now;
+            // A repeated advertisement changes nothing a reader would show.
+            if (changed) {
+                entry.mVersion = ++mVersion;
+            }
+        }
+    }
+
+    /**
+     * Adds to {@code out} the devices updated after {@code version}.
+     *
+     * @param version 0, or the value returned by the previous call.
+     * @return The version to pass next time; the same as {@code version} if nothing changed.
+     */
+    public synchronized long collectChanges(long version, ArrayList<Result> out) {
+        if (version == mVersion) return version;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mVersion > version) {
+                out.add(new Result(entry));
+            }
+        }
+        return mVersion;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Forgets every device.  Readers should start again from version 0.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mVersion = 0;
+    }
+}
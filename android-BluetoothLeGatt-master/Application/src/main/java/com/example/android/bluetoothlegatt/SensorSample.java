@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * A reading received from a sensor.  Instances are preallocated by {@link SampleChannel} and
+ * reused for every notification, so listeners must copy out whatever they need before returning
+ * and must never hold on to the object itself.
+ */
+public class SensorSample {
+    // Largest ATT payload: 517 byte MTU minus the 3 byte notification header.
+    public static final int MAX_PAYLOAD = 514;
+    // Marks a reading the sensor did not report.
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+    // A notification at the default MTU holds at most 9 RR intervals.
+    public static final int MAX_RR_INTERVALS = 16;
+
+    private final byte[] mPayload = new byte[MAX_PAYLOAD];
+    private int mPayloadLength;
+    private String mAddress;
+    private UUID mCharacteristicUuid;
+    private long mTimestamp;
+    private int mHeartRate = NO_VALUE;
+    private int mTemperature = NO_VALUE;
+    private long mSequence = -1;
+    private int mEnergyExpended = NO_VALUE;
+    private final int[] mRrIntervals = new int[MAX_RR_INTERVALS];
+    private int mRrIntervalCount;
+
+    /**
+     * Returns the address of the device that sent the sample.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public UUID getCharacteristicUuid() {
+        return mCharacteristicUuid;
+    }
+
+    /**
+     * Returns the wall-clock time the sample was received, in milliseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the heart rate in beats per minute, or {@link #NO_VALUE}.
+     */
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    /**
+     * Returns the temperature in hundredths of a degree Celsius, or {@link #NO_VALUE}.
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     * Returns the per-device sequence number of the reading, or -1 if it was not decoded.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Returns the energy expended since it was last reset, in kilojoules, or {@link #NO_VALUE}.
+     */
+    public int getEnergyExpended() {
+        return mEnergyExpended;
+    }
+
+    public int getRrIntervalCount() {
+        return mRrIntervalCount;
+    }
+
+    /**
+     * Returns an interval between two heart beats, oldest first, in 1/1024 seconds.
+     */
+    public int getRrInterval(int index) {
+        if (index >= mRrIntervalCount) {
+            throw new IndexOutOfBoundsException(index + " >= " + mRrIntervalCount);
+        }
+        return mRrIntervals[index];
+    }
+
+    public boolean hasHeartRate() {
+        return mHeartRate != NO_VALUE;
+    }
+
+    public boolean hasTemperature() {
+        return mTemperature != NO_VALUE;
+    }
+
+    /**
+     * Returns the backing payload buffer.  Only the first {@link #getPayloadLength()} bytes are
+     * valid.
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * Fills the sample in place and clears any decoded reading.  Payloads longer than
+     * {@link #MAX_PAYLOAD} are truncated.
+     */
+    public void set(String address, UUID characteristicUuid, long timestamp,
+                    byte[] payload, int offset, int length) {
+        mAddress = address;
+        mCharacteristicUuid = characteristicUuid;
+        mTimestamp = timestamp;
+        setReading(NO_VALUE, NO_VALUE, -1);
+        mEnergyExpended = NO_VALUE;
+        mRrIntervalCount = 0;
+        mPayloadLength = Math.min(length, MAX_PAYLOAD);
+        System.arraycopy(payload, offset, mPayload, 0, mPayloadLength);
+    }
+
+    /**
+     * Makes this sample a copy of {@code other}.
+     */
+    public void copyFrom(SensorSample other) {
+        mAddress = other.mAddress;
+        mCharacteristicUuid = other.mCharacteristicUuid;
+        mTimestamp = other.mTimestamp;
+        setReading(other.mHeartRate, other.mTemperature, other.mSequence);
+        mEnergyExpended = other.mEnergyExpended;
+        mRrIntervalCount = other.mRrIntervalCount;
+        System.arraycopy(other.mRrIntervals, 0, mRrIntervals, 0, mRrIntervalCount);
+        mPayloadLength = other.mPayloadLength;
+        System.arraycopy(other.mPayload, 0, mPayload, 0, mPayloadLength);
+    }
+
+    /**
+     * Stores the decoded reading.
+     *
+     * @param heartRate Beats per minute, or {@link #NO_VALUE}.
+     * @param temperature Hundredths of a degree Celsius, or {@link #NO_VALUE}.
+     * @param sequence Per-device sequence number, or -1.
+     */
+    public void setReading(int heartRate, int temperature, long sequence) {
+        mHeartRate = heartRate;
+        mTemperature = temperature;
+        mSequence = sequence;
+    }
+
+    /**
+     * @param energyExpended Kilojoules, or {@link #NO_VALUE}.
+     */
+    public void setEnergyExpended(int energyExpended) {
+        mEnergyExpended = energyExpended;
+    }
+
+    /**
+     * Adds an RR interval in 1/1024 seconds.  Intervals past {@link #MAX_RR_INTERVALS} are
+     * dropped.
+     *
+     * @return false if the interval was dropped.
+     */
+    public boolean addRrInterval(int interval) {
+        if (mRrIntervalCount == MAX_RR_INTERVALS) return false;
+        mRrIntervals[mRrIntervalCount++] = interval;
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Paces snapshot delivery to the display.  Snapshots that arrive between two frames only
+ * replace the previous one of the same device; on the next {@link Choreographer} frame, or
+ * once the minimum interval has passed, the latest of each device is handed to the target.
+ * However many snapshots arrive, the views are updated at most once per frame.
+ *
+ * <p>While stopped, snapshots are dropped and no frame callback is pending, so a hidden
+ * activity does no work.  Create and use on the main thread.
+ */
+public class SnapshotCoalescer implements SnapshotPublisher.Listener, Choreographer.FrameCallback {
+    private static final long NANOS_PER_MS = 1000 * 1000;
+
+    private final SnapshotPublisher.Listener mTarget;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final LinkedHashMap<String, DeviceSnapshot> mLatest =
+            new LinkedHashMap<String, DeviceSnapshot>();
+    private final ArrayList<DeviceSnapshot> mDelivering = new ArrayList<DeviceSnapshot>();
+    private long mMinIntervalNanos;
+    private long mLastFrameNanos;
+    private boolean mFramePosted;
+    private boolean mStarted;
+
+    public SnapshotCoalescer(SnapshotPublisher.Listener target) {
+        mTarget = target;
+    }
+
+    /**
+     * Delivers at most once every {@code intervalMs} milliseconds, or once per frame if 0.
+     */
+    public void setMinIntervalMs(long intervalMs) {
+        mMinIntervalNanos = intervalMs * NANOS_PER_MS;
+    }
+
+    public void start() {
+        mStarted = true;
+    }
+
+    /**
+     * Drops pending snapshots and delivers nothing until started again.
+     */
+    public void stop() {
+        mStarted = false;
+        mLatest.clear();
+        if (mFramePosted) {
+            mChoreographer.removeFrameCallback(this);
+            mFramePosted = false;
+        }
+    }
+
+    @Override
+    public void onSnapshot(DeviceSnapshot snapshot) {
+        if (!mStarted) return;
+        mLatest.put(snapshot.getAddress(), snapshot);
+        postFrame();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePosted = false;
+        if (!mStarted || mLatest.isEmpty()) return;
+        if (frameTimeNanos - mLastFrameNanos < mMinIntervalNanos) {
+            postFrame();
+            return;
+        }
+        mLastFrameNanos = frameTimeNanos;
+        // The target may cause more snapshots to be queued; deliver a stable copy.
+        mDelivering.addAll(mLatest.values());
+        mLatest.clear();
+        for (int i = 0; i < mDelivering.size(); i++) {
+            mTarget.onSnapshot(mDelivering.get(i));
+        }
+        mDelivering.clear();
+    }
+
+    private void postFrame() {
+        if (mFramePosted) return;
+        mFramePosted = true;
+        final long wait = mLastFrameNanos + mMinIntervalNanos - System.nanoTime();
+        if (wait > 0) {
+            mChoreographer.postFrameCallbackDelayed(this, wait / NANOS_PER_MS);
+        } else {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Condenses the sample stream into {@link DeviceSnapshot}s for the UI.  Subscribed to the
+ * {@link SampleChannel} on the worker thread, it only remembers the latest sample of each
+ * device, and at most once per interval turns the devices that changed into snapshots and posts
+ * them to the main thread.  However fast the sensors stream, the main thread sees a few small
+ * messages per second.
+ */
+public class SnapshotPublisher implements SampleChannel.Listener {
+    public static final long DEFAULT_INTERVAL_MS = 250;
+
+    /**
+     * Receives snapshots on the main thread.
+     */
+    public interface Listener {
+        void onSnapshot(DeviceSnapshot snapshot);
+    }
+
+    private static class Registration {
+        final Listener mListener;
+        final String mAddress;
+
+        Registration(Listener listener, String address) {
+            mListener = listener;
+            mAddress = address;
+        }
+    }
+
+    // Latest sample of one device.  Only touched on the worker thread.
+    private static class DeviceState {
+        final String mAddress;
+        final byte[] mPayload = new byte[SensorSample.MAX_PAYLOAD];
+        int mPayloadLength;
+        long mTimestamp;
+        int mHeartRate;
+        int mTemperature;
+        long mSequence;
+        long mSampleCount;
+        boolean mDirty;
+
+        DeviceState(String address) {
+            mAddress = address;
+        }
+
+        DeviceSnapshot toSnapshot() {
+            final boolean decoded = mHeartRate != SensorSample.NO_VALUE
+                    || mTemperature != SensorSample.NO_VALUE;
+            return new DeviceSnapshot(mAddress, mTimestamp, mHeartRate, mTemperature, mSequence,
+                    decoded ? null : new String(mPayload, 0, mPayloadLength), mSampleCount);
+        }
+    }
+
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler;
+    private final HashMap<String, DeviceState> mDevices = new HashMap<String, DeviceState>();
+    private final CopyOnWriteArrayList<Registration> mRegistrations =
+            new CopyOnWriteArrayList<Registration>();
+    private volatile long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private long mLastFlushTime;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param workerHandler Handler of the thread samples are delivered on.
+     * @param mainHandler Handler of the thread listeners are called on.
+     */
+    public SnapshotPublisher(Handler workerHandler, Handler mainHandler) {
+        mWorkerHandler = workerHandler;
+        mMainHandler = mainHandler;
+    }
+
+    public void setIntervalMs(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    /**
+     * Registers {@code listener} for snapshots of {@code address}, or of every device if null.
+     */
+    public void register(Listener listener, String address) {
+        unregister(listener);
+        mRegistrations.add(new Registration(listener, address));
+    }
+
+    public void unregister(Listener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    @Override
+    public void onSample(SensorSample sample) {
+        DeviceState state = mDevices.get(sample.getAddress());
+        if (state == null) {
+            state = new DeviceState(sample.getAddress());
+            mDevices.put(sample.getAddress(), state);
+        }
+        final int length = sample.getPayloadLength();
+        System.arraycopy(sample.getPayload(), 0, state.mPayload, 0, length);
+        state.mPayloadLength = length;
+        state.mTimestamp = sample.getTimestamp();
+        state.mHeartRate = sample.getHeartRate();
+        state.mTemperature = sample.getTemperature();
+        state.mSequence = sample.getSequence();
+        state.mSampleCount++;
+        state.mDirty = true;
+
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            final long wait = mLastFlushTime + mIntervalMs - SystemClock.elapsedRealtime();
+            mWorkerHandler.postDelayed(mFlush, Math.max(wait, 0));
+        }
+    }
+
+    private void flush() {
+        mFlushScheduled = false;
+        mLastFlushTime = SystemClock.elapsedRealtime();
+        if (mRegistrations.isEmpty()) {
+            return;
+        }
+        final List<DeviceSnapshot> snapshots = new ArrayList<DeviceSnapshot>();
+        for (DeviceState state : mDevices.values()) {
+            if (state.mDirty) {
+                state.mDirty = false;
+                snapshots.add(state.toSnapshot());
+            }
+        }
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(snapshots);
+            }
+        });
+    }
+
+    private void deliver(List<DeviceSnapshot> snapshots) {
+        for (Registration registration : mRegistrations) {
+            for (DeviceSnapshot snapshot : snapshots) {
+                if (registration.mAddress == null
+                        || registration.mAddress.equals(snapshot.getAddress())) {
+                    registration.mListener.onSnapshot(snapshot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Keeps one summary notification per device up to date with its latest reading, the trend
+ * of each value and the connection state, without posting a notification per sample.  A
+ * device's summary is updated at most once per {@link #setMinIntervalMs minimum interval};
+ * changes in between are folded into the next update.
+ *
+ * <p>When a reading crosses one of the configured limits a separate alert is posted at once,
+ * whatever the interval, and removed when the reading is back within the limits.
+ *
+ * <p>Every call to {@link NotificationManager} is counted; {@link #getNotifyCallsLastMinute()}
+ * returns the count for the last full minute.  All methods must be called on the thread of
+ * the handler given to the constructor.
+ */
+public class StatusNotifier implements SampleChannel.Listener {
+    private final static String TAG = StatusNotifier.class.getSimpleName();
+
+    public static final long DEFAULT_MIN_INTERVAL_MS = 5000;
+
+    private static final int SUMMARY_ID = 1;
+    private static final int ALERT_ID = 2;
+    private static final String GROUP = "devices";
+    private static final long MINUTE_MS = 60 * 1000;
+    // Weight of a new value in the average the trend is measured against.
+    private static final double TREND_ALPHA = 0.1;
+    private static final double HEART_RATE_TREND = 3;
+    private static final double TEMPERATURE_TREND = 10;
+
+    private class DeviceState implements Runnable {
+        final String mAddress;
+        final int mRequestCode;
+        int mConnectionState = GattConnection.STATE_DISCONNECTED;
+        int mHeartRate = SensorSample.NO_VALUE;
+        int mTemperature = SensorSample.NO_VALUE;
+        double mHeartRateAverage = Double.NaN;
+        double mTemperatureAverage = Double.NaN;
+        boolean mAlerting;
+        long mLastUpdateTime = Long.MIN_VALUE / 2;
+        boolean mUpdatePosted;
+
+        DeviceState(String address, int requestCode) {
+            mAddress = address;
+            mRequestCode = requestCode;
+        }
+
+        @Override
+        public void run() {
+            mUpdatePosted = false;
+            postSummary(this);
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final NotificationManager mNotificationManager;
+    private final HashMap<String, DeviceState> mDevices = new HashMap<String, DeviceState>();
+    private long mMinIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+
+    private int mHeartRateLow = 40;
+    private int mHeartRateHigh = 150;
+    private int mTemperatureLow = 3500;
+    private int mTemperatureHigh = 3850;
+
+    private long mMinuteStart;
+    private int mCallsThisMinute;
+    private volatile int mCallsLastMinute;
+    private volatile long mTotalCalls;
+
+    public StatusNotifier(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+        mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    public void setMinIntervalMs(long intervalMs) {
+        mMinIntervalMs = intervalMs;
+    }
+
+    /**
+     * Sets the heart rate range, in beats per minute, outside of which an alert is posted.
+     */
+    public void setHeartRateLimits(int low, int high) {
+        mHeartRateLow = low;
+        mHeartRateHigh = high;
+    }
+
+    /**
+     * Sets the temperature range, in hundredths of a degree Celsius, outside of which an alert
+     * is posted.
+     */
+    public void setTemperatureLimits(int low, int high) {
+        mTemperatureLow = low;
+        mTemperatureHigh = high;
+    }
+
+    /**
+     * Returns the number of notify and cancel calls made in the last full minute.
+     */
+    public int getNotifyCallsLastMinute() {
+        return mCallsLastMinute;
+    }
+
+    public long getNotifyCallCount() {
+        return mTotalCalls;
+    }
+
+    @Override
+    public void onSample(SensorSample sample) {
+        final boolean hasHeartRate = sample.hasHeartRate();
+        final boolean hasTemperature = sample.hasTemperature();
+        if (!hasHeartRate && !hasTemperature) return;
+
+        final DeviceState state = getState(sample.getAddress());
+        if (hasHeartRate) {
+            state.mHeartRate = sample.getHeartRate();
+            state.mHeartRateAverage = average(state.mHeartRateAverage, state.mHeartRate);
+        }
+        if (hasTemperature) {
+            state.mTemperature = sample.getTemperature();
+            state.mTemperatureAverage = average(state.mTemperatureAverage, state.mTemperature);
+        }
+        checkLimits(state);
+        scheduleSummary(state);
+    }
+
+    public void onConnectionStateChanged(String address, int connectionState) {
+        final DeviceState state = getState(address);
+        if (state.mConnectionState == connectionState) return;
+        state.mConnectionState = connectionState;
+        scheduleSummary(state);
+    }
+
+    /**
+     * Removes every notification posted so far.
+     */
+    public void cancelAll() {
+        for (DeviceState state : mDevices.values()) {
+            mHandler.removeCallbacks(state);
+            state.mUpdatePosted = false;
+            mNotificationManager.cancel(state.mAddress, SUMMARY_ID);
+            countCall();
+            if (state.mAlerting) {
+                state.mAlerting = false;
+                mNotificationManager.cancel(state.mAddress, ALERT_ID);
+                countCall();
+            }
+        }
+    }
+
+    private DeviceState getState(String address) {
+        DeviceState state = mDevices.get(address);
+        if (state == null) {
+            state = new DeviceState(address, mDevices.size());
+            mDevices.put(address, state);
+        }
+        return state;
+    }
+
+    private void scheduleSummary(DeviceState state) {
+        if (state.mUpdatePosted) return;
+        final long wait = state.mLastUpdateTime + mMinIntervalMs - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+            postSummary(state);
+        } else {
+            state.mUpdatePosted = true;
+            mHandler.postDelayed(state, wait);
+        }
+    }
+
+    private void postSummary(DeviceState state) {
+        state.mLastUpdateTime = SystemClock.elapsedRealtime();
+        final Notification notification = newBuilder(state)
+                .setContentTitle(mContext.getString(R.string.status_title, state.mAddress))
+                .setContentText(formatReading(state))
+                .setSubText(mContext.getString(connectionStateText(state.mConnectionState)))
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setCategory(NotificationCompat.CATEGORY_STATUS)
+                .setOnlyAlertOnce(true)
+                .build();
+        mNotificationManager.notify(state.mAddress, SUMMARY_ID, notification);
+        countCall();
+    }
+
+    // Posts or removes the alert of a device as its readings leave or return to the limits.
+    private void checkLimits(DeviceState state) {
+        final boolean heartRateOut = state.mHeartRate != SensorSample.NO_VALUE
+                && (state.mHeartRate < mHeartRateLow || state.mHeartRate > mHeartRateHigh);
+        final boolean temperatureOut = state.mTemperature != SensorSample.NO_VALUE
+                && (state.mTemperature < mTemperatureLow || state.mTemperature > mTemperatureHigh);
+        final boolean alerting = heartRateOut || temperatureOut;
+        if (alerting == state.mAlerting) return;
+
+        state.mAlerting = alerting;
+        if (!alerting) {
+            mNotificationManager.cancel(state.mAddress, ALERT_ID);
+            countCall();
+            return;
+        }
+        final String text = heartRateOut
+                ? mContext.getString(R.string.alert_heart_rate, state.mHeartRate)
+                : mContext.getString(R.string.alert_temperature, state.mTemperature / 100f);
+        final Notification notification = newBuilder(state)
+                .setContentTitle(mContext.getString(R.string.alert_title, state.mAddress))
+                .setContentText(text)
+                .setTicker(text)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setCategory(NotificationCompat.CATEGORY_ALARM)
+                .setDefaults(Notification.DEFAULT_ALL)
+                .setAutoCancel(true)
+                .build();
+        mNotificationManager.notify(state.mAddress, ALERT_ID, notification);
+        countCall();
+    }
+
+    private NotificationCompat.Builder newBuilder(DeviceState state) {
+        final Intent intent = new Intent(mContext, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, state.mAddress);
+        return new NotificationCompat.Builder(mContext)
+                .setSmallIcon(mContext.getApplicationInfo().icon)
+                .setContentIntent(PendingIntent.getActivity(mContext, state.mRequestCode, intent,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .setGroup(GROUP);
+    }
+
+    private String formatReading(DeviceState state) {
+        final StringBuilder text = new StringBuilder();
+        if (state.mHeartRate != SensorSample.NO_VALUE) {
+            text.append(mContext.getString(R.string.status_heart_rate, state.mHeartRate,
+                    trend(state.mHeartRate, state.mHeartRateAverage, HEART_RATE_TREND)));
+        }
+        if (state.mTemperature != SensorSample.NO_VALUE) {
+            if (text.length() > 0) text.append("   ");
+            text.append(mContext.getString(R.string.status_temperature,
+                    state.mTemperature / 100f,
+                    trend(state.mTemperature, state.mTemperatureAverage, TEMPERATURE_TREND)));
+        }
+        return text.length() > 0 ? text.toString() : mContext.getString(R.string.no_data);
+    }
+
+    private static String trend(int value, double average, double threshold) {
+        if (value > average + threshold) return "\u2191";
+        if (value < average - threshold) return "\u2193";
+        return "\u2192";
+    }
+
+    private static double average(double average, int value) {
+        return Double.isNaN(average) ? value : average + TREND_ALPHA * (value - average);
+    }
+
+    private static int connectionStateText(int connectionState) {
+        switch (connectionState) {
+            case GattConnection.STATE_CONNECTED:
+                return R.string.connected;
+            case GattConnection.STATE_CONNECTING:
+                return R.string.connecting;
+            default:
+                return R.string.disconnected;
+        }
+    }
+
+    private void countCall() {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mMinuteStart >= MINUTE_MS) {
+            // A minute without any call leaves nothing to report for it.
+            mCallsLastMinute = now - mMinuteStart < 2 * MINUTE_MS ? mCallsThisMinute : 0;
+            if (mCallsLastMinute > 0) {
+                Log.d(TAG, "Notification calls in the last minute: " + mCallsLastMinute);
+            }
+            mMinuteStart = now;
+            mCallsThisMinute = 0;
+        }
+        mCallsThisMinute++;
+        mTotalCalls++;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Decodes the Temperature Measurement characteristic (0x2A1C) of the Bluetooth SIG Health
+ * Thermometer profile: a flags byte and the temperature as an IEEE-11073 32-bit FLOAT, in
+ * degrees Fahrenheit if flag bit 0 is set and Celsius otherwise.  The optional time stamp and
+ * temperature type that follow are ignored; the arrival time is used instead.
+ *
+ * <p>Each value becomes one sample, with the temperature converted to hundredths of a degree
+ * Celsius.  Values that are truncated, NaN, NRes, infinite or out of range are published
+ * without a reading.  Sequence numbers are assigned consecutively.
+ */
+public class TemperatureMeasurementCodec implements CharacteristicCodec {
+    private static final int FLAG_FAHRENHEIT = 0x01;
+
+    // Special values of the 24-bit mantissa.
+    private static final int MANTISSA_NAN = 0x007fffff;
+    private static final int MANTISSA_NRES = -0x00800000;
+    private static final int MANTISSA_POSITIVE_INFINITY = 0x007ffffe;
+    private static final int MANTISSA_NEGATIVE_INFINITY = -0x007ffffe;
+    private static final int MANTISSA_RESERVED = -0x007fffff;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private long mNextSequence;
+
+    @Override
+    public void decode(String address, UUID uuid, long timestamp, byte[] value, int offset,
+                       int length, SampleChannel channel) {
+        final SensorSample sample = channel.claim();
+        sample.set(address, uuid, timestamp, value, offset, length);
+        decode(value, offset, length, sample);
+        channel.publish();
+    }
+
+    /**
+     * Decodes into {@code sample}, leaving its address, characteristic and timestamp untouched.
+     *
+     * @return false if the value holds no temperature.
+     */
+    public boolean decode(byte[] value, int offset, int length, SensorSample sample) {
+        if (length < 5) return false;
+        final int flags = value[offset] & 0xff;
+        // Sign extends the little endian 24-bit mantissa; the exponent is a signed byte.
+        final int mantissa = ((value[offset + 1] & 0xff) | (value[offset + 2] & 0xff) << 8
+                | value[offset + 3] << 16);
+        final int exponent = value[offset + 4];
+
+        int temperature = toHundredths(mantissa, exponent);
+        if (temperature != SensorSample.NO_VALUE && (flags & FLAG_FAHRENHEIT) != 0) {
+            temperature = (int) divideRounded((temperature - 3200L) * 5, 9);
+        }
+        if (temperature == SensorSample.NO_VALUE) return false;
+        sample.setReading(SensorSample.NO_VALUE, temperature, mNextSequence++);
+        return true;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    /**
+     * Returns mantissa * 10^exponent in hundredths, rounded, or {@link SensorSample#NO_VALUE}
+     * for special and out of range values.
+     */
+    static int toHundredths(int mantissa, int exponent) {
+        switch (mantissa) {
+            case MANTISSA_NAN:
+            case MANTISSA_NRES:
+            case MANTISSA_POSITIVE_INFINITY:
+            case MANTISSA_NEGATIVE_INFINITY:
+            case MANTISSA_RESERVED:
+                return SensorSample.NO_VALUE;
+        }
+        final int scale = exponent + 2;
+        final long hundredths;
+        if (scale >= 0) {
+            // Beyond 10^9 no non-zero mantissa fits an int.
+            if (scale >= POWERS_OF_TEN.length) return SensorSample.NO_VALUE;
+            hundredths = mantissa * POWERS_OF_TEN[scale];
+        } else {
+            hundredths = -scale < POWERS_OF_TEN.length
+                    ? divideRounded(mantissa, POWERS_OF_TEN[-scale]) : 0;
+        }
+        if (hundredths <= Integer.MIN_VALUE || hundredths > Integer.MAX_VALUE) {
+            return SensorSample.NO_VALUE;
+        }
+        return (int) hundredths;
+    }
+
+    // Rounds halves away from zero.
+    private static long divideRounded(long dividend, long divisor) {
+        return dividend >= 0 ? (dividend + divisor / 2) / divisor
+                : -((-dividend + divisor / 2) / divisor);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Measures how many bytes per second a connection delivers.  Bytes are counted in one second
+ * windows; the reported rate is that of the last complete window, so it settles within a
+ * second of a change in traffic.
+ */
+public class ThroughputMeter {
+    private static final long WINDOW_MS = 1000;
+
+    private long mTotalBytes;
+    private long mWindowStart = -1;
+    private long mWindowBytes;
+    private long mBytesPerSecond;
+    private long mPeakBytesPerSecond;
+
+    /**
+     * Records {@code bytes} received at {@code now} milliseconds.
+     */
+    public synchronized void add(int bytes, long now) {
+        roll(now);
+        mTotalBytes += bytes;
+        mWindowBytes += bytes;
+    }
+
+    /**
+     * Returns the rate over the last complete window, in bytes per second.
+     */
+    public synchronized long getBytesPerSecond(long now) {
+        roll(now);
+        return mBytesPerSecond;
+    }
+
+    public synchronized long getPeakBytesPerSecond() {
+        return mPeakBytesPerSecond;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized void reset() {
+        mTotalBytes = 0;
+        mWindowStart = -1;
+        mWindowBytes = 0;
+        mBytesPerSecond = 0;
+        mPeakBytesPerSecond = 0;
+    }
+
+    private void roll(long now) {
+        if (mWindowStart < 0) {
+            mWindowStart = now;
+            return;
+        }
+        long elapsed = now - mWindowStart;
+        if (elapsed < WINDOW_MS) return;
+
+        // A gap of more than one window means nothing arrived in between.
+        mBytesPerSecond = elapsed < 2 * WINDOW_MS ? mWindowBytes * 1000 / elapsed : 0;
+        mPeakBytesPerSecond = Math.max(mPeakBytesPerSecond, mBytesPerSecond);
+        mWindowBytes = 0;
+        mWindowStart = now;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.UUID;
+
+/**
+ * Names of attributes whose UUIDs are built on the Bluetooth base UUID, keyed by their 16 or
+ * 32-bit short form in an open-addressed table of primitive ints.  Lookups neither box the key
+ * nor turn the UUID into a string, so they allocate nothing.
+ *
+ * <p>Not thread safe while being filled; safe to read from any thread once filled and
+ * published.
+ */
+class UuidNameTable {
+    // The Bluetooth base UUID, 0000xxxx-0000-1000-8000-00805f9b34fb, without the short form.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private int[] mKeys;
+    // A null name marks a free slot.
+    private String[] mNames;
+    private int mSize;
+
+    UuidNameTable(int expectedSize) {
+        int capacity = 8;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new int[capacity];
+        mNames = new String[capacity];
+    }
+
+    /**
+     * Returns the 16 or 32-bit short form of {@code uuid}, or -1 if it is not built on the
+     * Bluetooth base UUID.
+     */
+    static long shortForm(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB
+                || (uuid.getMostSignificantBits() & 0xffffffffL) != BASE_UUID_MSB) {
+            return -1;
+        }
+        return uuid.getMostSignificantBits() >>> 32;
+    }
+
+    /**
+     * Adds or replaces the name of the attribute with the short form {@code key}.
+     */
+    void put(int key, String name) {
+        if (name == null) throw new IllegalArgumentException("name == null");
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        final int slot = find(mKeys, mNames, key);
+        if (mNames[slot] == null) {
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mNames[slot] = name;
+    }
+
+    /**
+     * Returns the name for {@code uuid}, or null if it has none in this table.
+     */
+    String get(UUID uuid) {
+        final long key = shortForm(uuid);
+        return key < 0 ? null : get((int) key);
+    }
+
+    String get(int key) {
+        return mNames[find(mKeys, mNames, key)];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    // Returns the slot holding key, or the free slot where it would go.
+    private static int find(int[] keys, String[] names, int key) {
+        final int mask = keys.length - 1;
+        // Fibonacci hashing spreads the mostly consecutive short forms over the table.
+        int slot = (key * 0x9e3779b9) >>> 16 & mask;
+        while (names[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        final int[] keys = new int[mKeys.length * 2];
+        final String[] names = new String[mNames.length * 2];
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mNames[i] != null) {
+                final int slot = find(keys, names, mKeys[i]);
+                keys[slot] = mKeys[i];
+                names[slot] = mNames[i];
+            }
+        }
+        mKeys = keys;
+        mNames = names;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A simulated "Heart Rate & Temp" sensor behind an HM-10 module, run by {@link Hm10Simulator}.
+ * It sends readings as text, {@code "<bpm>,<degrees C>,<sequence>\r\n"}, through the 0000ffe1
+ * characteristic of the 0000ffe0 service, at a configurable rate and split into notifications
+ * the way the HM-10 UART bridge splits its input.
+ *
+ * <p>Every imperfection of the link is configurable: latency and jitter of notifications, the
+ * share of notifications lost, the share of connects failing with status 133 and how often an
+ * established link drops.  All randomness comes from a generator seeded with {@link #setSeed},
+ * so a run can be repeated exactly.  Configure before the simulator starts the peripheral.
+ */
+public class FakeHm10Peripheral {
+    // The HM-10 forwards its UART input in notifications of at most 20 bytes.
+    public static final int DEFAULT_CHUNK_SIZE = 20;
+
+    private final String mAddress;
+    private Random mRandom;
+    private long mNotificationIntervalMs = 1000;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean mRandomSplit;
+    private long mLatencyMs = 10;
+    private long mJitterMs;
+    private double mDropRate;
+    private long mConnectDelayMs = 200;
+    private long mDiscoveryDelayMs = 100;
+    private double mConnectFailureRate;
+    private long mMeanTimeBetweenDisconnectsMs;
+    private int mBaseHeartRate = 70;
+    private int mBaseTemperature = 3650;
+
+    private long mSequence;
+
+    public FakeHm10Peripheral(String address) {
+        mAddress = address;
+        setSeed(0);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Seeds the random generator, mixed with the address so sensors of one test differ.
+     */
+    public void setSeed(long seed) {
+        mRandom = new Random(seed * 31 + mAddress.hashCode());
+    }
+
+    /**
+     * Sends a reading every {@code intervalMs} milliseconds while notifications are enabled.
+     */
+    public void setNotificationIntervalMs(long intervalMs) {
+        mNotificationIntervalMs = intervalMs;
+    }
+
+    /**
+     * Splits readings into notifications of {@code chunkSize} bytes, as the HM-10 does, or at
+     * random points if {@code randomSplit}, to exercise reassembly.
+     */
+    public void setPacketSplitting(int chunkSize, boolean randomSplit) {
+        mChunkSize = chunkSize;
+        mRandomSplit = randomSplit;
+    }
+
+    /**
+     * Delays every notification by {@code latencyMs} plus a uniformly drawn extra of up to
+     * {@code jitterMs}.  Notifications of one link still arrive in order.
+     */
+    public void setLatency(long latencyMs, long jitterMs) {
+        mLatencyMs = latencyMs;
+        mJitterMs = jitterMs;
+    }
+
+    /**
+     * Loses each notification with probability {@code rate}.
+     */
+    public void setDropRate(double rate) {
+        mDropRate = rate;
+    }
+
+    /**
+     * Sets how long a connect and the service discovery after it take.
+     */
+    public void setConnectDelays(long connectDelayMs, long discoveryDelayMs) {
+        mConnectDelayMs = connectDelayMs;
+        mDiscoveryDelayMs = discoveryDelayMs;
+    }
+
+    /**
+     * Fails each connect with status 133 with probability {@code rate}.
+     */
+    public void setConnectFailureRate(double rate) {
+        mConnectFailureRate = rate;
+    }
+
+    /**
+     * Drops an established link after an exponentially distributed time with this mean, or
+     * never if 0.
+     */
+    public void setMeanTimeBetweenDisconnectsMs(long meanMs) {
+        mMeanTimeBetweenDisconnectsMs = meanMs;
+    }
+
+    /**
+     * Sets the values readings vary around.
+     *
+     * @param temperature Hundredths of a degree Celsius.
+     */
+    public void setBaseReading(int heartRate, int temperature) {
+        mBaseHeartRate = heartRate;
+        mBaseTemperature = temperature;
+    }
+
+    public long getNotificationIntervalMs() {
+        return mNotificationIntervalMs;
+    }
+
+    public long getConnectDelayMs() {
+        return mConnectDelayMs;
+    }
+
+    public long getDiscoveryDelayMs() {
+        return mDiscoveryDelayMs;
+    }
+
+    /**
+     * Returns the sequence number the next reading will carry.
+     */
+    public long getNextSequence() {
+        return mSequence;
+    }
+
+    boolean nextConnectFails() {
+        return mConnectFailureRate > 0 && mRandom.nextDouble() < mConnectFailureRate;
+    }
+
+    boolean nextNotificationDropped() {
+        return mDropRate > 0 && mRandom.nextDouble() < mDropRate;
+    }
+
+    long nextLatencyMs() {
+        return mLatencyMs + (mJitterMs > 0 ? (long) (mRandom.nextDouble() * (mJitterMs + 1)) : 0);
+    }
+
+    /**
+     * Returns when the link should drop next, from now, or -1 for never.
+     */
+    long nextDisconnectDelayMs() {
+        if (mMeanTimeBetweenDisconnectsMs <= 0) return -1;
+        return 1 + (long) (-Math.log(1 - mRandom.nextDouble()) * mMeanTimeBetweenDisconnectsMs);
+    }
+
+    /**
+     * Produces the reading taken at {@code timeMs}, split into notification values.
+     */
+    List<byte[]> nextReading(long timeMs) {
+        final double t = timeMs / 1000.0;
+        final int heartRate = mBaseHeartRate + (int) Math.round(
+                8 * Math.sin(t / 30) + mRandom.nextGaussian() * 2);
+        final int temperature = mBaseTemperature + (int) Math.round(
+                20 * Math.sin(t / 600) + mRandom.nextGaussian() * 3);
+        final String text = heartRate + "," + temperature / 100 + "."
+                + (temperature % 100 < 10 ? "0" : "") + temperature % 100 + "," + mSequence++
+                + "\r\n";
+        return split(text.getBytes());
+    }
+
+    private List<byte[]> split(byte[] reading) {
+        final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+        int offset = 0;
+        while (offset < reading.length) {
+            int length = Math.min(mChunkSize, reading.length - offset);
+            if (mRandomSplit) {
+                length = 1 + mRandom.nextInt(length);
+            }
+            final byte[] chunk = new byte[length];
+            System.arraycopy(reading, offset, chunk, 0, length);
+            chunks.add(chunk);
+            offset += length;
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameReassemblerTest {
+    private static final FrameReassembler.Format CR_LF =
+            FrameReassembler.Format.delimited((byte) '\r', (byte) '\n');
+
+    private final List<String> mFrames = new ArrayList<String>();
+    private final FrameReassembler.Listener mListener = new FrameReassembler.Listener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            mFrames.add(new String(buffer, offset, length));
+        }
+    };
+
+    private static void feed(FrameReassembler reassembler, String text) {
+        final byte[] data = text.getBytes();
+        reassembler.feed(data, 0, data.length);
+    }
+
+    private static void feed(FrameReassembler reassembler, int... bytes) {
+        final byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        reassembler.feed(data, 0, data.length);
+    }
+
+    @Test
+    public void joinsFramesSplitAcrossNotifications() {
+        final FrameReassembler reassembler = new FrameReassembler(CR_LF, mListener);
+
+        feed(reassembler, "72,36.");
+        feed(reassembler, "5,1\r");
+        assertEquals(1, mFrames.size());
+        feed(reassembler, "\n73,3");
+        feed(reassembler, "6.6,2\r\n");
+
+        assertEquals("72,36.5,1", mFrames.get(0));
+        assertEquals("73,36.6,2", mFrames.get(1));
+        assertEquals(2, reassembler.getFrameCount());
+        assertEquals(0, reassembler.getDroppedByteCount());
+    }
+
+    @Test
+    public void splitsSeveralFramesInOnePacket() {
+        final FrameReassembler reassembler = new FrameReassembler(CR_LF, mListener);
+
+        feed(reassembler, "1\r\n22\r\n\r\n333\n4");
+
+        assertEquals(3, mFrames.size());
+        assertEquals("1", mFrames.get(0));
+        assertEquals("22", mFrames.get(1));
+        assertEquals("333", mFrames.get(2));
+        feed(reassembler, "\r");
+        assertEquals("4", mFrames.get(3));
+    }
+
+    @Test
+    public void readsLengthPrefixedFrames() {
+        final FrameReassembler reassembler =
+                new FrameReassembler(FrameReassembler.Format.lengthPrefixed(1), mListener);
+
+        feed(reassembler, 3, 'a', 'b');
+        assertEquals(0, mFrames.size());
+        feed(reassembler, 'c', 0, 1, 'd', 2);
+        feed(reassembler, 'e', 'f');
+
+        // The empty frame is skipped.
+        assertEquals(3, mFrames.size());
+        assertEquals("abc", mFrames.get(0));
+        assertEquals("d", mFrames.get(1));
+        assertEquals("ef", mFrames.get(2));
+    }
+
+    @Test
+    public void readsTwoByteLittleEndianLengths() {
+        final FrameReassembler reassembler = new FrameReassembler(
+                FrameReassembler.Format.lengthPrefixed(2).withMaxFrameLength(300), mListener);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 260; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+
+        feed(reassembler, 260 & 0xff);
+        feed(reassembler, 260 >> 8);
+        feed(reassembler, text.toString());
+
+        assertEquals(1, mFrames.size());
+        assertEquals(text.toString(), mFrames.get(0));
+    }
+
+    @Test
+    public void resynchronizesPastImplausibleLengths() {
+        final FrameReassembler reassembler = new FrameReassembler(
+                FrameReassembler.Format.lengthPrefixed(1).withMaxFrameLength(16), mListener);
+
+        feed(reassembler, 0xf0, 0xf1, 2, 'o', 'k');
+
+        assertEquals(1, mFrames.size());
+        assertEquals("ok", mFrames.get(0));
+        assertEquals(2, reassembler.getDroppedByteCount());
+    }
+
+    @Test
+    public void checksCrc8() {
+        final FrameReassembler reassembler = new FrameReassembler(
+                CR_LF.withCrc(FrameReassembler.CRC_8), mListener);
+
+        // CRC-8 with polynomial 0x07 of "123456789" is 0xf4.
+        feed(reassembler, "123456789");
+        feed(reassembler, 0xf4, '\n');
+        feed(reassembler, "123456789");
+        feed(reassembler, 0xf5, '\n');
+
+        assertEquals(1, mFrames.size());
+        assertEquals("123456789", mFrames.get(0));
+        assertEquals(1, reassembler.getCrcErrorCount());
+        assertEquals(1, reassembler.getFrameCount());
+    }
+
+    @Test
+    public void checksCrc16MostSignificantByteFirst() {
+        final FrameReassembler reassembler = new FrameReassembler(
+                FrameReassembler.Format.lengthPrefixed(1).withCrc(FrameReassembler.CRC_16),
+                mListener);
+
+        // CRC-16/CCITT-FALSE of "123456789" is 0x29b1.
+        feed(reassembler, 11);
+        feed(reassembler, "123456789");
+        feed(reassembler, 0x29, 0xb1);
+        feed(reassembler, 11);
+        feed(reassembler, "123456789");
+        feed(reassembler, 0xb1, 0x29);
+        // Too short to hold a CRC.
+        feed(reassembler, 1, 'x');
+
+        assertEquals(1, mFrames.size());
+        assertEquals("123456789", mFrames.get(0));
+        assertEquals(1, reassembler.getCrcErrorCount());
+    }
+
+    @Test
+    public void dropsFramesLongerThanTheLimitUpToTheNextDelimiter() {
+        final FrameReassembler reassembler =
+                new FrameReassembler(CR_LF.withMaxFrameLength(8), mListener);
+
+        feed(reassembler, "0123456789");
+        feed(reassembler, "abcdef\r\nok\r\n");
+
+        assertEquals(1, mFrames.size());
+        assertEquals("ok", mFrames.get(0));
+        assertEquals(16, reassembler.getDroppedByteCount());
+    }
+
+    @Test
+    public void deliversFramesThatWrapAroundTheRing() {
+        final FrameReassembler reassembler = new FrameReassembler(CR_LF, mListener);
+        final List<String> sent = new ArrayList<String>();
+        final StringBuilder packet = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            final String frame = i + "," + (36000 + i * 7) + "," + Integer.toHexString(i * 31);
+            sent.add(frame);
+            packet.append(frame).append("\r\n");
+            // Uneven notification sizes, so frame boundaries land all over the ring.
+            if (packet.length() > 13 + i % 7) {
+                feed(reassembler, packet.toString());
+                packet.setLength(0);
+            }
+        }
+        feed(reassembler, packet.toString());
+
+        assertEquals(sent, mFrames);
+    }
+
+    @Test
+    public void resetDiscardsAPartialFrame() {
+        final FrameReassembler reassembler = new FrameReassembler(CR_LF, mListener);
+
+        feed(reassembler, "72,36.5");
+        reassembler.reset();
+        feed(reassembler, "73,36.6\r\n");
+
+        assertEquals(1, mFrames.size());
+        assertEquals("73,36.6", mFrames.get(0));
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link GattConnection}, {@link GattOperationQueue}, {@link ReconnectPolicy} and
+ * {@link GattConnectionPool} against {@link FakeHm10Peripheral}s through the
+ * {@link Hm10Simulator}, on its virtual clock.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class GattConnectionTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER = "66:77:88:99:AA:BB";
+    private static final String SUBSCRIBE_SERVICE_CHANGED = "write 00002902 of 00002a05";
+    private static final String SUBSCRIBE_HM_10 = "write 00002902 of 0000ffe1";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SimulatorHarness mHarness;
+    private Hm10Simulator mSimulator;
+    // Readings received per device.
+    private final HashMap<String, Integer> mReadings = new HashMap<String, Integer>();
+
+    @Before
+    public void setUp() throws IOException {
+        mHarness = new SimulatorHarness(42, mFolder.newFolder("gatt_cache"));
+        mSimulator = mHarness.getSimulator();
+        mHarness.getChannel().subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                final Integer count = mReadings.get(sample.getAddress());
+                mReadings.put(sample.getAddress(), count != null ? count + 1 : 1);
+            }
+        }, null, null);
+    }
+
+    private int readings(String address) {
+        final Integer count = mReadings.get(address);
+        return count != null ? count : 0;
+    }
+
+    private int count(String address, String request) {
+        return Collections.frequency(mSimulator.getRequests(address), request);
+    }
+
+    @Test
+    public void discoversThenSubscribesOneRequestAtATime() {
+        mHarness.addSensor(ADDRESS);
+        final GattConnection connection = mHarness.connect(ADDRESS);
+        mSimulator.runFor(10000);
+
+        assertEquals(GattConnection.STATE_CONNECTED, connection.getConnectionState());
+        // Service Changed is subscribed before the listener hears of the services.
+        assertEquals(Arrays.asList("discover", SUBSCRIBE_SERVICE_CHANGED, SUBSCRIBE_HM_10),
+                mSimulator.getRequests(ADDRESS));
+        assertEquals(0, mSimulator.getOverlappingRequests());
+        // One reading a second once notifications are on.
+        assertTrue(readings(ADDRESS) >= 9);
+    }
+
+    @Test
+    public void coalescesReadsWaitingBehindTheCurrentOne() {
+        mHarness.addSensor(ADDRESS);
+        final GattConnection connection = mHarness.connect(ADDRESS);
+        mSimulator.runFor(5000);
+        final BluetoothGattCharacteristic hm10 = findHm10(connection);
+        mSimulator.getRequests(ADDRESS).clear();
+
+        final GattOperation first = connection.readCharacteristic(hm10);
+        final GattOperation second = connection.readCharacteristic(hm10);
+        for (int i = 0; i < 3; i++) {
+            assertSame(second, connection.readCharacteristic(hm10));
+        }
+        connection.setCharacteristicNotification(hm10, false);
+        mSimulator.runFor(1000);
+
+        assertNotSame(first, second);
+        assertEquals(Arrays.asList("read 0000ffe1", "read 0000ffe1", SUBSCRIBE_HM_10),
+                mSimulator.getRequests(ADDRESS));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, second.getStatus());
+        assertEquals(0, mSimulator.getOverlappingRequests());
+    }
+
+    @Test
+    public void retriesAfterStatus133WithFreshClients() {
+        final FakeHm10Peripheral sensor = mHarness.addSensor(ADDRESS);
+        sensor.setConnectFailureRate(1);
+        final GattConnection connection = mHarness.connect(ADDRESS);
+        mSimulator.runFor(20000);
+
+        final int errors = connection.getGattErrorCount();
+        assertTrue(errors >= 4);
+        assertEquals(errors, mSimulator.getConnectFailures());
+        // A client that failed with 133 is unusable; every retry opens a new one.
+        final int opened = mSimulator.getClientsOpened();
+        assertTrue(opened == errors || opened == errors + 1);
+        assertNotEquals(GattConnection.STATE_CONNECTED, connection.getConnectionState());
+
+        sensor.setConnectFailureRate(0);
+        mSimulator.runFor(60000);
+
+        assertEquals(GattConnection.STATE_CONNECTED, connection.getConnectionState());
+        assertTrue(readings(ADDRESS) > 0);
+    }
+
+    @Test
+    public void reconnectsThroughTheSameClientAfterAShortDrop() {
+        mHarness.addSensor(ADDRESS);
+        final GattConnection connection = mHarness.connect(ADDRESS);
+        mSimulator.runFor(5000);
+        final int before = readings(ADDRESS);
+
+        mSimulator.setInRange(ADDRESS, false);
+        assertEquals(GattConnection.STATE_DISCONNECTED, connection.getConnectionState());
+        mSimulator.runFor(100);
+        mSimulator.setInRange(ADDRESS, true);
+        mSimulator.runFor(5000);
+
+        assertEquals(GattConnection.STATE_CONNECTED, connection.getConnectionState());
+        assertEquals(1, connection.getReconnectCount());
+        assertEquals(1, mSimulator.getClientsOpened());
+        // The services of the first connection were still valid, so no second discovery, and
+        // notifications were enabled again by the connection itself.
+        assertEquals(1, count(ADDRESS, "discover"));
+        assertEquals(2, count(ADDRESS, SUBSCRIBE_HM_10));
+        assertTrue(readings(ADDRESS) > before);
+        assertEquals(0, mSimulator.getOverlappingRequests());
+    }
+
+    @Test
+    public void fallsBackToABackgroundConnectWhileOutOfRange() {
+        mHarness.addSensor(ADDRESS);
+        final GattConnection connection = mHarness.connect(ADDRESS);
+        mSimulator.runFor(5000);
+
+        mSimulator.setInRange(ADDRESS, false);
+        // Long enough for every direct attempt to time out.
+        mSimulator.runFor(5 * 60 * 1000);
+        assertEquals(GattConnection.STATE_CONNECTING, connection.getConnectionState());
+        final int opened = mSimulator.getClientsOpened();
+        mSimulator.runFor(5 * 60 * 1000);
+        // The background connect stays pending instead of being retried.
+        assertEquals(opened, mSimulator.getClientsOpened());
+
+        mSimulator.setInRange(ADDRESS, true);
+        final int before = readings(ADDRESS);
+        mSimulator.runFor(5000);
+
+        assertEquals(GattConnection.STATE_CONNECTED, connection.getConnectionState());
+        assertEquals(1, connection.getReconnectCount());
+        assertTrue(readings(ADDRESS) > before);
+        assertEquals(0, mSimulator.getOverlappingRequests());
+    }
+
+    @Test
+    public void staysDownAfterDisconnect() {
+        mHarness.addSensor(ADDRESS);
+        final GattConnection connection = mHarness.connect(ADDRESS);
+        mSimulator.runFor(5000);
+
+        connection.disconnect();
+        mSimulator.runFor(100);
+        assertEquals(GattConnection.STATE_DISCONNECTED, connection.getConnectionState());
+        final int before = readings(ADDRESS);
+        mSimulator.runFor(60000);
+
+        assertEquals(GattConnection.STATE_DISCONNECTED, connection.getConnectionState());
+        assertEquals(0, connection.getReconnectCount());
+        assertEquals(before, readings(ADDRESS));
+    }
+
+    @Test
+    public void reportsEvictedLinksAsDisconnected() {
+        mHarness.addSensor(ADDRESS);
+        mHarness.addSensor(OTHER);
+        final GattConnectionPool pool = mHarness.getPool();
+        pool.setMaxConnections(1);
+        pool.setIdleTimeoutMs(0);
+        final List<Integer> states = new ArrayList<Integer>();
+        pool.registerListener(ADDRESS, new GattConnection.Listener() {
+            @Override
+            public void onConnectionStateChanged(GattConnection connection, int state) {
+                states.add(state);
+            }
+
+            @Override
+            public void onServicesDiscovered(GattConnection connection) {
+            }
+
+            @Override
+            public void onDataAvailable(GattConnection connection,
+                                        BluetoothGattCharacteristic characteristic) {
+            }
+        });
+        mHarness.connect(ADDRESS);
+        mSimulator.runFor(5000);
+
+        assertNotNull(mHarness.connect(OTHER));
+
+        assertEquals(Arrays.asList(GattConnection.STATE_CONNECTED,
+                GattConnection.STATE_DISCONNECTED), states);
+        assertNull(pool.get(ADDRESS));
+    }
+
+    @Test
+    public void keepsAFlakyFleetStreaming() {
+        final int sensors = 20;
+        final List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < sensors; i++) {
+            final String address = String.format("00:00:00:00:00:%02X", i);
+            addresses.add(address);
+            final FakeHm10Peripheral sensor = mHarness.addSensor(address);
+            sensor.setConnectFailureRate(0.3);
+            sensor.setMeanTimeBetweenDisconnectsMs(2 * 60 * 1000);
+            sensor.setDropRate(0.01);
+            sensor.setLatency(10, 40);
+        }
+        mHarness.connectAll();
+        mSimulator.runFor(30 * 60 * 1000);
+        mReadings.clear();
+        mSimulator.runFor(5 * 60 * 1000);
+
+        assertTrue(mSimulator.getDisconnects() > sensors);
+        assertTrue(mSimulator.getConnectFailures() > 0);
+        assertEquals(0, mSimulator.getOverlappingRequests());
+        for (String address : addresses) {
+            // Five minutes at one a second, less what was lost while links were down.
+            assertTrue(address + " got " + readings(address), readings(address) > 200);
+        }
+    }
+
+    private static BluetoothGattCharacteristic findHm10(GattConnection connection) {
+        for (BluetoothGattService service : connection.getServices()) {
+            final BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristic(Hm10Simulator.HM_10);
+            if (characteristic != null) return characteristic;
+        }
+        throw new AssertionError("No HM-10 characteristic");
+    }
+}
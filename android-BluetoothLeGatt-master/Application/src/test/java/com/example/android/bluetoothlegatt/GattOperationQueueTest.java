@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link GattOperationQueue} against a {@link GattClient} that records requests and only
+ * acknowledges them when the test says so.  Timeouts and retries run on the virtual clock of
+ * the main looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class GattOperationQueueTest {
+    private static final UUID CCCD =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    // Accepts or refuses requests as told and remembers the attributes they were made for.
+    private static class RecordingClient implements GattClient {
+        final List<Object> mRequests = new ArrayList<Object>();
+        boolean mAccept = true;
+
+        boolean record(Object attribute) {
+            mRequests.add(attribute);
+            return mAccept;
+        }
+
+        Object last() {
+            return mRequests.isEmpty() ? null : mRequests.get(mRequests.size() - 1);
+        }
+
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return new ArrayList<BluetoothGattService>();
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return record(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return record(characteristic);
+        }
+
+        @Override
+        public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+            return record(descriptor);
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            return record(descriptor);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enabled) {
+            return mAccept;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return record(GattOperation.MTU_EXCHANGE);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return mAccept;
+        }
+
+        @Override
+        public boolean refresh() {
+            return true;
+        }
+    }
+
+    private RecordingClient mClient;
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mClient = new RecordingClient();
+        mQueue = new GattOperationQueue(new Handler(Looper.getMainLooper()));
+        mQueue.setGattClient(mClient);
+    }
+
+    private static BluetoothGattCharacteristic characteristic(int shortUuid) {
+        final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", shortUuid)),
+                BluetoothGattCharacteristic.PROPERTY_READ
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        characteristic.addDescriptor(
+                new BluetoothGattDescriptor(CCCD, BluetoothGattDescriptor.PERMISSION_WRITE));
+        return characteristic;
+    }
+
+    @Test
+    public void issuesOneOperationAtATimeInOrder() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final BluetoothGattCharacteristic b = characteristic(0x2a38);
+        final BluetoothGattCharacteristic c = characteristic(0x2a39);
+        final GattOperation readA = mQueue.enqueue(GattOperation.readCharacteristic(a));
+        final GattOperation writeB = mQueue.enqueue(
+                GattOperation.writeCharacteristic(b, new byte[] {1}));
+        final GattOperation readC = mQueue.enqueue(GattOperation.readCharacteristic(c));
+
+        assertEquals(1, mClient.mRequests.size());
+        assertSame(a, mClient.last());
+        assertEquals(3, mQueue.size());
+
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_SUCCESS);
+        assertSame(b, mClient.last());
+        mQueue.onOperationCompleted(b, BluetoothGatt.GATT_SUCCESS);
+        assertSame(c, mClient.last());
+        mQueue.onOperationCompleted(c, BluetoothGatt.GATT_SUCCESS);
+
+        assertEquals(3, mClient.mRequests.size());
+        assertEquals(0, mQueue.size());
+        assertTrue(readA.isSuccessful());
+        assertTrue(writeB.isSuccessful());
+        assertTrue(readC.isSuccessful());
+        assertEquals(3, mQueue.getCompletedCount());
+    }
+
+    @Test
+    public void ignoresCompletionsForOtherAttributes() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final GattOperation read = mQueue.enqueue(GattOperation.readCharacteristic(a));
+
+        mQueue.onOperationCompleted(characteristic(0x2a38), BluetoothGatt.GATT_SUCCESS);
+
+        assertFalse(read.isDone());
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void retriesTimedOutOperationsThenFails() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final BluetoothGattCharacteristic b = characteristic(0x2a38);
+        final GattOperation read = mQueue.enqueue(
+                GattOperation.readCharacteristic(a).setTimeoutMs(1000).setMaxRetries(2));
+        mQueue.enqueue(GattOperation.readCharacteristic(b));
+
+        ShadowLooper.idleMainLooper(999);
+        assertEquals(1, mClient.mRequests.size());
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(2, mClient.mRequests.size());
+        assertSame(a, mClient.last());
+        ShadowLooper.idleMainLooper(1000);
+        assertEquals(3, mClient.mRequests.size());
+        assertFalse(read.isDone());
+
+        // The third timeout exhausts the retries and the queue moves on.
+        ShadowLooper.idleMainLooper(1000);
+        assertEquals(GattOperation.STATUS_TIMEOUT, read.getStatus());
+        assertSame(b, mClient.last());
+        assertEquals(1, mQueue.getFailedCount());
+    }
+
+    @Test
+    public void retriesGattError() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final GattOperation read = mQueue.enqueue(GattOperation.readCharacteristic(a));
+
+        mQueue.onOperationCompleted(a, GattOperationQueue.GATT_ERROR);
+        assertEquals(2, mClient.mRequests.size());
+        assertFalse(read.isDone());
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_SUCCESS);
+
+        assertTrue(read.isSuccessful());
+        assertEquals(0, mQueue.getFailedCount());
+    }
+
+    @Test
+    public void doesNotRetryOtherErrors() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final GattOperation read = mQueue.enqueue(GattOperation.readCharacteristic(a));
+
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_READ_NOT_PERMITTED);
+
+        assertEquals(1, mClient.mRequests.size());
+        assertEquals(BluetoothGatt.GATT_READ_NOT_PERMITTED, read.getStatus());
+    }
+
+    @Test
+    public void retriesOperationsTheStackRefusesToStart() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        mClient.mAccept = false;
+        final GattOperation read = mQueue.enqueue(
+                GattOperation.readCharacteristic(a).setMaxRetries(1));
+        assertEquals(1, mClient.mRequests.size());
+
+        ShadowLooper.idleMainLooper(50);
+        assertEquals(2, mClient.mRequests.size());
+        assertEquals(GattOperation.STATUS_START_FAILED, read.getStatus());
+
+        final GattOperation retried = mQueue.enqueue(GattOperation.readCharacteristic(a));
+        assertEquals(3, mClient.mRequests.size());
+        mClient.mAccept = true;
+        ShadowLooper.idleMainLooper(50);
+        assertEquals(4, mClient.mRequests.size());
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_SUCCESS);
+        assertTrue(retried.isSuccessful());
+    }
+
+    @Test
+    public void mergesDuplicateReadsWhileQueued() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final BluetoothGattCharacteristic b = characteristic(0x2a38);
+        final GattOperation readA = mQueue.enqueue(GattOperation.readCharacteristic(a));
+        final GattOperation readB = mQueue.enqueue(GattOperation.readCharacteristic(b));
+
+        assertSame(readB, mQueue.enqueue(GattOperation.readCharacteristic(b)));
+        // The one in flight is not merged: its value may predate the request.
+        final GattOperation readA2 = mQueue.enqueue(GattOperation.readCharacteristic(a));
+        assertTrue(readA2 != readA);
+        assertEquals(3, mQueue.size());
+
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onOperationCompleted(b, BluetoothGatt.GATT_SUCCESS);
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(3, mClient.mRequests.size());
+        assertTrue(readB.isSuccessful());
+        assertTrue(readA2.isSuccessful());
+    }
+
+    @Test
+    public void doesNotMergeWrites() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        mQueue.enqueue(GattOperation.readCharacteristic(characteristic(0x2a38)));
+        final GattOperation first = mQueue.enqueue(
+                GattOperation.writeCharacteristic(a, new byte[] {1}));
+        final GattOperation second = mQueue.enqueue(
+                GattOperation.writeCharacteristic(a, new byte[] {1}));
+
+        assertTrue(first != second);
+        assertEquals(3, mQueue.size());
+    }
+
+    @Test
+    public void completesFuturesAndCallbacks() throws InterruptedException {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final AtomicInteger status = new AtomicInteger(GattOperation.STATUS_PENDING);
+        final GattOperation read = mQueue.enqueue(GattOperation.readCharacteristic(a));
+        read.addCallback(new GattOperation.Callback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int result) {
+                status.set(result);
+            }
+        });
+        assertEquals(GattOperation.STATUS_PENDING, read.await(1));
+
+        final Thread binder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.onOperationCompleted(mClient.last(), BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        binder.start();
+        assertEquals(BluetoothGatt.GATT_SUCCESS, read.await(5000));
+        binder.join();
+        assertEquals(BluetoothGatt.GATT_SUCCESS, status.get());
+
+        // Registered after the fact, a callback runs at once.
+        final AtomicInteger late = new AtomicInteger(GattOperation.STATUS_PENDING);
+        read.addCallback(new GattOperation.Callback() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int result) {
+                late.set(result);
+            }
+        });
+        assertEquals(BluetoothGatt.GATT_SUCCESS, late.get());
+    }
+
+    @Test
+    public void callbacksCanEnqueueFollowUpWork() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final BluetoothGattCharacteristic b = characteristic(0x2a38);
+        final GattOperation[] followUp = new GattOperation[1];
+        mQueue.enqueue(GattOperation.readCharacteristic(a)).addCallback(
+                new GattOperation.Callback() {
+                    @Override
+                    public void onOperationComplete(GattOperation operation, int status) {
+                        followUp[0] = mQueue.enqueue(GattOperation.readCharacteristic(b));
+                    }
+                });
+
+        mQueue.onOperationCompleted(a, BluetoothGatt.GATT_SUCCESS);
+
+        assertSame(b, mClient.last());
+        mQueue.onOperationCompleted(b, BluetoothGatt.GATT_SUCCESS);
+        assertTrue(followUp[0].isSuccessful());
+    }
+
+    @Test
+    public void writesWithoutResponseCompleteOnStart() {
+        final BluetoothGattCharacteristic a = characteristic(0x2a37);
+        final BluetoothGattCharacteristic b = characteristic(0x2a38);
+        a.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        final GattOperation write = mQueue.enqueue(
+                GattOperation.writeCharacteristic(a, new byte[] {1, 2}));
+        mQueue.enqueue(GattOperation.readCharacteristic(b));
+
+        assertTrue(write.isSuccessful());
+        assertSame(b, mClient.last());
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        final GattOperation inFlight =
+                mQueue.enqueue(GattOperation.readCharacteristic(characteristic(0x2a37)));
+        final GattOperation queued =
+                mQueue.enqueue(GattOperation.readCharacteristic(characteristic(0x2a38)));
+
+        mQueue.setGattClient(null);
+
+        assertEquals(GattOperation.STATUS_CANCELLED, inFlight.getStatus());
+        assertEquals(GattOperation.STATUS_CANCELLED, queued.getStatus());
+        assertEquals(0, mQueue.size());
+        // Nothing times out afterwards.
+        ShadowLooper.idleMainLooper(GattOperation.DEFAULT_TIMEOUT_MS);
+        assertEquals(1, mClient.mRequests.size());
+        assertEquals(GattOperation.STATUS_CANCELLED, mQueue.enqueue(
+                GattOperation.readCharacteristic(characteristic(0x2a39))).getStatus());
+    }
+
+    @Test
+    public void pipelinesAcknowledgedOperations() {
+        final int count = 20000;
+        final BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[64];
+        for (int i = 0; i < characteristics.length; i++) {
+            characteristics[i] = characteristic(0x2a00 + i);
+        }
+
+        for (int i = 0; i < count; i++) {
+            enqueueAndAcknowledge(characteristics, i);
+        }
+        while (mQueue.size() > 0) {
+            mQueue.onOperationCompleted(mClient.last(), BluetoothGatt.GATT_SUCCESS);
+        }
+
+        // How fast this goes is measured by GattOperationQueueBenchmark.
+        assertEquals(count, mQueue.getCompletedCount());
+        assertEquals(0, mQueue.getFailedCount());
+    }
+
+    // Keeps eight operations queued, as a busy app would, and acknowledges the one in flight.
+    private void enqueueAndAcknowledge(BluetoothGattCharacteristic[] characteristics, int i) {
+        mQueue.enqueue(GattOperation.readCharacteristic(
+                characteristics[i & (characteristics.length - 1)]));
+        if (mQueue.size() > 8 || i % 8 == 7) {
+            mQueue.onOperationCompleted(mClient.last(), BluetoothGatt.GATT_SUCCESS);
+        }
+        if (mClient.mRequests.size() > 1024) {
+            mClient.mRequests.subList(0, mClient.mRequests.size() - 1).clear();
+        }
+    }
+}
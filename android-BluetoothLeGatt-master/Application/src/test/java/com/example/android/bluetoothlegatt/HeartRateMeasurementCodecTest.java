@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeartRateMeasurementCodecTest {
+    private final HeartRateMeasurementCodec mCodec = new HeartRateMeasurementCodec();
+    private final SensorSample mSample = new SensorSample();
+
+    private boolean decode(int... bytes) {
+        final byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            value[i] = (byte) bytes[i];
+        }
+        mSample.set(null, CodecRegistry.HEART_RATE_MEASUREMENT, 0, value, 0, value.length);
+        return mCodec.decode(value, 0, value.length, mSample);
+    }
+
+    @Test
+    public void decodesUint8HeartRate() {
+        assertTrue(decode(0x00, 72));
+        assertEquals(72, mSample.getHeartRate());
+        assertEquals(SensorSample.NO_VALUE, mSample.getTemperature());
+        assertEquals(SensorSample.NO_VALUE, mSample.getEnergyExpended());
+        assertEquals(0, mSample.getRrIntervalCount());
+        assertEquals(0, mSample.getSequence());
+
+        assertTrue(decode(0x06, 0xff));
+        assertEquals(255, mSample.getHeartRate());
+        assertEquals(1, mSample.getSequence());
+    }
+
+    @Test
+    public void decodesUint16HeartRate() {
+        assertTrue(decode(0x01, 0x2c, 0x01));
+        assertEquals(300, mSample.getHeartRate());
+    }
+
+    @Test
+    public void decodesEnergyExpendedAndRrIntervals() {
+        assertTrue(decode(0x19, 0x48, 0x00, 0x10, 0x27, 0x00, 0x04, 0x20, 0x03));
+        assertEquals(72, mSample.getHeartRate());
+        assertEquals(10000, mSample.getEnergyExpended());
+        assertEquals(2, mSample.getRrIntervalCount());
+        assertEquals(1024, mSample.getRrInterval(0));
+        assertEquals(800, mSample.getRrInterval(1));
+    }
+
+    @Test
+    public void ignoresAnOddTrailingRrByte() {
+        assertTrue(decode(0x10, 60, 0x00, 0x04, 0x01));
+        assertEquals(1, mSample.getRrIntervalCount());
+        assertEquals(1024, mSample.getRrInterval(0));
+    }
+
+    @Test
+    public void keepsTheFirstRrIntervalsOnOverflow() {
+        final int intervals = SensorSample.MAX_RR_INTERVALS + 4;
+        final int[] value = new int[2 + 2 * intervals];
+        value[0] = 0x10;
+        value[1] = 60;
+        for (int i = 0; i < intervals; i++) {
+            value[2 + 2 * i] = 100 + i;
+        }
+        assertTrue(decode(value));
+        assertEquals(60, mSample.getHeartRate());
+        assertEquals(SensorSample.MAX_RR_INTERVALS, mSample.getRrIntervalCount());
+        assertEquals(100, mSample.getRrInterval(0));
+        assertEquals(100 + SensorSample.MAX_RR_INTERVALS - 1,
+                mSample.getRrInterval(SensorSample.MAX_RR_INTERVALS - 1));
+    }
+
+    @Test
+    public void rejectsTruncatedValues() {
+        assertFalse(decode(0x00));
+        assertFalse(decode(0x01, 0x48));
+        assertFalse(decode(0x08, 72, 0x10));
+        assertFalse(decode(0x09, 0x48, 0x00, 0x10));
+        assertEquals(SensorSample.NO_VALUE, mSample.getHeartRate());
+        assertEquals(-1, mSample.getSequence());
+
+        assertTrue(decode(0x00, 72));
+        assertEquals(0, mSample.getSequence());
+    }
+}
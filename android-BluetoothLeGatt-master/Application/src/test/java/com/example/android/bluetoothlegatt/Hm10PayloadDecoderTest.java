@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Hm10PayloadDecoderTest {
+    private final Hm10PayloadDecoder mDecoder = new Hm10PayloadDecoder();
+    private final SensorSample mSample = new SensorSample();
+
+    private boolean decode(String text) {
+        final byte[] data = text.getBytes();
+        return mDecoder.decode(data, 0, data.length, mSample);
+    }
+
+    @Test
+    public void decodesReadings() {
+        assertTrue(decode("72,36.5,118\r\n"));
+        assertEquals(72, mSample.getHeartRate());
+        assertEquals(3650, mSample.getTemperature());
+        assertEquals(118, mSample.getSequence());
+
+        assertTrue(decode("HR:64 T:-1.25 #7"));
+        assertEquals(64, mSample.getHeartRate());
+        assertEquals(-125, mSample.getTemperature());
+        assertEquals(7, mSample.getSequence());
+    }
+
+    @Test
+    public void numbersReadingsWithoutSequence() {
+        assertTrue(decode("72,36.5,41"));
+        assertTrue(decode("73 36.50"));
+        assertEquals(42, mSample.getSequence());
+        assertTrue(decode("74"));
+        assertEquals(SensorSample.NO_VALUE, mSample.getTemperature());
+        assertEquals(43, mSample.getSequence());
+    }
+
+    @Test
+    public void rejectsPayloadsWithoutNumbers() {
+        assertFalse(decode("OK+CONN\r\n"));
+    }
+
+    @Test
+    public void doesNotAllocatePerPacket() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final byte[][] packets = new byte[64][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = ((60 + i) + "," + (36 + i % 3) + "." + (10 + i) + "," + i + "\r\n")
+                    .getBytes();
+        }
+        final SensorSample sample = mSample;
+        // Warms up the decoder and the measurement itself, then subtracts what measuring costs.
+        for (int i = 0; i < 100000; i++) {
+            final byte[] packet = packets[i & 63];
+            mDecoder.decode(packet, 0, packet.length, sample);
+        }
+        // A stray allocation by the runtime (a class load, a compiled method swapped in) can
+        // land in any one pass, so the quietest of a few passes is what counts.
+        long allocated = Long.MAX_VALUE;
+        for (int pass = 0; pass < 5 && allocated > 0; pass++) {
+            final long overheadStart = threads.getThreadAllocatedBytes(thread);
+            final long overhead = threads.getThreadAllocatedBytes(thread) - overheadStart;
+
+            final long start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 10000; i++) {
+                final byte[] packet = packets[i & 63];
+                mDecoder.decode(packet, 0, packet.length, sample);
+            }
+            allocated = Math.min(allocated,
+                    threads.getThreadAllocatedBytes(thread) - start - overhead);
+        }
+
+        assertEquals(0, allocated);
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A simulated Bluetooth stack that opens {@link GattClient}s to {@link FakeHm10Peripheral}s, so
+ * {@link GattConnection}, {@link GattOperationQueue} and {@link GattConnectionPool} run
+ * unchanged against it.  Each peripheral has the HM-10 service, with notifications enabled
+ * through its client configuration descriptor, and the Generic Attribute service with
+ * Service Changed.
+ *
+ * <p>Like the real stack a client takes one request at a time: a request made while another is
+ * unanswered is refused and counted in {@link #getOverlappingRequests()}.  Every request is
+ * logged per device in order, see {@link #getRequests(String)}.
+ *
+ * <p>Time is the virtual clock of the Robolectric main looper, which the code under test posts
+ * its timeouts and reconnects to as well.  Nothing happens until {@link #runFor} or
+ * {@link #runUntil} advances it; every event in the period then runs in time order on the
+ * calling thread, as fast as it can.  An hour of a hundred sensors takes seconds, and with the
+ * same seeds a run replays exactly, down to which notification was lost.
+ *
+ * <p>Not thread safe.
+ */
+public class Hm10Simulator implements GattClient.Factory {
+    public static final UUID HM_10_SERVICE = UUID.fromString(SampleGattAttributes.HM_10_SERVICE);
+    public static final UUID HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+    public static final UUID GENERIC_ATTRIBUTE =
+            UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID SERVICE_CHANGED =
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+    private static final UUID CCCD =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    // The status Android reports for most failed connects.
+    public static final int GATT_ERROR = 133;
+    // The status of a link that dropped because the peripheral stopped answering.
+    public static final int GATT_CONN_TIMEOUT = 8;
+    // How long a direct connect to a device that does not advertise takes to fail.
+    public static final long DIRECT_CONNECT_TIMEOUT_MS = 30000;
+    // How long the peripheral takes to answer a request.
+    public static final long RESPONSE_DELAY_MS = 15;
+
+    // The peripheral behind a device address and the client connected to it, if any.
+    private class Link {
+        final FakeHm10Peripheral mPeripheral;
+        final List<String> mRequests = new ArrayList<String>();
+        boolean mInRange = true;
+        SimulatedClient mClient;
+        // When the last notification of this link arrives, to keep them in order under jitter.
+        long mLastDelivery;
+
+        Link(FakeHm10Peripheral peripheral) {
+            mPeripheral = peripheral;
+        }
+    }
+
+    private final Handler mHandler;
+    private final long mStart;
+    private final HashMap<String, Link> mLinks = new HashMap<String, Link>();
+
+    private int mClientsOpened;
+    private long mNotificationsSent;
+    private long mNotificationsDropped;
+    private long mNotificationsDelivered;
+    private int mConnectFailures;
+    private int mDisconnects;
+    private int mOverlappingRequests;
+
+    /**
+     * Pauses the main looper, so that nothing posted to it runs before the clock is advanced.
+     */
+    public Hm10Simulator() {
+        ShadowLooper.pauseMainLooper();
+        mHandler = new Handler(Looper.getMainLooper());
+        mStart = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Returns a handler on the simulator's thread and clock, for the code under test.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public void addPeripheral(FakeHm10Peripheral peripheral) {
+        mLinks.put(peripheral.getAddress(), new Link(peripheral));
+    }
+
+    public FakeHm10Peripheral getPeripheral(String address) {
+        final Link link = mLinks.get(address);
+        return link != null ? link.mPeripheral : null;
+    }
+
+    /**
+     * Takes a peripheral out of range, dropping its link, or brings it back, completing the
+     * background connects waiting for it.  Direct connects to a peripheral out of range fail
+     * after {@link #DIRECT_CONNECT_TIMEOUT_MS}.
+     */
+    public void setInRange(String address, boolean inRange) {
+        final Link link = mLinks.get(address);
+        if (link == null || link.mInRange == inRange) return;
+        link.mInRange = inRange;
+        final SimulatedClient client = link.mClient;
+        if (client == null) return;
+        if (!inRange && client.mState == BluetoothProfile.STATE_CONNECTED) {
+            mDisconnects++;
+            client.drop(GATT_CONN_TIMEOUT);
+        } else if (inRange && client.mState == BluetoothProfile.STATE_CONNECTING) {
+            client.startConnect(client.mAutoConnect);
+        }
+    }
+
+    /**
+     * Returns the virtual time in milliseconds since the simulator was created.
+     */
+    public long now() {
+        return SystemClock.uptimeMillis() - mStart;
+    }
+
+    /**
+     * Runs every event up to {@code durationMs} from now and leaves the clock there.
+     */
+    public void runFor(long durationMs) {
+        ShadowLooper.idleMainLooper(durationMs);
+    }
+
+    public void runUntil(long timeMs) {
+        runFor(Math.max(0, timeMs - now()));
+    }
+
+    /**
+     * Returns the requests made to {@code address} in order, such as {@code "discover"},
+     * {@code "write 00002902 of 0000ffe1"} or {@code "mtu 247"}.
+     */
+    public List<String> getRequests(String address) {
+        return mLinks.get(address).mRequests;
+    }
+
+    /**
+     * Returns whether a client holds a link to {@code address}, one of the
+     * {@code BluetoothProfile.STATE_*} constants.
+     */
+    public int getState(String address) {
+        final Link link = mLinks.get(address);
+        return link != null && link.mClient != null
+                ? link.mClient.mState : BluetoothProfile.STATE_DISCONNECTED;
+    }
+
+    public int getClientsOpened() {
+        return mClientsOpened;
+    }
+
+    /**
+     * Returns the notifications the peripherals sent, including lost ones.
+     */
+    public long getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    public long getNotificationsDropped() {
+        return mNotificationsDropped;
+    }
+
+    public long getNotificationsDelivered() {
+        return mNotificationsDelivered;
+    }
+
+    public int getConnectFailures() {
+        return mConnectFailures;
+    }
+
+    /**
+     * Returns the links dropped by the peripheral side, not counting failed connects.
+     */
+    public int getDisconnects() {
+        return mDisconnects;
+    }
+
+    /**
+     * Returns how many requests were made while an earlier one was unanswered.
+     */
+    public int getOverlappingRequests() {
+        return mOverlappingRequests;
+    }
+
+    @Override
+    public GattClient open(String address, boolean autoConnect, GattClient.Callback callback) {
+        final Link link = mLinks.get(address);
+        if (link == null) return null;
+        mClientsOpened++;
+        final SimulatedClient client = new SimulatedClient(link, callback);
+        client.startConnect(autoConnect);
+        return client;
+    }
+
+    private void schedule(long delayMs, Runnable action) {
+        mHandler.postDelayed(action, Math.max(delayMs, 0));
+    }
+
+    private static BluetoothGattCharacteristic addCharacteristic(BluetoothGattService service,
+                                                                 UUID uuid, int properties) {
+        final BluetoothGattCharacteristic characteristic =
+                new BluetoothGattCharacteristic(uuid, properties, 0);
+        characteristic.addDescriptor(new BluetoothGattDescriptor(CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ
+                        | BluetoothGattDescriptor.PERMISSION_WRITE));
+        service.addCharacteristic(characteristic);
+        return characteristic;
+    }
+
+    private static String name(UUID uuid) {
+        return uuid.toString().substring(0, 8);
+    }
+
+    // A BluetoothGatt.  Every connect and every close starts a new generation, and events of an
+    // older one are ignored, so whatever was in flight is cancelled.
+    private class SimulatedClient implements GattClient {
+        final Link mLink;
+        final GattClient.Callback mCallback;
+        final List<BluetoothGattService> mServices = new ArrayList<BluetoothGattService>();
+        int mState = BluetoothProfile.STATE_DISCONNECTED;
+        int mGeneration;
+        boolean mAutoConnect;
+        boolean mClosed;
+        boolean mBusy;
+        boolean mNotifying;
+        BluetoothGattCharacteristic mHm10;
+
+        SimulatedClient(Link link, GattClient.Callback callback) {
+            mLink = link;
+            mCallback = callback;
+        }
+
+        void startConnect(final boolean autoConnect) {
+            final int generation = ++mGeneration;
+            mAutoConnect = autoConnect;
+            mState = BluetoothProfile.STATE_CONNECTING;
+            mLink.mClient = this;
+            if (!mLink.mInRange) {
+                // A background connect waits for the device; a direct one gives up.
+                if (autoConnect) return;
+                schedule(DIRECT_CONNECT_TIMEOUT_MS, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mGeneration != generation) return;
+                        mConnectFailures++;
+                        drop(GATT_ERROR);
+                    }
+                });
+                return;
+            }
+            schedule(mLink.mPeripheral.getConnectDelayMs(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration != generation) return;
+                    if (!mLink.mInRange) {
+                        // Went out of range while connecting.
+                        startConnect(autoConnect);
+                        return;
+                    }
+                    if (mLink.mPeripheral.nextConnectFails()) {
+                        mConnectFailures++;
+                        drop(GATT_ERROR);
+                        return;
+                    }
+                    mState = BluetoothProfile.STATE_CONNECTED;
+                    mCallback.onConnectionStateChange(SimulatedClient.this,
+                            BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                    scheduleDisconnect(generation);
+                }
+            });
+        }
+
+        // Ends the link and reports it with |status|.
+        void drop(int status) {
+            mGeneration++;
+            mState = BluetoothProfile.STATE_DISCONNECTED;
+            mBusy = false;
+            mNotifying = false;
+            mCallback.onConnectionStateChange(this, status, BluetoothProfile.STATE_DISCONNECTED);
+        }
+
+        // Starts a request, or refuses it if the client cannot take it now.
+        boolean request(String description) {
+            if (mClosed || mState != BluetoothProfile.STATE_CONNECTED) return false;
+            mLink.mRequests.add(description);
+            if (mBusy) {
+                mOverlappingRequests++;
+                return false;
+            }
+            mBusy = true;
+            return true;
+        }
+
+        // Answers the request in flight after the response delay, unless the link went down.
+        void respond(long delayMs, final Runnable response) {
+            final int generation = mGeneration;
+            schedule(delayMs, new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration != generation) return;
+                    mBusy = false;
+                    response.run();
+                }
+            });
+        }
+
+        @Override
+        public boolean connect() {
+            if (mClosed) return false;
+            if (mState == BluetoothProfile.STATE_DISCONNECTED) {
+                // connect() on an existing client is always a background connection.
+                startConnect(true);
+            }
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            if (mClosed || mState == BluetoothProfile.STATE_DISCONNECTED) return;
+            final int generation = ++mGeneration;
+            schedule(0, new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration != generation) return;
+                    drop(BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mGeneration++;
+            mState = BluetoothProfile.STATE_DISCONNECTED;
+            if (mLink.mClient == this) {
+                mLink.mClient = null;
+            }
+        }
+
+        @Override
+        public boolean discoverServices() {
+            if (!request("discover")) return false;
+            respond(mLink.mPeripheral.getDiscoveryDelayMs(), new Runnable() {
+                @Override
+                public void run() {
+                    mServices.clear();
+                    final BluetoothGattService hm10 = new BluetoothGattService(HM_10_SERVICE,
+                            BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                    mHm10 = addCharacteristic(hm10, HM_10,
+                            BluetoothGattCharacteristic.PROPERTY_READ
+                                    | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+                                    | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+                    final BluetoothGattService gatt = new BluetoothGattService(
+                            GENERIC_ATTRIBUTE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                    addCharacteristic(gatt, SERVICE_CHANGED,
+                            BluetoothGattCharacteristic.PROPERTY_INDICATE);
+                    mServices.add(gatt);
+                    mServices.add(hm10);
+                    mCallback.onServicesDiscovered(SimulatedClient.this,
+                            BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return mServices;
+        }
+
+        @Override
+        public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+            if (!request("read " + name(characteristic.getUuid()))) return false;
+            respond(RESPONSE_DELAY_MS, new Runnable() {
+                @Override
+                public void run() {
+                    if (HM_10.equals(characteristic.getUuid())) {
+                        final ByteArrayOutputStream reading = new ByteArrayOutputStream();
+                        for (byte[] chunk : mLink.mPeripheral.nextReading(now())) {
+                            reading.write(chunk, 0, chunk.length);
+                        }
+                        characteristic.setValue(reading.toByteArray());
+                    }
+                    mCallback.onCharacteristicRead(SimulatedClient.this, characteristic,
+                            BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+            if (!request("write " + name(characteristic.getUuid()))) return false;
+            respond(RESPONSE_DELAY_MS, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicWrite(SimulatedClient.this, characteristic,
+                            BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean readDescriptor(final BluetoothGattDescriptor descriptor) {
+            if (!request("read " + name(descriptor.getUuid()) + " of "
+                    + name(descriptor.getCharacteristic().getUuid()))) {
+                return false;
+            }
+            respond(RESPONSE_DELAY_MS, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onDescriptorRead(SimulatedClient.this, descriptor,
+                            BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+            final UUID owner = descriptor.getCharacteristic().getUuid();
+            if (!request("write " + name(descriptor.getUuid()) + " of " + name(owner))) {
+                return false;
+            }
+            respond(RESPONSE_DELAY_MS, new Runnable() {
+                @Override
+                public void run() {
+                    if (HM_10.equals(owner) && CCCD.equals(descriptor.getUuid())) {
+                        final byte[] value = descriptor.getValue();
+                        final boolean enable = value != null && value.length > 0
+                                && value[0] != 0;
+                        if (enable && !mNotifying) {
+                            scheduleReading(mGeneration);
+                        }
+                        mNotifying = enable;
+                    }
+                    mCallback.onDescriptorWrite(SimulatedClient.this, descriptor,
+                            BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enabled) {
+            return !mClosed;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            if (!request("mtu " + mtu)) return false;
+            respond(RESPONSE_DELAY_MS, new Runnable() {
+                @Override
+                public void run() {
+                    // The HM-10 stays at the default.
+                    mCallback.onMtuChanged(SimulatedClient.this, GattConnection.DEFAULT_MTU,
+                            BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return !mClosed && mState == BluetoothProfile.STATE_CONNECTED;
+        }
+
+        @Override
+        public boolean refresh() {
+            mServices.clear();
+            return !mClosed;
+        }
+
+        private void scheduleDisconnect(final int generation) {
+            final long delay = mLink.mPeripheral.nextDisconnectDelayMs();
+            if (delay < 0) return;
+            schedule(delay, new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration != generation) return;
+                    mDisconnects++;
+                    drop(GATT_CONN_TIMEOUT);
+                }
+            });
+        }
+
+        private void scheduleReading(final int generation) {
+            final FakeHm10Peripheral peripheral = mLink.mPeripheral;
+            schedule(peripheral.getNotificationIntervalMs(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mGeneration != generation || !mNotifying) return;
+                    for (byte[] chunk : peripheral.nextReading(now())) {
+                        mNotificationsSent++;
+                        if (peripheral.nextNotificationDropped()) {
+                            mNotificationsDropped++;
+                            continue;
+                        }
+                        final long delivery = Math.max(now() + peripheral.nextLatencyMs(),
+                                mLink.mLastDelivery);
+                        mLink.mLastDelivery = delivery;
+                        scheduleNotification(generation, delivery - now(), chunk);
+                    }
+                    scheduleReading(generation);
+                }
+            });
+        }
+
+        private void scheduleNotification(final int generation, long delayMs,
+                                          final byte[] value) {
+            schedule(delayMs, new Runnable() {
+                @Override
+                public void run() {
+                    // Notifications still in the air when the link drops are lost.
+                    if (mGeneration != generation) return;
+                    mNotificationsDelivered++;
+                    mHm10.setValue(value);
+                    mCallback.onCharacteristicChanged(SimulatedClient.this, mHm10);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RollupStoreTest {
+    private static final String FIRST = "00:11:22:33:44:55";
+    private static final String SECOND = "66:77:88:99:AA:BB";
+    private static final long MINUTE = Rollup.getWindowMs(Rollup.RESOLUTION_MINUTE);
+    private static final long DAY = Rollup.getWindowMs(Rollup.RESOLUTION_DAY);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SampleStore mSampleStore;
+    private File mDirectory;
+    private RollupStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mSampleStore = new SampleStore(mFolder.newFolder("samples"));
+        mSampleStore.open();
+        mDirectory = mFolder.newFolder("rollups");
+        mStore = new RollupStore(mDirectory, mSampleStore);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        mSampleStore.close();
+    }
+
+    private static Rollup minute(String address, long start, int heartRate) {
+        final RunningStats stats = new RunningStats();
+        stats.add(heartRate);
+        return new Rollup(address, Rollup.RESOLUTION_MINUTE, start, stats, new RunningStats());
+    }
+
+    @Test
+    public void queriesOnlyTheDeviceAskedFor() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            mStore.append(minute(FIRST, i * MINUTE, 60));
+            mStore.append(minute(SECOND, i * MINUTE, 90));
+        }
+
+        final List<Rollup> rollups =
+                mStore.query(FIRST, Rollup.RESOLUTION_MINUTE, 2 * MINUTE, 5 * MINUTE);
+
+        assertEquals(3, rollups.size());
+        assertEquals(2 * MINUTE, rollups.get(0).getWindowStart());
+        assertEquals(60, rollups.get(2).getHeartRate().getMax());
+        assertEquals(0, mStore.query(FIRST, Rollup.RESOLUTION_HOUR, 0, DAY).size());
+    }
+
+    @Test
+    public void mergesPartsOfAWindow() throws IOException {
+        mStore.append(minute(FIRST, 0, 60));
+        mStore.append(minute(FIRST, 0, 80));
+
+        final List<Rollup> rollups = mStore.query(FIRST, Rollup.RESOLUTION_MINUTE, 0, MINUTE);
+
+        assertEquals(1, rollups.size());
+        assertEquals(2, rollups.get(0).getHeartRate().getCount());
+        assertEquals(70.0, rollups.get(0).getHeartRate().getMean(), 1e-9);
+    }
+
+    @Test
+    public void dropsExpiredMinutes() throws IOException {
+        final long end = RollupStore.MINUTE_RETENTION_MS + 2 * DAY;
+        for (long start = 0; start <= end; start += 10 * MINUTE) {
+            mStore.append(minute(FIRST, start, 60));
+        }
+
+        final List<Rollup> rollups = mStore.query(FIRST, Rollup.RESOLUTION_MINUTE, 0, end + 1);
+
+        // The last trim ran a day ago at most, so nothing older than retention plus a day.
+        assertEquals(end, rollups.get(rollups.size() - 1).getWindowStart());
+        assertFalse(rollups.get(0).getWindowStart() < end - RollupStore.MINUTE_RETENTION_MS - DAY);
+        assertFalse(rollups.get(0).getWindowStart() == 0);
+    }
+
+    @Test
+    public void splitsLegacyFiles() throws IOException {
+        final int first = mSampleStore.registerDevice(FIRST);
+        final int second = mSampleStore.registerDevice(SECOND);
+        final ByteBuffer records = ByteBuffer.allocate(RollupStore.RECORD_SIZE * 2 + 5)
+                .order(ByteOrder.nativeOrder());
+        putLegacy(records, first, 0, 60);
+        putLegacy(records, second, MINUTE, 90);
+        // A record cut short by a crash.
+        records.put(new byte[5]);
+        records.flip();
+        final File legacy = new File(mDirectory, "minute.rollup");
+        final FileChannel channel = new RandomAccessFile(legacy, "rw").getChannel();
+        channel.write(records);
+        channel.close();
+
+        final List<Rollup> rollups = mStore.query(SECOND, Rollup.RESOLUTION_MINUTE, 0, DAY);
+
+        assertEquals(1, rollups.size());
+        assertEquals(MINUTE, rollups.get(0).getWindowStart());
+        assertEquals(90, rollups.get(0).getHeartRate().getMin());
+        assertEquals(1, mStore.query(FIRST, Rollup.RESOLUTION_MINUTE, 0, DAY).size());
+        assertFalse(legacy.exists());
+    }
+
+    private static void putLegacy(ByteBuffer buffer, int device, long start, int heartRate) {
+        buffer.putInt(device);
+        buffer.putLong(start);
+        buffer.putInt(1).putInt(heartRate).putInt(heartRate).putDouble(heartRate).putDouble(0);
+        buffer.putInt(0).putInt(0).putInt(0).putDouble(0).putDouble(0);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SampleArchiveTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    // A header and four records.
+    private static final int SEGMENT_SIZE = 5 * SampleStore.RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SampleStore mStore;
+    private SampleArchive mArchive;
+
+    @Before
+    public void setUp() throws IOException {
+        mStore = new SampleStore(mFolder.newFolder("samples"), SEGMENT_SIZE);
+        mStore.setMaxSegments(2);
+        mArchive = new SampleArchive(mFolder.newFolder("archive"));
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    private void append(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            mStore.append(ADDRESS, 1000L * mStore.getAppendedCount(), -1, 70, 3650);
+        }
+    }
+
+    @Test
+    public void keepsSegmentsTheArchiveDoesNotHave() throws IOException {
+        mStore.setDeletableThrough(-1);
+        append(20);
+        assertEquals(5, mStore.getSegments().length);
+
+        mArchive.catchUp(mStore);
+        mStore.setDeletableThrough(mArchive.getCompactedIndex());
+
+        assertEquals(3, mArchive.getCompactedIndex());
+        assertEquals(2, mStore.getSegments().length);
+        assertEquals(4, mArchive.getBlockCount(0));
+    }
+
+    @Test
+    public void compactsInOrder() throws IOException {
+        mStore.setDeletableThrough(-1);
+        append(13);
+        final File[] segments = mStore.getSegments();
+        mArchive.compact(segments[0], 0);
+
+        try {
+            mArchive.compact(segments[2], 2);
+            fail("Skipped segment 1");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, mArchive.getCompactedIndex());
+
+        mArchive.catchUp(mStore);
+        assertEquals(2, mArchive.getCompactedIndex());
+        assertEquals(3, mArchive.getBlockCount(0));
+    }
+}
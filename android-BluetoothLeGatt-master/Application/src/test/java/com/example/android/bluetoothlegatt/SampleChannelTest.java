@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SampleChannelTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+
+    private final SampleChannel mChannel = new SampleChannel(4);
+    private final List<Long> mReceived = new ArrayList<Long>();
+
+    private void publish(long sequence) {
+        final SensorSample sample = mChannel.claim();
+        sample.set(ADDRESS, HM_10, sequence, new byte[] {(byte) sequence}, 0, 1);
+        sample.setReading(70, 3650, sequence);
+        mChannel.publish();
+    }
+
+    @Test
+    public void deliversInlineAsPublished() {
+        mChannel.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mReceived.add(sample.getSequence());
+            }
+        }, null, null);
+
+        for (long i = 0; i < 10; i++) {
+            publish(i);
+        }
+
+        assertEquals(10, mReceived.size());
+        assertEquals(Long.valueOf(9), mReceived.get(9));
+        assertEquals(0, mChannel.getDroppedCount());
+    }
+
+    @Test
+    public void filtersByAddress() {
+        mChannel.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mReceived.add(sample.getSequence());
+            }
+        }, "66:77:88:99:AA:BB", null);
+
+        publish(0);
+
+        assertEquals(0, mReceived.size());
+    }
+
+    @Test
+    public void skipsSamplesTheProducerMayBeRefilling() {
+        ShadowLooper.pauseMainLooper();
+        mChannel.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mReceived.add(sample.getSequence());
+            }
+        }, null, new Handler(Looper.getMainLooper()));
+
+        for (long i = 0; i < 10; i++) {
+            publish(i);
+        }
+        ShadowLooper.idleMainLooper();
+
+        // Of a ring of four, only the three the next claim() cannot reach are safe to read.
+        assertEquals(3, mReceived.size());
+        assertEquals(Long.valueOf(7), mReceived.get(0));
+        assertEquals(Long.valueOf(9), mReceived.get(2));
+        assertEquals(7, mChannel.getDroppedCount());
+    }
+
+    @Test
+    public void dropsSlotsOverwrittenDuringTheDrain() {
+        ShadowLooper.pauseMainLooper();
+        mChannel.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mReceived.add(sample.getSequence());
+                if (sample.getSequence() == 0) {
+                    // The producer laps the subscriber while it handles the first sample.
+                    for (long i = 3; i < 7; i++) {
+                        publish(i);
+                    }
+                }
+                // What was delivered must stay intact while the listener runs.
+                assertEquals(mReceived.get(mReceived.size() - 1).longValue(),
+                        sample.getPayload()[0]);
+            }
+        }, null, new Handler(Looper.getMainLooper()));
+
+        for (long i = 0; i < 3; i++) {
+            publish(i);
+        }
+        ShadowLooper.idleMainLooper();
+
+        // 1 and 2 were overwritten by 5 and 6, and 3 is in the slot the next claim() reuses.
+        assertEquals(3, mChannel.getDroppedCount());
+        assertEquals(4, mReceived.size());
+        assertEquals(Long.valueOf(0), mReceived.get(0));
+        assertEquals(Long.valueOf(4), mReceived.get(1));
+        assertEquals(Long.valueOf(6), mReceived.get(3));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SampleCursorTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER = "66:77:88:99:AA:BB";
+    // A header and four records.
+    private static final int SEGMENT_SIZE = 5 * SampleStore.RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SampleStore mStore;
+    private SampleArchive mArchive;
+
+    @Before
+    public void setUp() throws IOException {
+        mStore = new SampleStore(mFolder.newFolder("samples"), SEGMENT_SIZE);
+        mStore.setMaxSegments(2);
+        mStore.setDeletableThrough(-1);
+        mArchive = new SampleArchive(mFolder.newFolder("archive"));
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    // Stores a reading of ADDRESS every second from 0 through count - 1 seconds, each followed
+    // by one of OTHER, and compacts all but the last segments as the service does.
+    private void store(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            mStore.append(ADDRESS, 1000L * i, i, 60 + i, 3600 + i);
+            mStore.append(OTHER, 1000L * i + 500, i, 100, 3700);
+        }
+        mArchive.catchUp(mStore);
+        mStore.setDeletableThrough(mArchive.getCompactedIndex());
+    }
+
+    private List<Long> timestamps(SampleCursor cursor) throws IOException {
+        final List<Long> timestamps = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            timestamps.add(cursor.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    private static List<Long> seconds(int from, int to) {
+        final List<Long> timestamps = new ArrayList<Long>();
+        for (int i = from; i < to; i++) {
+            timestamps.add(1000L * i);
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void readsTheArchiveThenTheRawSegments() throws IOException {
+        store(10);
+        // Twenty records in segments of four: 0 to 3 compacted, 4 still raw.
+        assertEquals(3, mArchive.getCompactedIndex());
+        assertEquals(2, mStore.getSegments().length);
+
+        final SampleCursor cursor = new SampleCursor(mStore, mArchive, ADDRESS, 0, 100000, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(1000L * i, cursor.getTimestamp());
+            assertEquals(60 + i, cursor.getHeartRate());
+            assertEquals(3600 + i, cursor.getTemperature());
+            assertEquals(1, cursor.getCount());
+        }
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void includesTheStartOfTheRangeButNotTheEnd() throws IOException {
+        store(10);
+
+        assertEquals(seconds(3, 8),
+                timestamps(new SampleCursor(mStore, mArchive, ADDRESS, 3000, 8000, 0)));
+        // Inside one archive block, and inside the raw segment.
+        assertEquals(seconds(1, 2),
+                timestamps(new SampleCursor(mStore, mArchive, ADDRESS, 1000, 1001, 0)));
+        assertEquals(seconds(9, 10),
+                timestamps(new SampleCursor(mStore, mArchive, ADDRESS, 8001, 20000, 0)));
+        assertEquals(seconds(0, 0),
+                timestamps(new SampleCursor(mStore, mArchive, ADDRESS, 5000, 5000, 0)));
+    }
+
+    @Test
+    public void returnsNothingForAnUnknownDevice() throws IOException {
+        store(4);
+
+        assertFalse(new SampleCursor(mStore, mArchive, "01:02:03:04:05:06", 0, 100000, 0)
+                .moveToNext());
+    }
+
+    @Test
+    public void averagesBucketsSkippingMissingValues() throws IOException {
+        // Heart rate is missing from every other reading, temperature from all of the second
+        // bucket.
+        for (int i = 0; i < 8; i++) {
+            mStore.append(ADDRESS, 1000L * i, i,
+                    i % 2 == 0 ? 60 + i : SensorSample.NO_VALUE,
+                    i < 4 ? 3600 + 10 * i : SensorSample.NO_VALUE);
+        }
+        mArchive.catchUp(mStore);
+
+        final SampleCursor cursor = new SampleCursor(mStore, mArchive, ADDRESS, 0, 100000, 4000);
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(0, cursor.getTimestamp());
+        assertEquals(4, cursor.getCount());
+        // (60 + 62) / 2 and (3600 + 3610 + 3620 + 3630) / 4.
+        assertEquals(61, cursor.getHeartRate());
+        assertEquals(3615, cursor.getTemperature());
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(4000, cursor.getTimestamp());
+        assertEquals(4, cursor.getCount());
+        assertEquals(65, cursor.getHeartRate());
+        assertEquals(SensorSample.NO_VALUE, cursor.getTemperature());
+
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void startsBucketsAtMultiplesOfTheBucketSize() throws IOException {
+        store(10);
+
+        final SampleCursor cursor =
+                new SampleCursor(mStore, mArchive, ADDRESS, 2500, 100000, 3000);
+        final List<Long> buckets = new ArrayList<Long>();
+        final List<Integer> counts = new ArrayList<Integer>();
+        while (cursor.moveToNext()) {
+            buckets.add(cursor.getTimestamp());
+            counts.add(cursor.getCount());
+        }
+
+        // The archive holds readings 6 and 7, the raw segment 8, and they share a bucket.
+        assertEquals(Arrays.asList(3000L, 6000L, 9000L), buckets);
+        assertEquals(Arrays.asList(3, 3, 1), counts);
+    }
+}
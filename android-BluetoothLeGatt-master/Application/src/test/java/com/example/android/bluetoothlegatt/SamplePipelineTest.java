@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SamplePipelineTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+    private static final UUID HEART_RATE = CodecRegistry.HEART_RATE_MEASUREMENT;
+
+    private final SampleChannel mChannel = new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+    private final SamplePipeline mPipeline = new SamplePipeline(mChannel);
+    private final List<Long> mSequences = new ArrayList<Long>();
+    private final List<Integer> mHeartRates = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() {
+        mChannel.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mSequences.add(sample.getSequence());
+                mHeartRates.add(sample.getHeartRate());
+            }
+        }, null, null);
+    }
+
+    private static List<BluetoothGattService> services(UUID... characteristics) {
+        final BluetoothGattService service = new BluetoothGattService(
+                UUID.fromString(SampleGattAttributes.HM_10_SERVICE),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (UUID uuid : characteristics) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0));
+        }
+        return Collections.singletonList(service);
+    }
+
+    @Test
+    public void reassemblesHm10Readings() {
+        mPipeline.onServicesDiscovered(ADDRESS, services(HM_10));
+        mPipeline.onData(ADDRESS, HM_10, 1, "72,36.5".getBytes());
+        mPipeline.onData(ADDRESS, HM_10, 2, "0,5\r\n73,36.6,6\r\n".getBytes());
+
+        assertEquals(2, mHeartRates.size());
+        assertEquals(Integer.valueOf(72), mHeartRates.get(0));
+        assertEquals(Long.valueOf(5), mSequences.get(0));
+        assertEquals(Long.valueOf(6), mSequences.get(1));
+    }
+
+    @Test
+    public void keepsNumberingAcrossRediscovery() {
+        final byte[] measurement = {0x00, 72};
+        mPipeline.onServicesDiscovered(ADDRESS, services(HEART_RATE));
+        mPipeline.onData(ADDRESS, HEART_RATE, 1, measurement);
+        mPipeline.onData(ADDRESS, HEART_RATE, 2, measurement);
+
+        mPipeline.reset(ADDRESS);
+        mPipeline.onServicesDiscovered(ADDRESS, services(HEART_RATE));
+        mPipeline.onData(ADDRESS, HEART_RATE, 3, measurement);
+
+        assertEquals(3, mSequences.size());
+        assertEquals(Long.valueOf(2), mSequences.get(2));
+    }
+
+    @Test
+    public void keepsCodecWhenServicesAreNotKnown() {
+        mPipeline.onData(ADDRESS, HM_10, 1, "72,36.5\r\n".getBytes());
+        final FrameReassembler reassembler = mPipeline.getReassembler(ADDRESS);
+        assertNotNull(reassembler);
+
+        mPipeline.onServicesDiscovered(ADDRESS, null);
+        mPipeline.onData(ADDRESS, HM_10, 2, "73,36.5\r\n".getBytes());
+
+        assertSame(reassembler, mPipeline.getReassembler(ADDRESS));
+        assertEquals(Long.valueOf(1), mSequences.get(1));
+    }
+
+    @Test
+    public void dropsPartialFramesOnReset() {
+        mPipeline.onData(ADDRESS, HM_10, 1, "72,3".getBytes());
+        mPipeline.reset(ADDRESS);
+        mPipeline.onData(ADDRESS, HM_10, 2, "75,36.5\r\n".getBytes());
+
+        assertEquals(1, mHeartRates.size());
+        assertEquals(Integer.valueOf(75), mHeartRates.get(0));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SampleStoreTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    // A header and eight records.
+    private static final int SEGMENT_SIZE = 9 * SampleStore.RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private SampleStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("samples");
+        mStore = new SampleStore(mDirectory, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    private void append(long... timestamps) throws IOException {
+        for (long timestamp : timestamps) {
+            mStore.append(ADDRESS, timestamp, timestamp / 1000, 70, 3650);
+        }
+    }
+
+    // Returns the timestamps stored in the first segment.
+    private long[] read() throws IOException {
+        final SampleBlockCodec.Columns columns = new SampleBlockCodec.Columns();
+        mStore.read(0, 0, mStore.getDeviceId(ADDRESS), Long.MIN_VALUE, Long.MAX_VALUE,
+                columns, 100);
+        final long[] timestamps = new long[columns.count];
+        System.arraycopy(columns.timestamps, 0, timestamps, 0, columns.count);
+        return timestamps;
+    }
+
+    private void reopen() throws IOException {
+        mStore.close();
+        mStore = new SampleStore(mDirectory, SEGMENT_SIZE);
+        mStore.open();
+    }
+
+    // Overwrites bytes of |record|, counted from 0 after the segment header, as a write cut
+    // short by a power loss would leave them.
+    private void corrupt(int record, int offset, byte... bytes) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(
+                new File(mDirectory, String.format(Locale.US, "%012d.seg", 0)), "rw");
+        try {
+            file.seek((record + 1) * SampleStore.RECORD_SIZE + offset);
+            file.write(bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void keepsReadingsAcrossReopen() throws IOException {
+        append(1000, 2000, 3000);
+
+        reopen();
+        append(4000);
+
+        assertArrayEquals(new long[] {1000, 2000, 3000, 4000}, read());
+    }
+
+    @Test
+    public void dropsATornTailRecordAndAppendsAfterIt() throws IOException {
+        append(1000, 2000, 3000);
+        mStore.flush();
+        // The last record got its timestamp but not the rest.
+        corrupt(2, SampleStore.OFFSET_HEART_RATE, new byte[8]);
+
+        reopen();
+        assertArrayEquals(new long[] {1000, 2000}, read());
+        append(5000);
+
+        assertArrayEquals(new long[] {1000, 2000, 5000}, read());
+        reopen();
+        assertArrayEquals(new long[] {1000, 2000, 5000}, read());
+    }
+
+    @Test
+    public void clearsRecordsAfterTheFirstBadOne() throws IOException {
+        append(1000, 2000, 3000, 4000, 5000);
+        mStore.flush();
+        // A bad checksum in the middle; what follows it predates the crash.
+        corrupt(2, SampleStore.OFFSET_CHECKSUM, (byte) 0x55);
+
+        reopen();
+        assertArrayEquals(new long[] {1000, 2000}, read());
+        append(6000);
+        reopen();
+
+        // Records 4000 and 5000 were valid on disk but must not come back behind the new one.
+        assertArrayEquals(new long[] {1000, 2000, 6000}, read());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Wires a {@link Hm10Simulator} to the code {@link BluetoothLeService} runs: a
+ * {@link GattConnectionPool} opens its links through the simulator, and notifications go
+ * through a {@link SamplePipeline} into a {@link SampleChannel}.  Connects, retries after
+ * status 133, connect timeouts and reconnects are those of {@link GattConnection} and its
+ * {@link ReconnectPolicy}, on the virtual clock.  What the worker thread would do is done
+ * inline, so subscribers of {@link #getChannel()} must subscribe without a handler.
+ *
+ * <p>A load test adds sensors, connects them and runs the clock:
+ * <pre>
+ * SimulatorHarness harness = new SimulatorHarness(42, cacheDirectory);
+ * for (int i = 0; i &lt; 100; i++) {
+ *     harness.addSensor(String.format("00:00:00:00:00:%02X", i)).setDropRate(0.01);
+ * }
+ * harness.getChannel().subscribe(listener, null, null);
+ * harness.connectAll();
+ * harness.getSimulator().runFor(60 * 60 * 1000);
+ * </pre>
+ */
+public class SimulatorHarness implements GattConnection.Listener {
+    private final long mSeed;
+    private final Hm10Simulator mSimulator = new Hm10Simulator();
+    private final GattConnectionPool mPool;
+    private final SampleChannel mChannel = new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+    private final SamplePipeline mPipeline = new SamplePipeline(mChannel);
+    private final ReconnectPolicy mPolicy;
+    private final List<String> mAddresses = new ArrayList<String>();
+    // Devices notifications were enabled on; the connection restores them after a reconnect.
+    private final HashSet<String> mSubscribed = new HashSet<String>();
+
+    /**
+     * @param seed Seeds every sensor added and the reconnect jitter, so runs can be repeated.
+     * @param cacheDirectory Where the pool keeps its {@link GattServiceCache}.
+     */
+    public SimulatorHarness(long seed, File cacheDirectory) {
+        mSeed = seed;
+        mPolicy = new ReconnectPolicy(ReconnectPolicy.DEFAULT_INITIAL_DELAY_MS,
+                ReconnectPolicy.DEFAULT_MAX_DELAY_MS, ReconnectPolicy.DEFAULT_DIRECT_ATTEMPTS,
+                ReconnectPolicy.DEFAULT_CONNECT_TIMEOUT_MS, new Random(seed));
+        mPool = new GattConnectionPool(mSimulator, new GattServiceCache(cacheDirectory),
+                mSimulator.getHandler(), this);
+        // Every sensor of a load test gets a link.
+        mPool.setMaxConnections(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds a sensor, seeded from the harness, and returns it to be configured.
+     */
+    public FakeHm10Peripheral addSensor(String address) {
+        final FakeHm10Peripheral peripheral = new FakeHm10Peripheral(address);
+        peripheral.setSeed(mSeed);
+        mSimulator.addPeripheral(peripheral);
+        mAddresses.add(address);
+        return peripheral;
+    }
+
+    public Hm10Simulator getSimulator() {
+        return mSimulator;
+    }
+
+    public GattConnectionPool getPool() {
+        return mPool;
+    }
+
+    public SamplePipeline getPipeline() {
+        return mPipeline;
+    }
+
+    public SampleChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Connects every sensor added, with the harness's seeded reconnect policy.
+     */
+    public void connectAll() {
+        for (String address : mAddresses) {
+            connect(address);
+        }
+    }
+
+    public GattConnection connect(String address) {
+        final GattConnection connection = mPool.connect(address);
+        if (connection != null) {
+            connection.setReconnectPolicy(mPolicy);
+        }
+        return connection;
+    }
+
+    @Override
+    public void onConnectionStateChanged(GattConnection connection, int state) {
+        if (state == GattConnection.STATE_DISCONNECTED) {
+            mPipeline.reset(connection.getAddress());
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(GattConnection connection) {
+        final List<BluetoothGattService> services = connection.getServices();
+        mPipeline.onServicesDiscovered(connection.getAddress(), services);
+        for (BluetoothGattService service : services) {
+            final BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristic(Hm10Simulator.HM_10);
+            if (characteristic != null && mSubscribed.add(connection.getAddress())) {
+                connection.setCharacteristicNotification(characteristic, true);
+            }
+        }
+    }
+
+    @Override
+    public void onDataAvailable(GattConnection connection,
+                                BluetoothGattCharacteristic characteristic) {
+        mPipeline.onData(connection.getAddress(), characteristic.getUuid(),
+                mSimulator.now(), characteristic.getValue());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TemperatureMeasurementCodecTest {
+    private static final int CELSIUS = 0x00;
+    private static final int FAHRENHEIT = 0x01;
+
+    private final TemperatureMeasurementCodec mCodec = new TemperatureMeasurementCodec();
+    private final SensorSample mSample = new SensorSample();
+
+    private boolean decode(byte[] value) {
+        mSample.set(null, CodecRegistry.TEMPERATURE_MEASUREMENT, 0, value, 0, value.length);
+        return mCodec.decode(value, 0, value.length, mSample);
+    }
+
+    // Encodes a flags byte and an IEEE-11073 32-bit FLOAT.
+    private static byte[] measurement(int flags, int mantissa, int exponent) {
+        return new byte[] {
+                (byte) flags, (byte) mantissa, (byte) (mantissa >> 8), (byte) (mantissa >> 16),
+                (byte) exponent
+        };
+    }
+
+    private static int hundredths(int mantissa, int exponent) {
+        return TemperatureMeasurementCodec.toHundredths(mantissa, exponent);
+    }
+
+    @Test
+    public void decodesCelsius() {
+        assertTrue(decode(measurement(CELSIUS, 365, -1)));
+        assertEquals(3650, mSample.getTemperature());
+        assertEquals(SensorSample.NO_VALUE, mSample.getHeartRate());
+        assertEquals(0, mSample.getSequence());
+
+        assertTrue(decode(measurement(CELSIUS, -1250, -2)));
+        assertEquals(-1250, mSample.getTemperature());
+        assertEquals(1, mSample.getSequence());
+    }
+
+    @Test
+    public void convertsFahrenheit() {
+        assertTrue(decode(measurement(FAHRENHEIT, 986, -1)));
+        assertEquals(3700, mSample.getTemperature());
+
+        assertTrue(decode(measurement(FAHRENHEIT, -40, 0)));
+        assertEquals(-4000, mSample.getTemperature());
+
+        assertTrue(decode(measurement(FAHRENHEIT, 1000, -1)));
+        assertEquals(3778, mSample.getTemperature());
+    }
+
+    @Test
+    public void ignoresTrailingTimeStamp() {
+        final byte[] value = new byte[12];
+        System.arraycopy(measurement(0x02, 3705, -2), 0, value, 0, 5);
+        assertTrue(decode(value));
+        assertEquals(3705, mSample.getTemperature());
+    }
+
+    @Test
+    public void rejectsTruncatedValues() {
+        final byte[] value = measurement(CELSIUS, 365, -1);
+        assertFalse(mCodec.decode(value, 0, 4, mSample));
+        assertFalse(decode(new byte[] {CELSIUS}));
+        assertEquals(SensorSample.NO_VALUE, mSample.getTemperature());
+        assertEquals(-1, mSample.getSequence());
+    }
+
+    @Test
+    public void rejectsSpecialValues() {
+        assertFalse(decode(measurement(CELSIUS, 0x007fffff, 0)));
+        assertFalse(decode(measurement(FAHRENHEIT, 0x007fffff, 0)));
+        assertEquals(SensorSample.NO_VALUE, mSample.getTemperature());
+    }
+
+    @Test
+    public void mapsSpecialMantissasToNoValue() {
+        assertEquals(SensorSample.NO_VALUE, hundredths(0x007fffff, 0));
+        assertEquals(SensorSample.NO_VALUE, hundredths(-0x00800000, 0));
+        assertEquals(SensorSample.NO_VALUE, hundredths(0x007ffffe, 0));
+        assertEquals(SensorSample.NO_VALUE, hundredths(-0x007ffffe, 0));
+        assertEquals(SensorSample.NO_VALUE, hundredths(-0x007fffff, 0));
+    }
+
+    @Test
+    public void scalesAndRoundsToHundredths() {
+        assertEquals(3650, hundredths(365, -1));
+        assertEquals(3650, hundredths(36500, -3));
+        assertEquals(366, hundredths(3655, -3));
+        assertEquals(-366, hundredths(-3655, -3));
+        assertEquals(4200, hundredths(42, 0));
+        assertEquals(0, hundredths(5, -20));
+    }
+
+    @Test
+    public void rejectsValuesOutOfRange() {
+        assertEquals(SensorSample.NO_VALUE, hundredths(1, 8));
+        assertEquals(SensorSample.NO_VALUE, hundredths(0x007ffffd, 7));
+        assertEquals(SensorSample.NO_VALUE, hundredths(-0x007ffffd, 7));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Decoding of whole values by the {@link CharacteristicCodec}s, against turning the value into
+ * a string and splitting it, as readings were parsed before the codecs.
+ */
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+    private static final int VALUES = 1024;
+
+    private byte[][] mReadings;
+    private byte[][] mMeasurements;
+    private int mNext;
+
+    private SampleChannel mChannel;
+    private CharacteristicCodec mHm10Codec;
+    private CharacteristicCodec mHeartRateCodec;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        mReadings = new byte[VALUES][];
+        mMeasurements = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            final int temperature = 3600 + random.nextInt(100);
+            mReadings[i] = ((60 + random.nextInt(40)) + "," + temperature / 100 + "."
+                    + (temperature % 100 < 10 ? "0" : "") + temperature % 100 + "," + i
+                    + "\r\n").getBytes();
+            // Flags: UINT8 rate, energy expended, two RR intervals.
+            mMeasurements[i] = new byte[] {0x18, (byte) (60 + random.nextInt(40)),
+                    (byte) i, 0, (byte) 0x00, 0x04, (byte) 0x10, 0x04};
+        }
+        mChannel = new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+        mHm10Codec = new Hm10TextCodec(SamplePipeline.HM_10_FORMAT);
+        mHeartRateCodec = new HeartRateMeasurementCodec();
+    }
+
+    @Benchmark
+    public void hm10Codec() {
+        final byte[] value = mReadings[mNext++ & (VALUES - 1)];
+        mHm10Codec.decode(ADDRESS, HM_10, mNext, value, 0, value.length, mChannel);
+    }
+
+    @Benchmark
+    public int hm10String() {
+        final byte[] value = mReadings[mNext++ & (VALUES - 1)];
+        final String[] fields = new String(value).trim().split(",");
+        final int heartRate = Integer.parseInt(fields[0]);
+        final int temperature = Math.round(Float.parseFloat(fields[1]) * 100);
+        final long sequence = Long.parseLong(fields[2]);
+        final SensorSample sample = mChannel.claim();
+        sample.set(ADDRESS, HM_10, mNext, value, 0, value.length);
+        sample.setReading(heartRate, temperature, sequence);
+        mChannel.publish();
+        return heartRate;
+    }
+
+    @Benchmark
+    public void heartRateCodec() {
+        final byte[] value = mMeasurements[mNext++ & (VALUES - 1)];
+        mHeartRateCodec.decode(ADDRESS, CodecRegistry.HEART_RATE_MEASUREMENT, mNext, value, 0,
+                value.length, mChannel);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The steps every notification from a sensor goes through in {@link BluetoothLeService}, each
+ * on its own and then all together:
+ * <ol>
+ *   <li>{@link #dispatch}: the Binder thread copies the value into the ingress channel, which
+ *       hands it to the worker.</li>
+ *   <li>{@link #decode}: the worker frames and decodes it and publishes the reading.</li>
+ *   <li>{@link #append}: the store appends the reading.</li>
+ *   <li>{@link #formatText}: the value is turned into the text of the data broadcast.</li>
+ *   <li>{@link #lookupUuid}: the characteristic is named, as the control activity does.</li>
+ * </ol>
+ * {@link #endToEnd} runs the first four as the service chains them.  {@link #formatHex} is the
+ * baseline for the broadcast, formatted as the sample first did it, and {@link #lookupString}
+ * names the characteristic from the text form of its UUID.
+ *
+ * <p>The packets are HM-10 readings split as the module sends them, so some benchmarks
+ * complete a reading per operation and some only buffer part of one.
+ */
+@State(Scope.Thread)
+public class DataPathBenchmark {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+    // A power of two, and enough packets that the branch predictor cannot learn them.
+    private static final int PACKETS = 1024;
+
+    private byte[][] mPackets;
+    private int mNext;
+    private long mTimestamp;
+
+    private SamplePipeline mPipeline;
+    private SampleChannel mIngress;
+    private SampleChannel mEndToEndIngress;
+    private SamplePipeline mStorePipeline;
+    private SampleStore mStore;
+    private SensorSample mReading;
+    private File mDirectory;
+    private long mConsumed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mPackets = packets(new Random(42));
+        mPipeline = new SamplePipeline(new SampleChannel(SampleChannel.DEFAULT_CAPACITY));
+        mIngress = new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+        mIngress.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mConsumed += sample.getPayloadLength();
+            }
+        }, null, null);
+
+        mDirectory = File.createTempFile("samples", "");
+        if (!mDirectory.delete()) throw new IOException("Unable to delete " + mDirectory);
+        mStore = new SampleStore(mDirectory);
+        // Bounds the disk the benchmark takes; sealing and deleting segments stays measured.
+        mStore.setMaxSegments(4);
+        mStore.open();
+
+        // Wired as in the service, with every listener running inline on the producer.
+        final SampleChannel decoded = new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+        decoded.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                try {
+                    mStore.append(sample);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, null, null);
+        mStorePipeline = new SamplePipeline(decoded);
+        mEndToEndIngress = new SampleChannel(SampleChannel.DEFAULT_CAPACITY);
+        mEndToEndIngress.subscribe(new SampleChannel.Listener() {
+            @Override
+            public void onSample(SensorSample sample) {
+                mStorePipeline.onData(sample.getAddress(), sample.getCharacteristicUuid(),
+                        sample.getTimestamp(), sample.getPayload(), 0,
+                        sample.getPayloadLength());
+            }
+        }, null, null);
+
+        mReading = new SensorSample();
+        mReading.set(ADDRESS, HM_10, 0, mPackets[0], 0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStore.close();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    // The sensor protocol: "<bpm>,<degrees C>,<sequence>\r\n", in notifications of at most
+    // 20 bytes.
+    private static byte[][] packets(Random random) {
+        final StringBuilder stream = new StringBuilder();
+        for (int sequence = 0; stream.length() < PACKETS * 20; sequence++) {
+            final int temperature = 3600 + random.nextInt(100);
+            stream.append(60 + random.nextInt(40)).append(',').append(temperature / 100)
+                    .append('.').append(temperature % 100 < 10 ? "0" : "")
+                    .append(temperature % 100).append(',').append(sequence).append("\r\n");
+        }
+        final byte[] bytes = stream.toString().getBytes();
+        final byte[][] packets = new byte[PACKETS][];
+        for (int i = 0; i < PACKETS; i++) {
+            packets[i] = new byte[20];
+            System.arraycopy(bytes, i * 20, packets[i], 0, 20);
+        }
+        return packets;
+    }
+
+    private byte[] next() {
+        return mPackets[mNext++ & (PACKETS - 1)];
+    }
+
+    @Benchmark
+    public long dispatch() {
+        final byte[] value = next();
+        final SensorSample sample = mIngress.claim();
+        sample.set(ADDRESS, HM_10, ++mTimestamp, value, 0, value.length);
+        mIngress.publish();
+        return mConsumed;
+    }
+
+    @Benchmark
+    public void decode() {
+        mPipeline.onData(ADDRESS, HM_10, ++mTimestamp, next());
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        mReading.setReading(60 + (mNext & 63), 3650, mNext++);
+        mStore.append(mReading);
+        return mStore.getAppendedCount();
+    }
+
+    @Benchmark
+    public String formatText() {
+        // As broadcastUpdate puts the value in EXTRA_DATA.
+        return new String(next());
+    }
+
+    @Benchmark
+    public String formatHex() {
+        // As broadcastUpdate formatted values before it sent them as plain text.
+        final byte[] data = next();
+        final StringBuilder stringBuilder = new StringBuilder(data.length);
+        for (byte byteChar : data) {
+            stringBuilder.append(String.format("%02X ", byteChar));
+        }
+        return new String(data) + "\n" + stringBuilder.toString();
+    }
+
+    @Benchmark
+    public String lookupUuid() {
+        return SampleGattAttributes.lookup(HM_10, null);
+    }
+
+    @Benchmark
+    public String lookupString() {
+        return SampleGattAttributes.lookup(SampleGattAttributes.HM_10, null);
+    }
+
+    @Benchmark
+    public String endToEnd() {
+        final byte[] value = next();
+        final SensorSample sample = mEndToEndIngress.claim();
+        sample.set(ADDRESS, HM_10, ++mTimestamp, value, 0, value.length);
+        mEndToEndIngress.publish();
+        return new String(value);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Operations per second through a {@link GattOperationQueue} that keeps eight queued, as a busy
+ * app would, with each acknowledged as soon as it is issued.  A link manages some 1000 a second
+ * at best, so the queue must stay far above that.
+ *
+ * <p>MTU requests stand in for reads and writes, since they need no framework objects to build
+ * on a desktop JVM; the queue handles every acknowledged operation alike.  The queue runs without
+ * a handler, so the cost of posting its timeouts is not included.
+ */
+@State(Scope.Thread)
+public class GattOperationQueueBenchmark {
+    private static final int DEPTH = 8;
+
+    // Accepts every request; the benchmark acknowledges them.
+    private static class AcceptingClient implements GattClient {
+        @Override
+        public boolean connect() {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return null;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enabled) {
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        @Override
+        public boolean refresh() {
+            return true;
+        }
+    }
+
+    private GattOperationQueue mQueue;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mQueue = new GattOperationQueue(null);
+        mQueue.setGattClient(new AcceptingClient());
+        for (int i = 0; i < DEPTH; i++) {
+            mQueue.enqueue(GattOperation.requestMtu(23 + i));
+        }
+    }
+
+    @Benchmark
+    public GattOperation pipeline() {
+        final GattOperation operation = mQueue.enqueue(GattOperation.requestMtu(247));
+        mQueue.onOperationCompleted(GattOperation.MTU_EXCHANGE, BluetoothGatt.GATT_SUCCESS);
+        return operation;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readings per second {@link SampleBlockCodec} encodes and decodes, on the readings of
+ * {@code hm10-trace.txt} cut into blocks of {@link SampleArchive#BLOCK_SAMPLES} as the archive
+ * cuts them.  The trace is decoded with {@link Hm10PayloadDecoder} and timestamped as the
+ * service would, so the deltas, jitter and gaps are those of a real link.
+ *
+ * <p>Setup prints the bytes per reading of the encoded blocks, headers included, against the
+ * {@link SampleStore#RECORD_SIZE} bytes of a raw record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SampleBlockCodecBenchmark {
+    private static final String TRACE = "/hm10-trace.txt";
+    private static final int BLOCK_SAMPLES = SampleArchive.BLOCK_SAMPLES;
+    // When the trace starts, wall-clock milliseconds.
+    private static final long TRACE_START = 1476748800000L;
+
+    private final SampleBlockCodec mCodec = new SampleBlockCodec();
+    private final SampleBlockCodec.Columns mDecoded = new SampleBlockCodec.Columns();
+    // Full blocks only, so every invocation handles BLOCK_SAMPLES readings.
+    private SampleBlockCodec.Columns[] mBlocks;
+    private byte[][] mEncoded;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final SampleBlockCodec.Columns readings = readTrace();
+        final List<SampleBlockCodec.Columns> blocks = new ArrayList<SampleBlockCodec.Columns>();
+        for (int start = 0; start + BLOCK_SAMPLES <= readings.count; start += BLOCK_SAMPLES) {
+            final SampleBlockCodec.Columns block = new SampleBlockCodec.Columns();
+            block.ensureCapacity(BLOCK_SAMPLES);
+            for (int i = start; i < start + BLOCK_SAMPLES; i++) {
+                block.add(readings.timestamps[i], readings.heartRates[i],
+                        readings.temperatures[i]);
+            }
+            blocks.add(block);
+        }
+        if (blocks.isEmpty()) throw new IOException("Trace shorter than a block");
+        mBlocks = blocks.toArray(new SampleBlockCodec.Columns[blocks.size()]);
+
+        mEncoded = new byte[mBlocks.length][];
+        long bytes = 0;
+        for (int i = 0; i < mBlocks.length; i++) {
+            final int length = mCodec.encode(mBlocks[i]);
+            mEncoded[i] = Arrays.copyOf(mCodec.getBuffer(), length);
+            bytes += length;
+        }
+        final double perReading = (double) bytes / (mBlocks.length * BLOCK_SAMPLES);
+        System.out.println(String.format(Locale.US,
+                "%s: %d readings, %.2f bytes per reading, %.1fx smaller than raw records",
+                TRACE, mBlocks.length * BLOCK_SAMPLES, perReading,
+                SampleStore.RECORD_SIZE / perReading));
+    }
+
+    private static SampleBlockCodec.Columns readTrace() throws IOException {
+        final InputStream in = SampleBlockCodecBenchmark.class.getResourceAsStream(TRACE);
+        if (in == null) throw new IOException("Missing " + TRACE);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        final Hm10PayloadDecoder decoder = new Hm10PayloadDecoder();
+        final SensorSample sample = new SensorSample();
+        final SampleBlockCodec.Columns readings = new SampleBlockCodec.Columns();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.charAt(0) == '#') continue;
+                // "<milliseconds> <payload>"
+                final int space = line.indexOf(' ');
+                final byte[] payload = line.substring(space + 1).getBytes("US-ASCII");
+                if (!decoder.decode(payload, 0, payload.length, sample)) continue;
+                readings.add(TRACE_START + Long.parseLong(line.substring(0, space)),
+                        sample.getHeartRate(), sample.getTemperature());
+            }
+        } finally {
+            reader.close();
+        }
+        return readings;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SAMPLES)
+    public int encode() {
+        return mCodec.encode(mBlocks[mNext++ % mBlocks.length]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SAMPLES)
+    public SampleBlockCodec.Columns decode() throws IOException {
+        mCodec.decode(mEncoded[mNext++ % mEncoded.length], 0, mDecoded);
+        return mDecoded;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time {@link SampleExporter} takes to export {@link #READINGS} readings of {@link #DEVICES}
+ * sensors, stored as the service stores them: all but the last few segments compacted into
+ * the {@link SampleArchive}.  The export goes to a stream that only counts bytes, so the time
+ * is that of reading, decoding and formatting, not of the disk.
+ *
+ * <p>After each export the output rate in MB/s (of the compressed output when gzipped), the
+ * readings per second and the peak heap use above what was live before it are printed.  The
+ * peak comes from the memory pools of the JVM, so it reads coarser than the allocation rate
+ * of the gc profiler, but shows whether memory stays flat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SampleExporterBenchmark {
+    private static final int READINGS = 10000000;
+    private static final int DEVICES = 4;
+    private static final int RAW_SEGMENTS = 8;
+
+    // Discards what is written, counting the bytes.
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    // Named as JMH reports it.
+    @Param({"csv", "binary", "csv.gz"})
+    public String format;
+
+    private final String[] mAddresses = new String[DEVICES];
+    private File mDirectory;
+    private SampleStore mStore;
+    private SampleArchive mArchive;
+    private long mFrom;
+    private long mTo;
+
+    private CountingOutputStream mOut;
+    private long mBaselineHeap;
+    private long mStart;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("export", "");
+        if (!mDirectory.delete()) throw new IOException("Unable to delete " + mDirectory);
+        mStore = new SampleStore(new File(mDirectory, "samples"));
+        mArchive = new SampleArchive(new File(mDirectory, "archive"));
+        mStore.setMaxSegments(RAW_SEGMENTS);
+        // Compacted before retention can delete the segment, as the service ends up doing.
+        mStore.setSegmentListener(new SampleStore.SegmentListener() {
+            @Override
+            public void onSegmentSealed(File segment, long index) {
+                try {
+                    mArchive.compact(segment, index);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        for (int i = 0; i < DEVICES; i++) {
+            mAddresses[i] = String.format("00:11:22:33:44:%02X", i);
+        }
+        mFrom = 1476748800000L;
+        long timestamp = mFrom;
+        for (int i = 0; i < READINGS; i++) {
+            // Each sensor reports about once a second.
+            timestamp += 250 + (i % 7);
+            mStore.append(mAddresses[i % DEVICES], timestamp, i / DEVICES, 60 + (i * 7 % 41),
+                    3640 + (i * 13 % 37));
+        }
+        mStore.flush();
+        mTo = timestamp + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStore.close();
+        delete(mDirectory);
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        mOut = new CountingOutputStream();
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        mBaselineHeap = used;
+        mStart = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        final long elapsed = System.nanoTime() - mStart;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println(String.format(Locale.US,
+                "%s: %.1f MB in %.2f s, %.1f MB/s, %.2fM readings/s,"
+                        + " peak heap %.1f MB above %.1f MB live",
+                format, mOut.mCount / 1e6, elapsed / 1e9, mOut.mCount / 1e6 / (elapsed / 1e9),
+                READINGS / 1e6 / (elapsed / 1e9), (peak - mBaselineHeap) / 1e6,
+                mBaselineHeap / 1e6));
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        final SampleExporter exporter = new SampleExporter(mStore, mArchive);
+        final int type = format.startsWith("csv")
+                ? SampleExporter.FORMAT_CSV : SampleExporter.FORMAT_BINARY;
+        final boolean gzip = format.endsWith(".gz");
+        exporter.export(mAddresses, mFrom, mTo, 0, type, gzip, mOut, null);
+        if (exporter.getCount() != READINGS) {
+            throw new IllegalStateException("Exported " + exporter.getCount() + " readings");
+        }
+        return mOut.mCount;
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
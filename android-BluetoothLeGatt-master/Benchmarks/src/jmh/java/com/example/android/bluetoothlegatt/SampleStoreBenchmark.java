@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readings per second the {@link SampleStore} takes, as the worker thread of
+ * {@link BluetoothLeService} appends them:
+ * <ul>
+ *   <li>{@link #appendOne}: from a single sensor.</li>
+ *   <li>{@link #appendFleet}: from {@link #DEVICES} sensors taking turns, so the device id
+ *       cache in front of the address map misses every time.</li>
+ *   <li>{@link #appendForced}: from a single sensor, forcing every {@link #BATCH} readings to
+ *       disk, for the cost of an app that wants each batch durable.</li>
+ * </ul>
+ * Segments are sealed and deleted along the way as in the service, with a small cap on their
+ * number to bound the disk the benchmark takes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SampleStoreBenchmark {
+    private static final int DEVICES = 64;
+    private static final int BATCH = 64;
+
+    private final String[] mAddresses = new String[DEVICES];
+    private File mDirectory;
+    private SampleStore mStore;
+    private long mTimestamp;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (int i = 0; i < DEVICES; i++) {
+            mAddresses[i] = String.format("00:11:22:33:44:%02X", i);
+        }
+        mDirectory = File.createTempFile("samples", "");
+        if (!mDirectory.delete()) throw new IOException("Unable to delete " + mDirectory);
+        mStore = new SampleStore(mDirectory);
+        mStore.setMaxSegments(4);
+        mStore.open();
+        for (String address : mAddresses) {
+            mStore.registerDevice(address);
+        }
+        mTimestamp = 1400000000000L;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStore.close();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public void appendOne() throws IOException {
+        final int i = mNext++;
+        mStore.append(mAddresses[0], mTimestamp += 10, i, 60 + (i & 63), 3600 + (i & 127));
+    }
+
+    @Benchmark
+    public void appendFleet() throws IOException {
+        final int i = mNext++;
+        mStore.append(mAddresses[i & (DEVICES - 1)], mTimestamp += 10, i, 60 + (i & 63),
+                3600 + (i & 127));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void appendForced() throws IOException {
+        for (int j = 0; j < BATCH; j++) {
+            final int i = mNext++;
+            mStore.append(mAddresses[0], mTimestamp += 10, i, 60 + (i & 63), 3600 + (i & 127));
+        }
+        mStore.flush();
+    }
+}